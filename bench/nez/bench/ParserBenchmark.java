@@ -0,0 +1,129 @@
+package nez.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import nez.ParserGenerator;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.lang.Grammar;
+import nez.lang.ast.GrammarExample;
+import nez.parser.Parser;
+import nez.parser.ParserStrategy;
+import nez.parser.io.CommonSource;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * ParserBenchmark measures the parse throughput of the bundled grammars
+ * under combinations of ParserStrategy options. Inputs are the *.in files
+ * in the directory named after the grammar (e.g., test-nez/math/ for
+ * test-nez/math.nez) and the examples written in the grammar itself.
+ *
+ * With TreeConstruction=false, parse() only recognizes the input on the
+ * same code path, so the difference between the two settings is the cost
+ * of tree construction. Run with "ant bench", which
+ * also enables the gc profiler to report allocation rates. The full matrix
+ * is large; narrow it with JMH options, e.g.,
+ * 
+ * ant bench -Dbench.args="-p grammar=sample/xml.nez -p Moz=false"
+ */
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 3, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+	@Param({ "test-nez/math.nez", "test-nez/list.nez", "test-nez/leftpair.nez", "test-nez/rightpair.nez", "test-nez/recursion.nez", "test-nez/rna.nez", "test-nez/binary-scan.nez", //
+			"sample/math.nez", "sample/nest.nez", "sample/pattern.nez", "sample/symbol.nez", "sample/token.nez", "sample/xml.nez" })
+	public String grammar;
+
+	@Param({ "1", "2" })
+	public int ChoicePrediction;
+
+	@Param({ "true", "false" })
+	public boolean PackratParsing;
+
+	@Param({ "16", "64" })
+	public int SlidingWindow;
+
+	@Param({ "true", "false" })
+	public boolean Oinline;
+
+	@Param({ "true", "false" })
+	public boolean TreeConstruction;
+
+	@Param({ "false", "true" })
+	public boolean Moz;
+
+	private Parser parser;
+	private List<Source> inputs;
+
+	@Setup(Level.Trial)
+	public void setup() throws IOException {
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.ChoicePrediction = ChoicePrediction;
+		strategy.PackratParsing = PackratParsing;
+		strategy.SlidingWindow = SlidingWindow;
+		strategy.Oinline = Oinline;
+		strategy.TreeConstruction = TreeConstruction;
+		strategy.Moz = Moz;
+		Grammar g = new ParserGenerator().loadGrammar(grammar);
+		this.parser = g.newParser(strategy);
+		this.parser.compile();
+		this.inputs = loadInputs(g, grammar);
+		if (inputs.isEmpty()) {
+			throw new IOException("no input for " + grammar);
+		}
+	}
+
+	private static List<Source> loadInputs(Grammar g, String path) throws IOException {
+		List<Source> l = new ArrayList<>();
+		File dir = new File(path.substring(0, path.length() - ".nez".length()));
+		if (dir.isDirectory()) {
+			File[] files = dir.listFiles();
+			Arrays.sort(files);
+			for (File f : files) {
+				if (f.getName().endsWith(".in")) {
+					l.add(CommonSource.newFileSource(f.getPath()));
+				}
+			}
+		}
+		GrammarExample example = (GrammarExample) g.getMetaData("example");
+		if (example != null) {
+			for (GrammarExample.Example ex : example.getExampleList()) {
+				l.add(CommonSource.newStringSource(ex.getText()));
+			}
+		}
+		return l;
+	}
+
+	@Benchmark
+	public void parse(Blackhole bh) {
+		for (Source s : inputs) {
+			Tree<?> node = parser.parse(s);
+			bh.consume(node);
+		}
+		parser.clearErrors();
+	}
+
+}
@@ -33,6 +33,32 @@ public abstract class DebugSourceContext extends Context {
 	@Override
 	public abstract long linenum(long pos);
 
+	@Override
+	public long skipWhile(long pos, boolean[] byteSet) {
+		while (!this.eof(pos) && byteSet[this.byteAt(pos)]) {
+			pos++;
+		}
+		return pos;
+	}
+
+	@Override
+	public long skipWhile(long pos, int byteChar) {
+		while (!this.eof(pos) && this.byteAt(pos) == byteChar) {
+			pos++;
+		}
+		return pos;
+	}
+
+	@Override
+	public long skipWhile(long pos, byte[] text) {
+		if (text.length > 0) {
+			while (this.match(pos, text)) {
+				pos += text.length;
+			}
+		}
+		return pos;
+	}
+
 	/* handling input stream */
 
 	@Override
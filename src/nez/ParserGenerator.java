@@ -1,5 +1,6 @@
 package nez;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.HashMap;
 
@@ -9,6 +10,8 @@ import nez.lang.Grammar;
 import nez.lang.ast.GrammarLoader;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserCache;
+import nez.parser.ParserCode;
 import nez.parser.ParserException;
 import nez.parser.ParserStrategy;
 import nez.parser.io.CommonSource;
@@ -104,6 +107,7 @@ public class ParserGenerator {
 		String ext = FileBuilder.extractFileExtension(fileName);
 		updateGrammar(grammar, source, ext);
 		grammar.setDesc(GrammarLoader.parseGrammarDescription(source));
+		grammar.setCachePath(source.getResourceName());
 		return grammar;
 	}
 
@@ -187,8 +191,31 @@ public class ParserGenerator {
 		return ext;
 	}
 
+	public final Parser newParser(String fileName, String start, ParserStrategy strategy) throws IOException {
+		strategy = ParserStrategy.nullCheck(strategy);
+		return loadGrammar(fileName).newParser(start, strategy);
+	}
+
+	/**
+	 * Creates a parser that only runs the code of the grammar. If the code is
+	 * cached, the grammar file is not loaded and the parser has no grammar,
+	 * so it cannot be translated or recompiled.
+	 */
+
+	public final Parser newCodeParser(String fileName, String start, ParserStrategy strategy) throws IOException {
+		strategy = ParserStrategy.nullCheck(strategy);
+		File f = new File(fileName);
+		if (f.isFile()) {
+			ParserCode<?> code = ParserCache.get(f.getAbsolutePath(), start, strategy);
+			if (code != null) {
+				return new Parser(code, strategy);
+			}
+		}
+		return newParser(fileName, start, strategy);
+	}
+
 	public final Parser newParser(String fileName, ParserStrategy strategy) throws IOException {
-		return ParserStrategy.nullCheck(strategy).newParser(loadGrammar(fileName));
+		return newParser(fileName, null, strategy);
 	}
 
 	public final Parser newParser(String fileName) throws IOException {
@@ -0,0 +1,122 @@
+package nez.ast;
+
+/**
+ * ArenaTree is a Tree prototype that records nodes in a TreeArena. Each
+ * ArenaTree is only a handle to its node; the handles of its subtrees are
+ * made from the arena when size() or get() is first called, so generic
+ * Tree consumers see the whole tree. Walking with getCursor() allocates no
+ * handles, and toTree() converts the tree into another Tree type.
+ * 
+ * <pre>
+ * TreeArena arena = new TreeArena();
+ * ArenaTree root = parser.parse(source, new ArenaTree(arena));
+ * </pre>
+ */
+
+public class ArenaTree extends Tree<ArenaTree> {
+	private final TreeArena arena;
+	private final int node;
+
+	public ArenaTree() {
+		this(new TreeArena());
+	}
+
+	public ArenaTree(TreeArena arena) {
+		super();
+		this.arena = arena;
+		this.node = -1;
+	}
+
+	private ArenaTree(TreeArena arena, int node, Symbol tag, Source source, long pos, int len, Object value) {
+		super();
+		this.arena = arena;
+		this.node = node;
+		this.tag = tag;
+		this.source = source;
+		this.pos = (int) pos;
+		this.length = len;
+		this.value = value;
+	}
+
+	public final TreeArena getArena() {
+		return this.arena;
+	}
+
+	public final int getNode() {
+		return this.node;
+	}
+
+	@Override
+	public ArenaTree newInstance(Symbol tag, Source source, long pos, int len, int objectsize, Object value) {
+		int node = arena.add(tag, source, pos, len, objectsize, value);
+		return new ArenaTree(arena, node, tag, source, pos, len, value);
+	}
+
+	@Override
+	public void link(int n, Symbol label, Object child) {
+		arena.link(this.node, n, label, ((ArenaTree) child).node);
+		this.subTree = null;
+		this.labels = EmptyLabels;
+	}
+
+	/* the subtree handles, made from the arena */
+	private void loadSubTree() {
+		if (this.subTree == null && this.node != -1) {
+			int size = 0;
+			for (int c = arena.firstChild(node); c != -1; c = arena.nextSibling(c)) {
+				size = arena.slot(c) + 1;
+			}
+			ArenaTree[] sub = new ArenaTree[size];
+			Symbol[] labels = size == 0 ? EmptyLabels : new Symbol[size];
+			for (int c = arena.firstChild(node); c != -1; c = arena.nextSibling(c)) {
+				sub[arena.slot(c)] = new ArenaTree(arena, c, arena.tag(c), source, arena.pos(c), arena.length(c), arena.value(c));
+				labels[arena.slot(c)] = arena.label(c);
+			}
+			this.subTree = sub;
+			this.labels = labels;
+		}
+	}
+
+	@Override
+	public int size() {
+		this.loadSubTree();
+		return this.labels.length;
+	}
+
+	@Override
+	public ArenaTree get(int index) {
+		this.loadSubTree();
+		return this.subTree[index];
+	}
+
+	@Override
+	public ArenaTree newInstance(Symbol tag, int objectsize, Object value) {
+		return newInstance(tag, this.getSource(), this.getSourcePosition(), 0, objectsize, value);
+	}
+
+	@Override
+	protected ArenaTree dupImpl() {
+		int node = arena.copy(this.node);
+		ArenaTree t = new ArenaTree(arena, node, this.getTag(), this.getSource(), this.getSourcePosition(), this.getLength(), this.getValue());
+		t.loadSubTree();
+		return t;
+	}
+
+	public final TreeArena.Cursor getCursor() {
+		return arena.cursor(this.node);
+	}
+
+	public final <E extends Tree<E>> E toTree(E proto) {
+		return arena.toTree(this.node, proto);
+	}
+
+	@Override
+	protected void appendStringfied(StringBuilder sb) {
+		if (this.node == -1) {
+			super.appendStringfied(sb);
+		} else {
+			toTree(new CommonTree()).appendStringfied(sb);
+		}
+	}
+
+}
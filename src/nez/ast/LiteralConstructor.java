@@ -47,7 +47,7 @@ public class LiteralConstructor extends TreeVisitorMap<nez.ast.LiteralConstructo
 		@Override
 		public Boolean newInstance(Tree<?> node) {
 			try {
-				if (node.toText().equals("true")) {
+				if (node.textEquals("true")) {
 					return true;
 				}
 				return false;
@@ -63,7 +63,11 @@ public class LiteralConstructor extends TreeVisitorMap<nez.ast.LiteralConstructo
 		@Override
 		public Integer newInstance(Tree<?> node) {
 			try {
-				return Integer.parseInt(node.toText());
+				long num = node.parseLong();
+				if (num != (int) num) {
+					throw new NumberFormatException("out of range: " + node.toText());
+				}
+				return (int) num;
 			} catch (LiteralFormatException e) {
 				throw e;
 			} catch (RuntimeException e) {
@@ -76,7 +80,7 @@ public class LiteralConstructor extends TreeVisitorMap<nez.ast.LiteralConstructo
 		@Override
 		public Long newInstance(Tree<?> node) {
 			try {
-				return Long.parseLong(node.toText());
+				return node.parseLong();
 			} catch (LiteralFormatException e) {
 				throw e;
 			} catch (RuntimeException e) {
@@ -13,6 +13,21 @@ public interface Source {
 
 	public boolean match(long pos, byte[] text);
 
+	/**
+	 * Returns the first position at or after pos whose byte is not in
+	 * byteSet; skipWhile() never passes the end of input.
+	 */
+
+	public long skipWhile(long pos, boolean[] byteSet);
+
+	public long skipWhile(long pos, int byteChar);
+
+	/**
+	 * Returns the position after the repetitions of text that start at pos.
+	 */
+
+	public long skipWhile(long pos, byte[] text);
+
 	public String subString(long startIndex, long endIndex);
 
 	public byte[] subByte(long startIndex, long endIndex);
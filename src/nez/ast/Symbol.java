@@ -1,20 +1,41 @@
 package nez.ast;
 
-import java.util.HashMap;
-
-import nez.util.UList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 public class Symbol {
-	private static HashMap<String, Symbol> tagIdMap = new HashMap<String, Symbol>();
-	private static UList<Symbol> tagNameList = new UList<Symbol>(new Symbol[64]);
+	/*
+	 * Symbols are interned in a ConcurrentHashMap. Ids are handed out by an
+	 * atomic counter and the reverse table is a two-level array of fixed-size
+	 * chunks, so tag(int) is a wait-free read and never sees a resized array.
+	 */
+	private final static int ChunkShift = 10;
+	private final static int ChunkSize = 1 << ChunkShift;
+	private final static int ChunkMask = ChunkSize - 1;
+
+	private final static ConcurrentHashMap<String, Symbol> tagIdMap = new ConcurrentHashMap<String, Symbol>();
+	private final static AtomicReferenceArray<Symbol[]> tagChunks = new AtomicReferenceArray<Symbol[]>(1 << 16);
+	private final static AtomicInteger tagCount = new AtomicInteger(0);
 
 	public final static Symbol unique(String s) {
 		Symbol tag = tagIdMap.get(s);
 		if (tag == null) {
-			tag = new Symbol(tagIdMap.size(), s);
-			tagIdMap.put(s, tag);
-			tagNameList.add(tag);
+			tag = tagIdMap.computeIfAbsent(s, Symbol::newSymbol);
+		}
+		return tag;
+	}
+
+	private static Symbol newSymbol(String s) {
+		int id = tagCount.getAndIncrement();
+		int index = id >>> ChunkShift;
+		Symbol[] chunk = tagChunks.get(index);
+		if (chunk == null) {
+			tagChunks.compareAndSet(index, null, new Symbol[ChunkSize]);
+			chunk = tagChunks.get(index);
 		}
+		Symbol tag = new Symbol(id, s);
+		chunk[id & ChunkMask] = tag; // published by tagIdMap
 		return tag;
 	}
 
@@ -23,7 +44,11 @@ public class Symbol {
 	}
 
 	public final static Symbol tag(int tagId) {
-		return tagNameList.ArrayValues[tagId];
+		return tagChunks.get(tagId >>> ChunkShift)[tagId & ChunkMask];
+	}
+
+	public final static int size() {
+		return tagCount.get();
 	}
 
 	public final static Symbol Null = unique("");
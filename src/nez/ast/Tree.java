@@ -1,8 +1,7 @@
 package nez.ast;
 
-import java.io.UnsupportedEncodingException;
+import java.nio.charset.StandardCharsets;
 import java.util.AbstractList;
-import java.util.Arrays;
 
 import nez.parser.io.CommonSource;
 import nez.util.StringUtils;
@@ -50,8 +49,9 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		E t = dupImpl();
 		if (this.subTree != null) {
 			for (int i = 0; i < subTree.length; i++) {
-				if (this.subTree[i] != null) {
-					t.subTree[i] = this.subTree[i].dup();
+				E sub = this.get(i);
+				if (sub != null) {
+					t.subTree[i] = sub.dup();
 					t.labels[i] = this.labels[i];
 				}
 			}
@@ -72,8 +72,10 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final void setPosition(int pos, int len) {
+		this.moveSubTree();
 		this.pos = pos;
 		this.length = len;
+		this.text = null;
 	}
 
 	@Override
@@ -90,6 +92,51 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		return this.length;
 	}
 
+	/* Moving */
+
+	private E movedFrom = null; // the tree whose subtrees are not yet moved
+
+	/**
+	 * Returns a copy of this tree moved by delta bytes into the given
+	 * source. Only the root is copied at once; each subtree is moved when it
+	 * is first accessed, so moving a large tree costs the same as moving a
+	 * leaf.
+	 */
+
+	@SuppressWarnings("unchecked")
+	public final E move(Source source, int delta) {
+		int size = this.size();
+		E t = this.newInstance(this.tag, source, this.pos + delta, this.length, size, this.value);
+		if (size > 0) {
+			if (t.subTree != null && t.labels.length == size) {
+				System.arraycopy(this.labels, 0, t.labels, 0, size);
+				((Tree<E>) t).movedFrom = (E) this;
+			} else {
+				for (int i = 0; i < size; i++) {
+					E sub = this.get(i);
+					if (sub != null) {
+						t.link(i, this.getLabel(i), sub.move(source, delta));
+					}
+				}
+			}
+		}
+		return t;
+	}
+
+	private void moveSubTree() {
+		E from = this.movedFrom;
+		if (from != null) {
+			this.movedFrom = null;
+			int delta = this.pos - from.pos;
+			for (int i = 0; i < this.subTree.length; i++) {
+				E sub = from.get(i);
+				if (sub != null) {
+					this.subTree[i] = sub.move(this.source, delta);
+				}
+			}
+		}
+	}
+
 	/* Tag, Type */
 
 	public final Symbol getTag() {
@@ -119,7 +166,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final boolean isAllLabeled() {
-		for (int i = 0; i < this.labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == null) {
 				return false;
 			}
@@ -139,12 +186,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 
 	@Override
 	public E get(int index) {
+		this.moveSubTree();
 		return this.subTree[index];
 	}
 
 	public final E get(int index, E defaultValue) {
 		if (index < this.size()) {
-			return this.subTree[index];
+			return this.get(index);
 		}
 		return defaultValue;
 	}
@@ -152,6 +200,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	@Override
 	public final E set(int index, E node) {
 		E oldValue = null;
+		this.moveSubTree();
 		oldValue = this.subTree[index];
 		this.subTree[index] = node;
 		// node.setParent(this);
@@ -159,12 +208,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final void set(int index, Symbol label, E node) {
+		this.moveSubTree();
 		this.labels[index] = label;
 		this.subTree[index] = node;
 	}
 
 	public final int indexOf(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
 				return i;
 			}
@@ -173,7 +223,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final boolean has(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
 				return true;
 			}
@@ -182,9 +232,9 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final E get(Symbol label) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
-				return this.subTree[i];
+				return this.get(i);
 			}
 		}
 		throw newNoSuchLabel(label);
@@ -195,17 +245,18 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final E get(Symbol label, E defval) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
-				return this.subTree[i];
+				return this.get(i);
 			}
 		}
 		return defval;
 	}
 
 	public final void set(Symbol label, E defval) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
+				this.moveSubTree();
 				this.subTree[i] = defval;
 				return;
 			}
@@ -216,7 +267,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		if (tag == oldlabel) {
 			this.tag = newlabel;
 		}
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == oldlabel) {
 				labels[i] = newlabel;
 			}
@@ -237,45 +288,248 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 		this.value = value;
 	}
 
+	/* Text */
+
+	private String text = null; // the text of the source span, decoded once
+
 	public final String toText() {
 		if (this.value != null) {
 			if (!(this.value instanceof Tree<?>)) {
 				return this.value.toString();
 			}
 		}
+		if (this.text == null) {
+			this.text = this.decodeText();
+		}
+		return this.text;
+	}
+
+	private String decodeText() {
 		if (this.source != null) {
 			long pos = this.getSourcePosition();
-			long epos = pos + this.length;
-			String s = this.source.subString(pos, epos);
+			byte[] tmp = this.source.subByte(pos, pos + this.length);
+			if (tmp == null) {
+				return "";
+			}
+			if (isUtf8(tmp)) {
+				return new String(tmp, StandardCharsets.UTF_8);
+			}
 			/* Binary */
-			byte[] tmp = this.source.subByte(pos, epos);
-			try {
-				if (Arrays.equals(tmp, s.getBytes("UTF8"))) {
-					this.value = s;
-				}
-			} catch (UnsupportedEncodingException e) {
+			StringBuilder sb = new StringBuilder();
+			sb.append("0x");
+			for (byte c : tmp) {
+				sb.append(String.format("%02x", c & 0xff));
 			}
-			if (this.value == null) {
-				if (tmp != null) {
-					StringBuilder sb = new StringBuilder();
-					sb.append("0x");
-					for (byte c : tmp) {
-						sb.append(String.format("%02x", c & 0xff));
-					}
-					this.value = sb.toString();
-				} else {
-					this.value = "";
+			return sb.toString();
+		}
+		return "";
+	}
+
+	private static boolean isUtf8(byte[] b) {
+		for (int p = 0; p < b.length;) {
+			int r = codePointAt(b, p);
+			if (r == -1) {
+				return false;
+			}
+			p += r >>> 24;
+		}
+		return true;
+	}
+
+	private static int codePointAt(byte[] b, int p) {
+		int c = b[p] & 0xff;
+		if (c < 0x80) {
+			return (1 << 24) | c;
+		}
+		int n = utf8Length(c);
+		if (n == 0 || p + n > b.length) {
+			return -1;
+		}
+		int cp = c & (0x7f >> n);
+		for (int i = 1; i < n; i++) {
+			c = b[p + i] & 0xff;
+			if (!isUtf8Trail(b[p] & 0xff, i, c)) {
+				return -1;
+			}
+			cp = (cp << 6) | (c & 0x3f);
+		}
+		return (n << 24) | cp;
+	}
+
+	/**
+	 * Returns the code point at p with its length in the upper 8 bits, or -1
+	 * if the bytes at p are not well-formed utf8.
+	 */
+
+	private static int codePointAt(Source s, long p, long end) {
+		int c = s.byteAt(p);
+		if (c < 0x80) {
+			return (1 << 24) | c;
+		}
+		int n = utf8Length(c);
+		if (n == 0 || p + n > end) {
+			return -1;
+		}
+		int cp = c & (0x7f >> n);
+		for (int i = 1; i < n; i++) {
+			int c2 = s.byteAt(p + i);
+			if (!isUtf8Trail(c, i, c2)) {
+				return -1;
+			}
+			cp = (cp << 6) | (c2 & 0x3f);
+		}
+		return (n << 24) | cp;
+	}
+
+	private static int utf8Length(int c) {
+		if (c >= 0xc2 && c <= 0xdf) {
+			return 2;
+		}
+		if (c >= 0xe0 && c <= 0xef) {
+			return 3;
+		}
+		if (c >= 0xf0 && c <= 0xf4) {
+			return 4;
+		}
+		return 0;
+	}
+
+	/* no overlong forms, surrogates or code points beyond U+10FFFF */
+	private static boolean isUtf8Trail(int c, int i, int c2) {
+		if (i == 1) {
+			switch (c) {
+			case 0xe0:
+				return c2 >= 0xa0 && c2 <= 0xbf;
+			case 0xed:
+				return c2 >= 0x80 && c2 <= 0x9f;
+			case 0xf0:
+				return c2 >= 0x90 && c2 <= 0xbf;
+			case 0xf4:
+				return c2 >= 0x80 && c2 <= 0x8f;
+			}
+		}
+		return c2 >= 0x80 && c2 <= 0xbf;
+	}
+
+	/* true if the text is read from the source, not from the value */
+	private boolean isSourceText() {
+		return this.source != null && (this.value == null || this.value instanceof Tree<?>);
+	}
+
+	/**
+	 * Compares the bytes of the text with the given bytes in the unsigned
+	 * lexicographic order. The source bytes are compared as they are, even
+	 * if they are not utf8.
+	 */
+
+	public final int compareText(byte[] b) {
+		if (!this.isSourceText()) {
+			byte[] utf8 = StringUtils.toUtf8(this.toText());
+			for (int i = 0; i < utf8.length && i < b.length; i++) {
+				if (utf8[i] != b[i]) {
+					return (utf8[i] & 0xff) - (b[i] & 0xff);
 				}
 			}
-			return this.value.toString();
+			return utf8.length - b.length;
 		}
-		return "";
+		long pos = this.getSourcePosition();
+		for (int i = 0; i < this.length && i < b.length; i++) {
+			int c = this.source.byteAt(pos + i);
+			if (c != (b[i] & 0xff)) {
+				return c - (b[i] & 0xff);
+			}
+		}
+		return this.length - b.length;
+	}
+
+	/**
+	 * Returns toText().equals(s), decoding the source bytes on the fly.
+	 */
+
+	public final boolean textEquals(String s) {
+		if (!this.isSourceText() || this.text != null) {
+			return this.toText().equals(s);
+		}
+		long p = this.getSourcePosition();
+		long end = p + this.length;
+		int i = 0;
+		while (p < end) {
+			int r = codePointAt(this.source, p, end);
+			if (r == -1 || i >= s.length() || s.codePointAt(i) != (r & 0xffffff)) {
+				/* the text of a binary token is 0x... */
+				return (r == -1 || s.startsWith("0x")) && this.toText().equals(s);
+			}
+			i += Character.charCount(r & 0xffffff);
+			p += r >>> 24;
+		}
+		return i == s.length();
+	}
+
+	/**
+	 * Returns toText().hashCode(), decoding the source bytes on the fly.
+	 */
+
+	public final int textHash() {
+		if (!this.isSourceText() || this.text != null) {
+			return this.toText().hashCode();
+		}
+		long p = this.getSourcePosition();
+		long end = p + this.length;
+		int h = 0;
+		while (p < end) {
+			int r = codePointAt(this.source, p, end);
+			if (r == -1) {
+				return this.toText().hashCode();
+			}
+			int cp = r & 0xffffff;
+			if (cp >= 0x10000) {
+				h = 31 * h + Character.highSurrogate(cp);
+				h = 31 * h + Character.lowSurrogate(cp);
+			} else {
+				h = 31 * h + cp;
+			}
+			p += r >>> 24;
+		}
+		return h;
+	}
+
+	/**
+	 * Returns Long.parseLong(toText()); decimal texts are parsed from the
+	 * source bytes.
+	 * 
+	 * @throws NumberFormatException
+	 */
+
+	public final long parseLong() {
+		if (!this.isSourceText() || this.length == 0) {
+			return Long.parseLong(this.toText());
+		}
+		long p = this.getSourcePosition();
+		long end = p + this.length;
+		int c = this.source.byteAt(p);
+		boolean negative = c == '-';
+		if (c == '-' || c == '+') {
+			p++;
+		}
+		if (p == end) {
+			return Long.parseLong(this.toText());
+		}
+		long num = 0;
+		for (; p < end; p++) {
+			c = this.source.byteAt(p) - '0';
+			if (c < 0 || c > 9 || num > (Long.MAX_VALUE - c) / 10) {
+				/* non-ascii digits, overflow, Long.MIN_VALUE or an error */
+				return Long.parseLong(this.toText());
+			}
+			num = num * 10 + c;
+		}
+		return negative ? -num : num;
 	}
 
 	public final boolean is(Symbol label, Symbol tag) {
-		for (int i = 0; i < labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
-				return this.subTree[i].is(tag);
+				return this.get(i).is(tag);
 			}
 		}
 		return false;
@@ -289,7 +543,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final String getText(Symbol label, String defval) {
-		for (int i = 0; i < this.labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
 				return getText(i, defval);
 			}
@@ -302,12 +556,13 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 			return ((Number) this.value).intValue();
 		}
 		try {
-			String s = this.toText();
-			int num = Integer.parseInt(s);
-			if (this.value == null) {
-				this.value = new Integer(num);
+			long num = this.parseLong();
+			if (num == (int) num) {
+				if (this.value == null && this.text == null) {
+					this.value = Integer.valueOf((int) num);
+				}
+				return (int) num;
 			}
-			return num;
 		} catch (NumberFormatException e) {
 		}
 		return defvalue;
@@ -321,7 +576,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 	}
 
 	public final int getInt(Symbol label, int defvalue) {
-		for (int i = 0; i < this.labels.length; i++) {
+		for (int i = 0; i < this.size(); i++) {
 			if (labels[i] == label) {
 				return getInt(i, defvalue);
 			}
@@ -350,7 +605,7 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 				return true;
 			}
 		}
-		return token.equals(toText());
+		return textEquals(token);
 	}
 
 	@Override
@@ -376,10 +631,11 @@ public abstract class Tree<E extends Tree<E>> extends AbstractList<E> implements
 					sb.append(this.labels[i].getSymbol());
 					sb.append("=");
 				}
-				if (this.subTree[i] == null) {
+				E sub = this.get(i);
+				if (sub == null) {
 					sb.append("null");
 				} else {
-					this.subTree[i].appendStringfied(sb);
+					sub.appendStringfied(sb);
 				}
 			}
 		}
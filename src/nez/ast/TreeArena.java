@@ -0,0 +1,310 @@
+package nez.ast;
+
+import java.util.Arrays;
+
+/**
+ * TreeArena stores tree nodes in parallel int arrays instead of one object
+ * (plus label and child arrays) per node. Children are chained by
+ * first-child/next-sibling indexes, so constructing a node is a few array
+ * writes. Nodes are created through ArenaTree, the Tree prototype backed by
+ * an arena; they are read with a Cursor, or converted into ordinary trees
+ * with toTree() when needed.
+ */
+
+public class TreeArena {
+	private final static int None = -1;
+
+	private Source source = null;
+	private int size = 0;
+	private int[] tags;
+	private int[] starts;
+	private int[] lengths;
+	private int[] objectSizes;
+	private int[] parents; // the first parent, or None
+	private int[] firstChildren;
+	private int[] lastChildren;
+	private int[] nextSiblings;
+	private int[] slots; // index in the parent
+	private int[] labels; // label id in the parent
+	private Object[] values = null;
+
+	public TreeArena() {
+		this(1024);
+	}
+
+	public TreeArena(int capacity) {
+		this.tags = new int[capacity];
+		this.starts = new int[capacity];
+		this.lengths = new int[capacity];
+		this.objectSizes = new int[capacity];
+		this.parents = new int[capacity];
+		this.firstChildren = new int[capacity];
+		this.lastChildren = new int[capacity];
+		this.nextSiblings = new int[capacity];
+		this.slots = new int[capacity];
+		this.labels = new int[capacity];
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	/**
+	 * Returns the number of nodes, including nodes discarded by
+	 * backtracking.
+	 */
+
+	public final int size() {
+		return this.size;
+	}
+
+	/**
+	 * Drops all nodes; the allocated arrays are reused.
+	 */
+
+	public final void clear() {
+		this.size = 0;
+		this.source = null;
+		if (this.values != null) {
+			Arrays.fill(this.values, null);
+		}
+	}
+
+	private void grow() {
+		int n = tags.length * 2;
+		tags = Arrays.copyOf(tags, n);
+		starts = Arrays.copyOf(starts, n);
+		lengths = Arrays.copyOf(lengths, n);
+		objectSizes = Arrays.copyOf(objectSizes, n);
+		parents = Arrays.copyOf(parents, n);
+		firstChildren = Arrays.copyOf(firstChildren, n);
+		lastChildren = Arrays.copyOf(lastChildren, n);
+		nextSiblings = Arrays.copyOf(nextSiblings, n);
+		slots = Arrays.copyOf(slots, n);
+		labels = Arrays.copyOf(labels, n);
+		if (values != null) {
+			values = Arrays.copyOf(values, n);
+		}
+	}
+
+	final int add(Symbol tag, Source source, long pos, int len, int objectSize, Object value) {
+		if (size == tags.length) {
+			grow();
+		}
+		int id = size++;
+		this.source = source;
+		tags[id] = tag.id;
+		starts[id] = (int) pos;
+		lengths[id] = len;
+		objectSizes[id] = objectSize;
+		parents[id] = None;
+		firstChildren[id] = None;
+		lastChildren[id] = None;
+		nextSiblings[id] = None;
+		slots[id] = 0;
+		labels[id] = None;
+		if (value != null) {
+			if (values == null) {
+				values = new Object[tags.length];
+			}
+			values[id] = value;
+		} else if (values != null) {
+			values[id] = null;
+		}
+		return id;
+	}
+
+	/* a node linked twice (e.g., a memoized subtree) is copied */
+	final int copy(int id) {
+		int c = add(Symbol.tag(tags[id]), source, starts[id], lengths[id], objectSizes[id], value(id));
+		firstChildren[c] = firstChildren[id];
+		lastChildren[c] = lastChildren[id];
+		return c;
+	}
+
+	final int link(int parent, int n, Symbol label, int child) {
+		if (parents[child] != None) {
+			child = copy(child);
+		}
+		parents[child] = parent;
+		slots[child] = n;
+		labels[child] = label == null ? None : label.id;
+		int last = lastChildren[parent];
+		if (last == None) {
+			firstChildren[parent] = child;
+			lastChildren[parent] = child;
+		} else if (slots[last] < n) {
+			nextSiblings[last] = child;
+			lastChildren[parent] = child;
+		} else {
+			insert(parent, n, child);
+		}
+		return child;
+	}
+
+	private void insert(int parent, int n, int child) {
+		int prev = None;
+		int cur = firstChildren[parent];
+		while (cur != None && slots[cur] < n) {
+			prev = cur;
+			cur = nextSiblings[cur];
+		}
+		if (cur != None && slots[cur] == n) { // replace
+			nextSiblings[child] = nextSiblings[cur];
+			if (lastChildren[parent] == cur) {
+				lastChildren[parent] = child;
+			}
+		} else {
+			nextSiblings[child] = cur;
+		}
+		if (prev == None) {
+			firstChildren[parent] = child;
+		} else {
+			nextSiblings[prev] = child;
+		}
+	}
+
+	/* node accessors */
+
+	public final Symbol tag(int id) {
+		return Symbol.tag(tags[id]);
+	}
+
+	public final int pos(int id) {
+		return starts[id];
+	}
+
+	public final int length(int id) {
+		return lengths[id];
+	}
+
+	public final Object value(int id) {
+		return values == null ? null : values[id];
+	}
+
+	public final int objectSize(int id) {
+		return objectSizes[id];
+	}
+
+	public final int firstChild(int id) {
+		return firstChildren[id];
+	}
+
+	public final int nextSibling(int id) {
+		return nextSiblings[id];
+	}
+
+	public final int slot(int id) {
+		return slots[id];
+	}
+
+	public final Symbol label(int id) {
+		return labels[id] == None ? null : Symbol.tag(labels[id]);
+	}
+
+	public final String text(int id) {
+		Object v = value(id);
+		if (v != null) {
+			return v.toString();
+		}
+		return source.subString(starts[id], starts[id] + lengths[id]);
+	}
+
+	/* Tree view */
+
+	public final <E extends Tree<E>> E toTree(int id, E proto) {
+		E node = proto.newInstance(tag(id), source, starts[id], lengths[id], objectSizes[id], value(id));
+		for (int c = firstChildren[id]; c != None; c = nextSiblings[c]) {
+			node.link(slots[c], label(c), toTree(c, proto));
+		}
+		return node;
+	}
+
+	/* events */
+
+	public final void emit(int id, TreeListener listener) {
+		listener.beginNode(tag(id), starts[id]);
+		emitSubNodes(id, listener);
+		listener.endNode(tag(id), starts[id] + lengths[id], value(id));
+	}
+
+	public final void emitSubNodes(int id, TreeListener listener) {
+		for (int c = firstChildren[id]; c != None; c = nextSiblings[c]) {
+			if (labels[c] != None) {
+				listener.label(Symbol.tag(labels[c]));
+			}
+			emit(c, listener);
+		}
+	}
+
+	public final Cursor cursor(int id) {
+		return new Cursor(id);
+	}
+
+	/**
+	 * Cursor is a movable reference to a node; a single cursor can walk the
+	 * whole tree without allocation. Subtrees may be shared by several
+	 * parents, so there is no way back up; keep the node ids to return to.
+	 */
+
+	public final class Cursor {
+		private int node;
+
+		Cursor(int node) {
+			this.node = node;
+		}
+
+		public final int node() {
+			return this.node;
+		}
+
+		public final void moveTo(int node) {
+			this.node = node;
+		}
+
+		public final boolean moveToFirstChild() {
+			return move(firstChildren[node]);
+		}
+
+		public final boolean moveToNextSibling() {
+			return move(nextSiblings[node]);
+		}
+
+		private boolean move(int next) {
+			if (next == None) {
+				return false;
+			}
+			this.node = next;
+			return true;
+		}
+
+		public final Symbol tag() {
+			return TreeArena.this.tag(node);
+		}
+
+		public final Symbol label() {
+			return TreeArena.this.label(node);
+		}
+
+		public final int pos() {
+			return starts[node];
+		}
+
+		public final int length() {
+			return lengths[node];
+		}
+
+		public final Object value() {
+			return TreeArena.this.value(node);
+		}
+
+		public final String text() {
+			return TreeArena.this.text(node);
+		}
+
+		public final boolean isLeaf() {
+			return firstChildren[node] == None;
+		}
+	}
+
+}
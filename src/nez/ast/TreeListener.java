@@ -0,0 +1,17 @@
+package nez.ast;
+
+/**
+ * TreeListener receives a parsed tree as a sequence of events in document
+ * order. label() is called before the beginNode() of a labeled subnode.
+ * endNode() repeats the tag, since the subnodes of the root may be passed
+ * before the root is complete; beginNode() then receives the tag known so
+ * far, or Symbol.Null (e.g., File = { (@Element)* #File }).
+ */
+
+public interface TreeListener {
+	public void beginNode(Symbol tag, long pos);
+
+	public void label(Symbol label);
+
+	public void endNode(Symbol tag, long pos, Object value);
+}
@@ -8,6 +8,8 @@ import nez.ast.Tree;
 import nez.lang.ast.NezExpressionConstructor;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserCache;
+import nez.parser.ParserCode;
 import nez.parser.ParserOptimizer;
 import nez.parser.ParserStrategy;
 import nez.util.ConsoleUtils;
@@ -101,6 +103,7 @@ public class Grammar extends AbstractList<Production> {
 	}
 
 	private void addProduction(Production p) {
+		this.cachePath = null;
 		Production p2 = this.getLocalProduction(p.getLocalName());
 		if (p2 == null) {
 			this.prodList.add(p);
@@ -131,6 +134,7 @@ public class Grammar extends AbstractList<Production> {
 	}
 
 	public void update(UList<Production> prodList) {
+		this.cachePath = null;
 		this.prodList = prodList;
 		this.prodMap = new HashMap<>();
 		for (Production p : prodList) {
@@ -196,6 +200,19 @@ public class Grammar extends AbstractList<Production> {
 		this.setMetaData("urn", urn);
 	}
 
+	/* ParserCache */
+
+	private String cachePath = null;
+
+	/**
+	 * Marks this grammar as loaded from the file, so that its compiled code is
+	 * kept in ParserCache. Adding a production clears the mark.
+	 */
+
+	public final void setCachePath(String path) {
+		this.cachePath = path;
+	}
+
 	// ----------------------------------------------------------------------
 
 	private Parser nezExpressionParser() {
@@ -233,8 +250,7 @@ public class Grammar extends AbstractList<Production> {
 	 */
 
 	public final Parser newParser(ParserStrategy strategy) {
-		Grammar gg = new ParserOptimizer().optimize(this.getStartProduction(), strategy, null);
-		return new Parser(gg, strategy);
+		return newParser(this.getStartProduction(), null, strategy);
 	}
 
 	public final Parser newParser(String name) {
@@ -245,12 +261,24 @@ public class Grammar extends AbstractList<Production> {
 		if (name != null) {
 			Production p = this.getProduction(name);
 			if (p != null) {
-				Grammar gg = new ParserOptimizer().optimize(p, strategy, null);
-				return new Parser(gg, strategy);
+				return newParser(p, name, strategy);
 			}
 			Verbose.println("undefined production: " + name);
 		}
 		return newParser(strategy);
 	}
 
+	private Parser newParser(Production start, String name, ParserStrategy strategy) {
+		ParserCode<?> code = ParserCache.get(this.cachePath, name, strategy);
+		if (code != null) {
+			return new Parser(start, code, strategy);
+		}
+		Grammar gg = new ParserOptimizer().optimize(start, strategy, null);
+		Parser parser = new Parser(gg, strategy);
+		if (ParserCache.isCacheable(this.cachePath, strategy)) {
+			ParserCache.put(this.cachePath, name, strategy, parser.compile());
+		}
+		return parser;
+	}
+
 }
@@ -0,0 +1,260 @@
+package nez.parser;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import nez.ast.Source;
+import nez.ast.Tree;
+
+/**
+ * IncrementalMemo is the memo table of incremental parsing
+ * (ParserStrategy.Incremental). Unlike the sliding window of ParserContext,
+ * it keeps every entry of a parse, chained per start position, and records
+ * how far each production has looked at the input (reach). After a text
+ * edit, entries whose examined bytes intersect the edited region are
+ * dropped and the entries behind the edit are moved by the change in
+ * length, so that the next parse reuses the results of all productions the
+ * edit has not touched.
+ *
+ * The columns are kept in a gap buffer whose gap follows the edits, so an
+ * edit costs the distance from the previous edit, not the length of the
+ * text. Only the columns within the longest reach before the edit are
+ * scanned; the few entries that reach further than FarReach are kept in a
+ * list of their own, so that a production spanning the whole file does not
+ * widen the scan.
+ *
+ * Tree positions are absolute, so a memoized tree found at a moved position
+ * is reused through Tree.move(), which copies only its root. This requires
+ * trees that hold their subtrees, such as CommonTree.
+ */
+
+public final class IncrementalMemo<T extends Tree<T>> {
+
+	public final static class Entry<T> {
+		public final int memoPoint;
+		public int consumed;
+		public int reach; // the furthest position examined, from the start
+		public int result;
+		T tree;
+		int treePos;
+		Entry<T> next;
+		boolean far; // listed in farEntries
+		int pos; // the position of a far entry
+
+		Entry(int memoPoint, Entry<T> next) {
+			this.memoPoint = memoPoint;
+			this.next = next;
+		}
+	}
+
+	private final static int FarReach = 4096;
+
+	private final int lookahead;
+	private Entry<T>[] columns;
+	private int gapStart;
+	private int gapEnd;
+	private int maxReach = 0; // the longest reach of the entries that are not far
+	private final ArrayList<Entry<T>> farEntries = new ArrayList<>();
+
+	long CountStored = 0;
+	long CountReused = 0;
+	long CountInvalidated = 0;
+
+	/**
+	 * Creates an empty table for the given source. The lookahead is the
+	 * number of bytes an instruction may test beyond the furthest position
+	 * (e.g., the longest string literal).
+	 */
+
+	@SuppressWarnings("unchecked")
+	public IncrementalMemo(Source source, int lookahead) {
+		this.lookahead = Math.max(1, lookahead);
+		this.columns = new Entry[(int) source.length() + 1];
+		this.gapStart = columns.length;
+		this.gapEnd = columns.length;
+	}
+
+	private int size() {
+		return columns.length - (gapEnd - gapStart);
+	}
+
+	private int index(int pos) {
+		return pos < gapStart ? pos : pos + (gapEnd - gapStart);
+	}
+
+	public final Entry<T> find(int pos, int memoPoint) {
+		if (pos < this.size()) {
+			for (Entry<T> e = columns[index(pos)]; e != null; e = e.next) {
+				if (e.memoPoint == memoPoint) {
+					CountReused++;
+					return e;
+				}
+			}
+		}
+		return null;
+	}
+
+	public final void store(int pos, int memoPoint, int consumed, int reach, int result, T tree) {
+		if (pos >= this.size()) {
+			this.grow(pos + 1);
+		}
+		int c = index(pos);
+		Entry<T> e = columns[c];
+		while (e != null && e.memoPoint != memoPoint) {
+			e = e.next;
+		}
+		if (e == null) {
+			e = new Entry<T>(memoPoint, columns[c]);
+			columns[c] = e;
+		}
+		e.consumed = consumed;
+		e.reach = reach;
+		e.result = result;
+		e.tree = tree;
+		e.treePos = pos;
+		if (reach > FarReach || e.far) {
+			if (!e.far) {
+				e.far = true;
+				farEntries.add(e);
+			}
+			e.pos = pos;
+		} else {
+			e.far = false;
+			if (reach > maxReach) {
+				this.maxReach = reach;
+			}
+		}
+		CountStored++;
+	}
+
+	private void grow(int size) {
+		this.moveGap(this.size());
+		@SuppressWarnings("unchecked")
+		Entry<T>[] newcolumns = new Entry[Math.max(size, gapStart * 2)];
+		System.arraycopy(columns, 0, newcolumns, 0, gapStart);
+		this.columns = newcolumns;
+		this.gapStart = newcolumns.length;
+		this.gapEnd = newcolumns.length;
+	}
+
+	/* moves the gap to pos; the gap is always filled with null */
+	private void moveGap(int pos) {
+		if (pos < gapStart) {
+			int n = gapStart - pos;
+			System.arraycopy(columns, pos, columns, gapEnd - n, n);
+			Arrays.fill(columns, pos, Math.min(gapStart, gapEnd - n), null);
+			this.gapStart = pos;
+			this.gapEnd -= n;
+		} else if (pos > gapStart) {
+			int n = pos - gapStart;
+			System.arraycopy(columns, gapEnd, columns, gapStart, n);
+			Arrays.fill(columns, Math.max(gapEnd, pos), gapEnd + n, null);
+			this.gapStart = pos;
+			this.gapEnd += n;
+		}
+	}
+
+	/**
+	 * Returns the memoized tree of the entry found at pos, moved to pos.
+	 */
+
+	public final T tree(Entry<T> e, int pos, Source source) {
+		if (e.tree != null && e.treePos != pos) {
+			e.tree = e.tree.move(source, pos - e.treePos);
+			e.treePos = pos;
+		}
+		return e.tree;
+	}
+
+	/* edits */
+
+	private void invalidate(int pos, Entry<T> target) {
+		int c = index(pos);
+		Entry<T> prev = null;
+		for (Entry<T> e = columns[c]; e != null; e = e.next) {
+			if (e == target) {
+				if (prev == null) {
+					columns[c] = e.next;
+				} else {
+					prev.next = e.next;
+				}
+				CountInvalidated++;
+				return;
+			}
+			prev = e;
+		}
+	}
+
+	public final void apply(TextEdit edit) {
+		int start = Math.min(edit.start, this.size() - 1);
+		int end = Math.min(edit.end, this.size() - 1);
+		int delta = edit.newLength - (end - start);
+		/* far entries before the edit that have looked into it */
+		int n = 0;
+		for (Entry<T> e : farEntries) {
+			if (!e.far) {
+				continue;
+			}
+			if (e.pos < start) {
+				if (e.pos + e.reach + lookahead > start) {
+					this.invalidate(e.pos, e);
+					e.far = false;
+					continue;
+				}
+			} else if (e.pos < end) {
+				e.far = false;
+				continue;
+			} else {
+				e.pos += delta;
+			}
+			farEntries.set(n++, e);
+		}
+		while (farEntries.size() > n) {
+			farEntries.remove(farEntries.size() - 1);
+		}
+		/* the other entries before the edit that have looked into it */
+		for (int c = Math.max(0, start - maxReach - lookahead); c < start; c++) {
+			int i = index(c);
+			Entry<T> prev = null;
+			for (Entry<T> e = columns[i]; e != null; e = e.next) {
+				if (!e.far && c + e.reach + lookahead > start) {
+					if (prev == null) {
+						columns[i] = e.next;
+					} else {
+						prev.next = e.next;
+					}
+					CountInvalidated++;
+				} else {
+					prev = e;
+				}
+			}
+		}
+		/* entries within the edit are dropped; the rest are moved */
+		this.moveGap(start);
+		Arrays.fill(columns, gapEnd, gapEnd + (end - start), null);
+		this.gapEnd += end - start;
+		if (gapEnd - gapStart < edit.newLength) {
+			@SuppressWarnings("unchecked")
+			Entry<T>[] newcolumns = new Entry[this.size() + edit.newLength + Math.max(1024, columns.length / 8)];
+			int tail = columns.length - gapEnd;
+			System.arraycopy(columns, 0, newcolumns, 0, gapStart);
+			System.arraycopy(columns, gapEnd, newcolumns, newcolumns.length - tail, tail);
+			this.columns = newcolumns;
+			this.gapEnd = newcolumns.length - tail;
+		}
+		this.gapStart += edit.newLength;
+	}
+
+	public final void apply(TextEdit... edits) {
+		for (TextEdit edit : edits) {
+			this.apply(edit);
+		}
+	}
+
+	public final void record(ParserProfiler prof) {
+		prof.setCount("Incremental.Stored", CountStored);
+		prof.setCount("Incremental.Reused", CountReused);
+		prof.setCount("Incremental.Invalidated", CountInvalidated);
+	}
+
+}
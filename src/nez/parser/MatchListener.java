@@ -0,0 +1,12 @@
+package nez.parser;
+
+import nez.ast.Tree;
+
+/**
+ * MatchListener receives the matches found by Parser.find(), in order of
+ * their start positions. end is the position just after the match.
+ */
+
+public interface MatchListener<T extends Tree<T>> {
+	public void match(long start, long end, T tree);
+}
@@ -71,27 +71,38 @@ public final class MemoPoint {
 	}
 
 	protected final boolean checkDeactivation() {
-		if (this.memoMiss == 32) {
-			if (this.memoHit < 2) {
+		return checkDeactivation(this.memoHit, this.memoMiss);
+	}
+
+	static boolean checkDeactivation(int memoHit, int memoMiss) {
+		if (memoMiss == 32) {
+			if (memoHit < 2) {
 				return true;
 			}
 		}
-		if (this.memoMiss % 64 == 0) {
-			if (this.memoHit == 0) {
+		if (memoMiss % 64 == 0) {
+			if (memoHit == 0) {
 				return true;
 			}
-			// if(this.hitLength < this.memoHit) {
-			// enableMemo = false;
-			// disabledMemo();
-			// return;
-			// }
-			if (this.memoMiss / this.memoHit > 10) {
+			if (memoMiss / memoHit > 10) {
 				return true;
 			}
 		}
 		return false;
 	}
 
+	/* Adaptive memoization; the counters are kept in ParserContext */
+
+	private boolean adaptive = false;
+
+	final void setAdaptive(boolean adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	public final boolean isAdaptive() {
+		return this.adaptive;
+	}
+
 	@Override
 	public String toString() {
 		return this.label + "[id=" + this.id + "]";
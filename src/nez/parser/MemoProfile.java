@@ -0,0 +1,186 @@
+package nez.parser;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+
+import nez.lang.Grammar;
+import nez.util.ConsoleUtils;
+import nez.util.FileBuilder;
+import nez.util.UList;
+import nez.util.Verbose;
+
+/**
+ * MemoProfile records how often each production is called and how often it
+ * is re-entered at an input position it has already visited. A re-entry is
+ * exactly what a memo hit would have saved, so the counts are written next
+ * to the grammar (grammar.memo) and used by ParserCode.initMemoPoint() to
+ * choose memo points by measured benefit on subsequent compiles.
+ */
+
+public class MemoProfile {
+	private final String path;
+	private final UList<Entry> entryList = new UList<Entry>(new Entry[64]);
+	private final HashMap<String, Entry> entryMap = new HashMap<>();
+
+	static class Entry {
+		final int id;
+		final String uname;
+		long calls = 0;
+		long reentries = 0;
+		BitSet visited = null;
+
+		Entry(int id, String uname) {
+			this.id = id;
+			this.uname = uname;
+		}
+	}
+
+	public MemoProfile(String path) {
+		this.path = path;
+	}
+
+	public final String getPath() {
+		return this.path;
+	}
+
+	public final static String getProfilePath(Grammar g, ParserStrategy strategy) {
+		return getProfilePath(g.getURN(), strategy);
+	}
+
+	public final static String getProfilePath(String urn, ParserStrategy strategy) {
+		if (strategy.MemoProfile != null) {
+			return strategy.MemoProfile;
+		}
+		if (urn != null) {
+			return FileBuilder.changeFileExtension(urn, "memo");
+		}
+		return null;
+	}
+
+	private Entry getEntry(String uname) {
+		Entry e = entryMap.get(uname);
+		if (e == null) {
+			e = new Entry(entryList.size(), uname);
+			entryMap.put(uname, e);
+			entryList.add(e);
+		}
+		return e;
+	}
+
+	public final int getId(String uname) {
+		return getEntry(uname).id;
+	}
+
+	/* Profiling */
+
+	/**
+	 * Recorder counts the calls of the parses run by one context. Visited
+	 * positions belong to the input, so each context has its own recorder;
+	 * its counts are added to the profile by commit() when a parse ends.
+	 */
+
+	public final class Recorder {
+		private final long[] calls;
+		private final long[] reentries;
+		private final BitSet[] visited;
+
+		Recorder(int size) {
+			this.calls = new long[size];
+			this.reentries = new long[size];
+			this.visited = new BitSet[size];
+		}
+
+		public final MemoProfile getProfile() {
+			return MemoProfile.this;
+		}
+
+		public final void enter(int id, long pos) {
+			calls[id]++;
+			if (visited[id] == null) {
+				visited[id] = new BitSet();
+			}
+			if (visited[id].get((int) pos)) {
+				reentries[id]++;
+			} else {
+				visited[id].set((int) pos);
+			}
+		}
+
+		/* adds the counts to the profile and forgets visited positions */
+		public final void commit() {
+			synchronized (MemoProfile.this) {
+				for (int id = 0; id < calls.length; id++) {
+					Entry e = entryList.ArrayValues[id];
+					e.calls += calls[id];
+					e.reentries += reentries[id];
+				}
+			}
+			Arrays.fill(calls, 0);
+			Arrays.fill(reentries, 0);
+			Arrays.fill(visited, null);
+		}
+	}
+
+	public final Recorder newRecorder() {
+		return new Recorder(entryList.size());
+	}
+
+	public final synchronized long calls(String uname) {
+		Entry e = entryMap.get(uname);
+		return e == null ? 0 : e.calls;
+	}
+
+	public final synchronized long reentries(String uname) {
+		Entry e = entryMap.get(uname);
+		return e == null ? 0 : e.reentries;
+	}
+
+	/* File */
+
+	public final synchronized void save() {
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(this.path)))) {
+			out.println("# production\tcalls\treentries");
+			for (Entry e : entryList) {
+				out.println(e.uname + "\t" + e.calls + "\t" + e.reentries);
+			}
+		} catch (IOException e) {
+			ConsoleUtils.println("cannot write memo profile: " + this.path);
+			Verbose.traceException(e);
+		}
+	}
+
+	public final static MemoProfile load(String path) {
+		if (path == null || !new File(path).isFile()) {
+			return null;
+		}
+		MemoProfile profile = new MemoProfile(path);
+		try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] t = line.split("\t");
+				if (t.length == 3) {
+					Entry e = profile.getEntry(t[0]);
+					e.calls = Long.parseLong(t[1]);
+					e.reentries = Long.parseLong(t[2]);
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+		Verbose.println("loaded memo profile: " + path);
+		return profile;
+	}
+
+}
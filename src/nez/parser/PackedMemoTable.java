@@ -0,0 +1,118 @@
+package nez.parser;
+
+/**
+ * PackedMemoTable is a struct-of-arrays memo table used by ParserContext
+ * when ParserStrategy.PackedMemoTable is enabled. Entries are spread over
+ * parallel primitive arrays instead of one object per entry, the capacity is
+ * a power of two so that slots are located by masking, and each set may hold
+ * up to two entries (MemoAssociativity=2).
+ */
+
+final class PackedMemoTable {
+	private final long[] keys;
+	final int[] consumed;
+	final byte[] result;
+	final int[] state;
+	final Object[] trees;
+	private final int setMask;
+	private final int ways;
+
+	long CountStored = 0;
+	long CountUsed = 0;
+	long CountMissed = 0;
+	long CountEvicted = 0;
+	long CountInvalidated = 0;
+
+	PackedMemoTable(int w, int n, int ways) {
+		this.ways = (ways == 2) ? 2 : 1;
+		int sets = 1;
+		while (sets * this.ways < w * n + 1) {
+			sets <<= 1;
+		}
+		int size = sets * this.ways;
+		this.keys = new long[size];
+		this.consumed = new int[size];
+		this.result = new byte[size];
+		this.state = new int[size];
+		this.trees = new Object[size];
+		this.setMask = sets - 1;
+		this.clear();
+	}
+
+	final void clear() {
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = -1;
+			trees[i] = null;
+		}
+		this.CountStored = 0;
+		this.CountUsed = 0;
+		this.CountMissed = 0;
+		this.CountEvicted = 0;
+		this.CountInvalidated = 0;
+	}
+
+	private int slot(long key) {
+		return ((int) key & setMask) * ways;
+	}
+
+	/**
+	 * Returns the slot that holds key, or -1 if it is not memoized.
+	 */
+
+	final int find(long key) {
+		int slot = slot(key);
+		if (keys[slot] == key) {
+			CountUsed++;
+			return slot;
+		}
+		if (ways == 2 && keys[slot + 1] == key) {
+			CountUsed++;
+			return slot + 1;
+		}
+		CountMissed++;
+		return -1;
+	}
+
+	final int find(long key, int stateValue) {
+		int slot = find(key);
+		if (slot >= 0 && state[slot] != stateValue) {
+			CountUsed--;
+			CountInvalidated++;
+			return -1;
+		}
+		return slot;
+	}
+
+	final void store(long key, int length, int status, Object tree, int stateValue) {
+		int slot = slot(key);
+		if (ways == 2 && keys[slot] != key && keys[slot] != -1) {
+			/* the most recent entry goes first, the older one is moved out */
+			if (keys[slot + 1] != -1 && keys[slot + 1] != key) {
+				CountEvicted++;
+			}
+			keys[slot + 1] = keys[slot];
+			consumed[slot + 1] = consumed[slot];
+			result[slot + 1] = result[slot];
+			state[slot + 1] = state[slot];
+			trees[slot + 1] = trees[slot];
+		} else if (ways == 1 && keys[slot] != key && keys[slot] != -1) {
+			CountEvicted++;
+		}
+		keys[slot] = key;
+		consumed[slot] = length;
+		result[slot] = (byte) status;
+		state[slot] = stateValue;
+		trees[slot] = tree;
+		CountStored++;
+	}
+
+	final void record(ParserProfiler prof) {
+		prof.setText("M.TableType", this.getClass().getSimpleName() + "/" + ways);
+		prof.setCount("M.MemoSize", keys.length);
+		prof.setCount("M.MemoStored", CountStored);
+		prof.setRatio("M.MemoHit", CountUsed, CountUsed + CountMissed);
+		prof.setCount("M.Evicted", CountEvicted);
+		prof.setCount("M.Invalidated", CountInvalidated);
+	}
+
+}
@@ -1,17 +1,37 @@
 package nez.parser;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
+import nez.ast.ArenaTree;
 import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.SourceError;
+import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.ast.TreeArena;
+import nez.ast.TreeListener;
 import nez.lang.Grammar;
+import nez.lang.Production;
 import nez.parser.io.CommonSource;
+import nez.parser.io.MappedFileSource;
+import nez.parser.io.StreamSource;
+import nez.parser.io.StringSource;
+import nez.parser.vm.MozCode;
+import nez.parser.vm.MozWriter;
 import nez.parser.vm.ParserMachineContext;
 import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
 import nez.util.UList;
+import nez.util.Verbose;
 
 public final class Parser {
 	private ParserStrategy strategy;
@@ -23,7 +43,37 @@ public final class Parser {
 		this.strategy = strategy;
 	}
 
+	/**
+	 * Creates a parser from precompiled code (e.g., loaded by MozReader). The
+	 * parser has no grammar, so it cannot be recompiled.
+	 */
+
+	public Parser(ParserCode<?> pcode, ParserStrategy strategy) {
+		this.grammar = pcode.getCompiledGrammar();
+		this.strategy = strategy;
+		this.pcode = pcode;
+	}
+
+	private Production start = null;
+
+	/**
+	 * Creates a parser that runs the cached code of the start production.
+	 * The optimized grammar is rebuilt from the start production when it is
+	 * first requested (e.g., by translators and find).
+	 */
+
+	public Parser(Production start, ParserCode<?> pcode, ParserStrategy strategy) {
+		this(pcode, strategy);
+		if (this.grammar == null) {
+			this.start = start;
+		}
+	}
+
 	public final Grammar getGrammar() {
+		if (this.grammar == null && this.start != null) {
+			this.grammar = new ParserOptimizer().optimize(start, strategy, null);
+			this.start = null;
+		}
 		return grammar;
 	}
 
@@ -36,7 +86,11 @@ public final class Parser {
 	}
 
 	public final ParserCode<?> compile() {
-		this.pcode = this.strategy.newParserCode(grammar);
+		if (this.grammar != null) {
+			this.pcode = this.strategy.newParserCode(grammar);
+			/* the pooled contexts are made for the previous code */
+			this.contextPool = new ThreadLocal<ParserMachineContext<?>>();
+		}
 		return pcode;
 	}
 
@@ -47,6 +101,30 @@ public final class Parser {
 		return pcode;
 	}
 
+	/**
+	 * Returns a digest of the compiled code (the .moz image) and the
+	 * strategy, or null if the code cannot be encoded. Two parsers with the
+	 * same digest build the same trees from the same input.
+	 */
+
+	public final byte[] getCodeDigest() {
+		ParserCode<?> pcode = this.getParserCode();
+		if (!(pcode instanceof MozCode)) {
+			return null;
+		}
+		try {
+			MozWriter w = new MozWriter();
+			((MozCode) pcode).encode(w);
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(w.toByteArray());
+			md.update(StringUtils.toUtf8(this.strategy.toString()));
+			return md.digest();
+		} catch (NoSuchAlgorithmException | RuntimeException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+	}
+
 	public final ParserInstance newParserContext(Source source, Tree<?> prototype) {
 		ParserCode<?> pcode = this.getParserCode();
 		return this.strategy.newParserContext(source, pcode.getMemoPointSize(), prototype);
@@ -74,8 +152,12 @@ public final class Parser {
 		return matched;
 	}
 
-	@SuppressWarnings("unchecked")
 	public final <T extends Tree<T>> T perform(Source s, T proto) {
+		return this.perform(s, proto, null);
+	}
+
+	@SuppressWarnings("unchecked")
+	private <T extends Tree<T>> T perform(Source s, T proto, ParserContext.TreeCommitter<T> committer) {
 		if (strategy.Moz) {
 			// Verbose.println("ClassicMoz");
 			return (T) perform(this.newParserContext(s, proto));
@@ -83,14 +165,14 @@ public final class Parser {
 		// Verbose.println("FT86");
 		ParserMachineContext<T> ctx = new ParserMachineContext<T>(s, proto);
 		ParserCode<?> code = this.getParserCode();
-		ctx.initMemoTable(strategy.SlidingWindow, code.getMemoPointSize());
-		// if (prof != null) {
-		// context.startProfiling(prof);
-		// }
+		ctx.initMemoTable(strategy, code.getMemoPointSize());
+		ctx.setTreeCommitter(committer);
+		ctx.setMemoProfile(code.getMemoProfile());
 		T matched = code.exec(ctx);
-		// if (prof != null) {
-		// context.doneProfiling(prof);
-		// }
+		ctx.commitMemoProfile();
+		if (prof != null) {
+			ctx.recordMemoTable(prof);
+		}
 		if (matched == null) {
 			perror(s, ctx.getMaximumPosition(), "syntax error");
 			return null;
@@ -101,6 +183,22 @@ public final class Parser {
 		return matched;
 	}
 
+	/**
+	 * Writes the profiles recorded by the parses so far (MemoProfiling and
+	 * InstProfiling) to their files. Call it once, after the last input.
+	 */
+
+	public final void saveProfiles() {
+		if (this.pcode != null) {
+			if (pcode.getMemoProfile() != null) {
+				pcode.getMemoProfile().save();
+			}
+			if (pcode.getInstructionProfile() != null) {
+				pcode.getInstructionProfile().save();
+			}
+		}
+	}
+
 	protected ParserProfiler prof = null;
 
 	public void setProfiler(ParserProfiler prof) {
@@ -108,7 +206,9 @@ public final class Parser {
 		if (prof != null) {
 			this.compile();
 			// prof.setFile("G.File", this.start.getGrammarFile().getURN());
-			prof.setCount("G.Production", this.grammar.size());
+			if (this.grammar != null) {
+				prof.setCount("G.Production", this.grammar.size());
+			}
 			prof.setCount("G.Instruction", this.pcode.getInstructionSize());
 			prof.setCount("G.MemoPoint", this.pcode.getMemoPointSize());
 		}
@@ -147,6 +247,459 @@ public final class Parser {
 		return this.parse(sc, new CommonTree());
 	}
 
+	/* Batch Parsing */
+
+	private ThreadLocal<ParserMachineContext<?>> contextPool = new ThreadLocal<ParserMachineContext<?>>();
+
+	@SuppressWarnings("unchecked")
+	private <T extends Tree<T>> ParserMachineContext<T> getPooledContext(ParserCode<?> code, Source s, T proto) {
+		ParserMachineContext<T> ctx = (ParserMachineContext<T>) contextPool.get();
+		if (ctx == null) {
+			ctx = new ParserMachineContext<T>(s, proto);
+			ctx.initMemoTable(strategy, code.getMemoPointSize());
+			contextPool.set(ctx);
+		} else {
+			ctx.reset(s, proto);
+		}
+		ctx.setMemoProfile(code.getMemoProfile());
+		return ctx;
+	}
+
+	/**
+	 * Parses a single input without touching the shared error list. Parser
+	 * contexts are pooled per thread, so this method can be called
+	 * concurrently once the parser is compiled; a pooled context keeps no
+	 * reference to the input or its trees after the parse. With the
+	 * Incremental strategy, the result keeps its memo table for reparse().
+	 */
+
+	@SuppressWarnings("unchecked")
+	public final <T extends Tree<T>> ParserResult<T> parseResult(Source s, T proto) {
+		ParserCode<?> code = this.getParserCode();
+		if (strategy.Incremental && !strategy.Moz) {
+			return this.parseIncremental(code, s, proto, new IncrementalMemo<T>(s, ((MozCode) code).getLookahead()));
+		}
+		ParserResult<T> result = new ParserResult<T>(s);
+		if (strategy.Moz) {
+			ParserInstance context = this.newParserContext(s, proto);
+			T matched = (T) code.exec(context);
+			result.setTree(matched);
+			if (matched == null) {
+				result.perror(context.getMaximumPosition(), "syntax error");
+			} else if (this.disabledUncosumed && context.hasUnconsumed()) {
+				result.perror(context.getPosition(), "unconsumed");
+			}
+			return result;
+		}
+		ParserMachineContext<T> ctx = getPooledContext(code, s, proto);
+		try {
+			T matched = code.exec(ctx);
+			result.setTree(matched);
+			if (matched == null) {
+				result.perror(ctx.getMaximumPosition(), "syntax error");
+			} else if (this.disabledUncosumed && !ctx.eof()) {
+				result.perror(ctx.getPosition(), "unconsumed");
+			}
+			return result;
+		} finally {
+			ctx.release();
+		}
+	}
+
+	/* Incremental Parsing */
+
+	/**
+	 * Parses the edited text of a previous result. The edits are given in
+	 * byte offsets of the previous text, in order (see TextEdit). Memoized
+	 * results that the edits have not touched are reused, and so are their
+	 * subtrees, so that the cost of a small edit is far below a full parse.
+	 * The memo table moves from the previous result to the new one; each
+	 * result can be reparsed only once. Without the Incremental strategy,
+	 * this is a full parse.
+	 */
+
+	public final <T extends Tree<T>> ParserResult<T> reparse(ParserResult<T> previous, Source s, T proto, TextEdit... edits) {
+		IncrementalMemo<T> memo = previous.memo;
+		if (memo == null) {
+			return this.parseResult(s, proto);
+		}
+		previous.memo = null;
+		memo.apply(edits);
+		return this.parseIncremental(this.getParserCode(), s, proto, memo);
+	}
+
+	private <T extends Tree<T>> ParserResult<T> parseIncremental(ParserCode<?> code, Source s, T proto, IncrementalMemo<T> memo) {
+		ParserResult<T> result = new ParserResult<T>(s);
+		ParserMachineContext<T> ctx = new ParserMachineContext<T>(s, proto);
+		ctx.setIncrementalMemo(memo);
+		ctx.setMemoProfile(code.getMemoProfile());
+		T matched = code.exec(ctx);
+		ctx.commitMemoProfile();
+		if (prof != null) {
+			memo.record(prof);
+		}
+		result.setTree(matched);
+		result.memo = memo;
+		if (matched == null) {
+			result.perror(ctx.getMaximumPosition(), "syntax error");
+		} else if (this.disabledUncosumed && !ctx.eof()) {
+			result.perror(ctx.getPosition(), "unconsumed");
+		}
+		return result;
+	}
+
+	/**
+	 * Parses all inputs on the given executor. Results are returned in the
+	 * order of the inputs.
+	 */
+
+	public final <T extends Tree<T>> List<ParserResult<T>> parseAll(Iterable<Source> inputs, T proto, Executor executor) {
+		this.getParserCode();
+		List<CompletableFuture<ParserResult<T>>> futures = new ArrayList<CompletableFuture<ParserResult<T>>>();
+		for (Source s : inputs) {
+			futures.add(CompletableFuture.supplyAsync(() -> this.parseResult(s, proto), executor));
+		}
+		List<ParserResult<T>> results = new ArrayList<ParserResult<T>>(futures.size());
+		for (CompletableFuture<ParserResult<T>> f : futures) {
+			results.add(f.join());
+		}
+		return results;
+	}
+
+	public final <T extends Tree<T>> Stream<ParserResult<T>> parseAll(Stream<Source> inputs, T proto) {
+		this.getParserCode();
+		return inputs.map(s -> this.parseResult(s, proto));
+	}
+
+	/* Stream Parsing */
+
+	/**
+	 * Parses a stream as a repetition of the start production. Each element
+	 * is passed to the consumer as soon as it is matched, and then released
+	 * from the stream, so that memory does not grow with the stream length.
+	 * Trees read their text from the stream buffer, so the consumer must
+	 * finish with each tree before it returns. Returns the number of
+	 * elements, and stops at the first syntax error.
+	 */
+
+	public final <T extends Tree<T>> long parseStream(StreamSource s, T proto, Consumer<T> consumer) {
+		ParserCode<?> code = this.getParserCode();
+		ParserMachineContext<T> ctx = new ParserMachineContext<T>(s, proto);
+		ctx.initMemoTable(strategy, code.getMemoPointSize());
+		long count = 0;
+		while (!s.eof(0)) {
+			T matched = code.exec(ctx);
+			if (matched == null) {
+				perror(s, ctx.getMaximumPosition(), "syntax error");
+				break;
+			}
+			if (ctx.getPosition() == 0) {
+				perror(s, 0, "unconsumed");
+				break;
+			}
+			consumer.accept(matched);
+			count++;
+			s.release(ctx.getPosition());
+			ctx.reset(s, proto);
+		}
+		return count;
+	}
+
+	/* Parallel Parsing */
+
+	public static int MinChunkSize = 64 * 1024;
+
+	/**
+	 * Parses an input that is a repetition of independent records (see
+	 * parseStream()) in parallel. The input is split into chunks just after
+	 * a match of the sync parser (e.g., a newline), and the chunks are
+	 * parsed on the executor from their split points. A split point may be
+	 * wrong (e.g., a newline in a quoted string), which shows up as the
+	 * previous chunk not ending at a record start of the chunk; the records
+	 * are then reparsed from where the previous chunk ended. The result is
+	 * the list of records that a sequential parse produces.
+	 *
+	 * Chunks share the source, so it must allow concurrent reads. Sources
+	 * other than StringSource and MappedFileSource are parsed in a single
+	 * chunk.
+	 */
+
+	public final <T extends Tree<T>> List<T> parseParallel(Source s, T proto, Parser sync, int chunks, Executor executor) {
+		ParserCode<?> code = this.getParserCode();
+		boolean concurrent = s instanceof StringSource || s instanceof MappedFileSource;
+		long[] bounds = splitPoints(s, proto, sync, concurrent ? chunks : 1);
+		List<CompletableFuture<ParallelChunk<T>>> futures = new ArrayList<CompletableFuture<ParallelChunk<T>>>();
+		for (int i = 0; i + 1 < bounds.length; i++) {
+			long start = bounds[i];
+			long limit = bounds[i + 1];
+			futures.add(CompletableFuture.supplyAsync(() -> this.parseChunk(s, proto, start, limit), executor));
+		}
+		List<T> records = new ArrayList<T>();
+		ParserMachineContext<T> ctx = null;
+		long pos = 0;
+		try {
+			for (CompletableFuture<ParallelChunk<T>> f : futures) {
+				ParallelChunk<T> chunk = f.join();
+				while (pos < chunk.limit) {
+					int index = chunk.indexOf(pos);
+					if (index >= 0) {
+						records.addAll(chunk.records.subList(index, chunk.records.size()));
+						pos = chunk.end;
+						if (chunk.message != null) {
+							perror(s, chunk.errorPosition, chunk.message);
+							return records;
+						}
+						break;
+					}
+					/* mis-speculated; continue sequentially */
+					if (ctx == null) {
+						ctx = new ParserMachineContext<T>(s, proto);
+						ctx.initMemoTable(strategy, code.getMemoPointSize());
+						ctx.setMemoProfile(code.getMemoProfile());
+					}
+					T matched = parseRecord(ctx, code, s, proto, pos);
+					if (matched == null) {
+						perror(s, ctx.getMaximumPosition(), "syntax error");
+						return records;
+					}
+					if (ctx.getPosition() == pos) {
+						perror(s, pos, "unconsumed");
+						return records;
+					}
+					records.add(matched);
+					pos = ctx.getPosition();
+				}
+			}
+			return records;
+		} finally {
+			if (ctx != null) {
+				ctx.commitMemoProfile();
+			}
+		}
+	}
+
+	public final <T extends Tree<T>> List<T> parseParallel(Source s, T proto, Parser sync) {
+		return this.parseParallel(s, proto, sync, ForkJoinPool.getCommonPoolParallelism() * 4, ForkJoinPool.commonPool());
+	}
+
+	/**
+	 * Parses records in parallel and links them under a single node tagged
+	 * tag, as a production like File = { ($(Record))* #Tag } does.
+	 */
+
+	public final <T extends Tree<T>> T parseParallel(Source s, T proto, Parser sync, Symbol tag) {
+		int errors = this.errors == null ? 0 : this.errors.size();
+		List<T> records = this.parseParallel(s, proto, sync);
+		if (this.errors != null && this.errors.size() > errors) {
+			return null;
+		}
+		long end = records.isEmpty() ? 0 : records.get(records.size() - 1).getSourcePosition() + records.get(records.size() - 1).getLength();
+		T node = proto.newInstance(tag, s, 0, (int) end, records.size(), null);
+		for (int i = 0; i < records.size(); i++) {
+			node.link(i, null, records.get(i));
+		}
+		return node;
+	}
+
+	private static class ParallelChunk<T> {
+		final long limit;
+		final ArrayList<T> records = new ArrayList<T>();
+		long[] starts = new long[64];
+		long end;
+		long errorPosition = -1;
+		String message = null;
+
+		ParallelChunk(long start, long limit) {
+			this.limit = limit;
+			this.end = start;
+		}
+
+		void add(T record, long pos) {
+			if (records.size() == starts.length) {
+				long[] newstarts = new long[starts.length * 2];
+				System.arraycopy(starts, 0, newstarts, 0, records.size());
+				this.starts = newstarts;
+			}
+			starts[records.size()] = pos;
+			records.add(record);
+		}
+
+		int indexOf(long pos) {
+			int index = Arrays.binarySearch(starts, 0, records.size(), pos);
+			if (index < 0 && pos == end && message != null) {
+				return records.size(); // the chunk failed here
+			}
+			return index;
+		}
+	}
+
+	private <T extends Tree<T>> ParallelChunk<T> parseChunk(Source s, T proto, long start, long limit) {
+		ParserCode<?> code = this.getParserCode();
+		ParserMachineContext<T> ctx = getPooledContext(code, s, proto);
+		ParallelChunk<T> chunk = new ParallelChunk<T>(start, limit);
+		try {
+			long pos = start;
+			while (pos < limit) {
+				T matched = parseRecord(ctx, code, s, proto, pos);
+				if (matched == null || ctx.getPosition() == pos) {
+					chunk.errorPosition = matched == null ? ctx.getMaximumPosition() : pos;
+					chunk.message = matched == null ? "syntax error" : "unconsumed";
+					break;
+				}
+				chunk.add(matched, pos);
+				pos = ctx.getPosition();
+				chunk.end = pos;
+			}
+		} finally {
+			ctx.release();
+		}
+		return chunk;
+	}
+
+	private static <T extends Tree<T>> T parseRecord(ParserMachineContext<T> ctx, ParserCode<?> code, Source s, T proto, long pos) {
+		ctx.restart(pos, proto);
+		return code.exec(ctx);
+	}
+
+	/* the start of each chunk, just after a match of sync */
+	private <T extends Tree<T>> long[] splitPoints(Source s, T proto, Parser sync, int chunks) {
+		long length = s.length();
+		int n = (int) Math.max(1, Math.min(chunks, length / MinChunkSize));
+		ParserCode<?> code = sync.getParserCode();
+		ParserMachineContext<T> ctx = new ParserMachineContext<T>(s, proto);
+		ctx.initMemoTable(sync.getParserStrategy(), code.getMemoPointSize());
+		long[] bounds = new long[n + 1];
+		int size = 1;
+		for (int i = 1; i < n; i++) {
+			for (long pos = Math.max(length * i / n, bounds[size - 1] + 1); pos < length; pos++) {
+				if (parseRecord(ctx, code, s, proto, pos) != null && ctx.getPosition() > pos) {
+					if (ctx.getPosition() < length) {
+						bounds[size++] = ctx.getPosition();
+					}
+					break;
+				}
+			}
+		}
+		bounds[size++] = length;
+		return Arrays.copyOf(bounds, size);
+	}
+
+	/* Search */
+
+	/**
+	 * Finds every non-overlapping, nonempty match of the start production,
+	 * scanning the input from left to right like grep, and returns the
+	 * number of matches. Positions where no match can start are skipped by
+	 * a SearchFilter before the parser is run; code loaded without its
+	 * grammar (e.g., from a .moz file) tries every position.
+	 */
+
+	public final <T extends Tree<T>> long find(Source s, T proto, MatchListener<T> listener) {
+		ParserCode<?> code = this.getParserCode();
+		Grammar g = this.getGrammar();
+		SearchFilter filter = g == null ? new SearchFilter() : new SearchFilter(g.getStartProduction().getExpression());
+		ParserMachineContext<T> ctx = new ParserMachineContext<T>(s, proto);
+		ctx.initMemoTable(strategy, code.getMemoPointSize());
+		long length = s.length();
+		long count = 0;
+		long pos = filter.next(s, 0);
+		while (pos < length) {
+			T matched = parseRecord(ctx, code, s, proto, pos);
+			if (matched != null && ctx.getPosition() > pos) {
+				listener.match(pos, ctx.getPosition(), matched);
+				count++;
+				pos = ctx.getPosition();
+			} else {
+				pos++;
+			}
+			pos = filter.next(s, pos);
+		}
+		return count;
+	}
+
+	/* Tree Events */
+
+	/**
+	 * Parses the input and passes the tree to the listener as events. Nodes
+	 * are recorded in a TreeArena instead of being allocated as objects. The
+	 * subtrees of the root are sent as soon as no backtracking can discard
+	 * them (at each step of a repetition that no choice encloses, e.g., File
+	 * = { (@Element)* }) and then released, so that memory does not grow
+	 * with the number of elements; the rest of the tree is sent when the
+	 * parse has succeeded. If the parse fails after some subtrees were sent,
+	 * the events end there and false is returned.
+	 */
+
+	public final boolean parse(Source s, TreeListener listener) {
+		TreeArena arena = new TreeArena();
+		TreeEmitter emitter = new TreeEmitter(arena, listener, !strategy.Incremental);
+		ArenaTree tree = this.perform(s, new ArenaTree(arena), emitter);
+		if (tree == null) {
+			return false;
+		}
+		emitter.end(tree);
+		return true;
+	}
+
+	private static class TreeEmitter implements ParserContext.TreeCommitter<ArenaTree> {
+		private final static int ReleaseSize = 1024;
+		private final TreeArena arena;
+		private final TreeListener listener;
+		private final boolean release;
+		private boolean begun = false;
+
+		TreeEmitter(TreeArena arena, TreeListener listener, boolean release) {
+			this.arena = arena;
+			this.listener = listener;
+			this.release = release;
+		}
+
+		@Override
+		public void commit(int start, Symbol tag, Symbol label, ArenaTree subtree) {
+			if (!begun) {
+				listener.beginNode(tag == null ? Symbol.Null : tag, start);
+				begun = true;
+			}
+			if (label != null) {
+				listener.label(label);
+			}
+			arena.emit(subtree.getNode(), listener);
+		}
+
+		/* no node is alive but the trees in the memo table, if any */
+		@Override
+		public void committed(ParserContext<ArenaTree> ctx) {
+			if (release && arena.size() >= ReleaseSize && ctx.saveTree().getNode() == -1) {
+				arena.clear();
+				ctx.clearMemoTable();
+			}
+		}
+
+		void end(ArenaTree tree) {
+			if (begun) {
+				arena.emitSubNodes(tree.getNode(), listener);
+				listener.endNode(tree.getTag(), tree.getSourcePosition() + tree.getLength(), tree.getValue());
+			} else {
+				arena.emit(tree.getNode(), listener);
+			}
+		}
+	}
+
+	/**
+	 * Streams the events of each element of the stream (see parseStream()).
+	 * Each element is committed as soon as it is matched; its nodes are then
+	 * dropped from the arena, so retained memory is bounded by the largest
+	 * element.
+	 */
+
+	public final long parseStream(StreamSource s, TreeListener listener) {
+		TreeArena arena = new TreeArena();
+		return this.parseStream(s, new ArenaTree(arena), (tree) -> {
+			arena.emit(tree.getNode(), listener);
+			arena.clear();
+		});
+	}
+
 	/* Errors */
 
 	private boolean disabledUncosumed = false;
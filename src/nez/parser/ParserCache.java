@@ -0,0 +1,145 @@
+package nez.parser;
+
+import java.io.File;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+
+import nez.parser.vm.InstructionProfile;
+import nez.parser.vm.MozCode;
+import nez.parser.vm.MozReader;
+import nez.parser.vm.MozWriter;
+import nez.parser.vm.ParserMachineCompiler;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * ParserCache keeps the compiled code of grammars loaded from files, so that
+ * parsers for the same grammar file, start production and strategy share
+ * one ParserCode instead of optimizing and compiling the grammar again. An
+ * entry is keyed by the file path, the start production and
+ * ParserStrategy.toString(), and is valid while the file and the profiles
+ * that guide its compilation (grammar.memo and grammar.ngram) keep their
+ * modification times and sizes. Imported grammar files are not checked.
+ *
+ * With GrammarCache=dir, the code is also written to dir as .moz files, so
+ * that later processes load it instead of compiling the grammar.
+ *
+ * Cached code is shared by parsers, so it must not keep per-parse state.
+ * Code instrumented for profiling (Coverage, MemoProfiling, InstProfiling)
+ * is not cached since its counters belong to a strategy, nor is code for
+ * the classic MozMachine (Moz), whose instructions count memo hits in
+ * their MemoPoints.
+ */
+
+public final class ParserCache {
+
+	private final static class Entry {
+		final String stamp;
+		final ParserCode<?> code;
+
+		Entry(String stamp, ParserCode<?> code) {
+			this.stamp = stamp;
+			this.code = code;
+		}
+	}
+
+	private final static HashMap<String, Entry> entryMap = new HashMap<>();
+
+	public final static boolean isCacheable(String path, ParserStrategy strategy) {
+		return path != null && !strategy.Coverage && !strategy.MemoProfiling && !strategy.InstProfiling && !strategy.Moz;
+	}
+
+	private static String key(String path, String start, ParserStrategy strategy) {
+		return path + "\n" + start + "\n" + strategy;
+	}
+
+	/* the modification times and sizes of the grammar file and its profiles */
+	private static String stamp(String path, ParserStrategy strategy) {
+		StringBuilder sb = new StringBuilder();
+		for (String p : new String[] { path, MemoProfile.getProfilePath(path, strategy), InstructionProfile.getProfilePath(path, strategy) }) {
+			File file = new File(p);
+			sb.append(file.lastModified()).append(" ").append(file.length()).append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Returns the cached code, or null if the grammar file has to be loaded
+	 * and compiled.
+	 */
+
+	public final static synchronized ParserCode<?> get(String path, String start, ParserStrategy strategy) {
+		if (!isCacheable(path, strategy)) {
+			return null;
+		}
+		String key = key(path, start, strategy);
+		String stamp = stamp(path, strategy);
+		Entry e = entryMap.get(key);
+		if (e != null && e.stamp.equals(stamp)) {
+			return e.code;
+		}
+		File moz = mozFile(key, path, stamp, strategy);
+		if (moz != null && moz.isFile()) {
+			try {
+				MozCode code = new MozReader(strategy).read(moz.getPath());
+				ParserMachineCompiler.newCompiler(strategy).link(code, InstructionProfile.getProfilePath(path, strategy));
+				Verbose.println("loaded cached grammar: " + moz);
+				entryMap.put(key, new Entry(stamp, code));
+				return code;
+			} catch (IOException ex) {
+				Verbose.traceException(ex);
+			}
+		}
+		return null;
+	}
+
+	public final static synchronized void put(String path, String start, ParserStrategy strategy, ParserCode<?> code) {
+		if (!isCacheable(path, strategy)) {
+			return;
+		}
+		String key = key(path, start, strategy);
+		String stamp = stamp(path, strategy);
+		entryMap.put(key, new Entry(stamp, code));
+		File moz = mozFile(key, path, stamp, strategy);
+		if (moz != null && code instanceof MozCode) {
+			File dir = moz.getParentFile();
+			if (dir.isDirectory() || dir.mkdirs()) {
+				MozWriter w = new MozWriter();
+				((MozCode) code).encode(w);
+				w.writeTo(moz.getPath());
+			}
+		}
+	}
+
+	public final static synchronized void clear() {
+		entryMap.clear();
+	}
+
+	/**
+	 * Names the .moz file after the key and the state of the grammar file and
+	 * its profiles; null if there is no GrammarCache or no grammar file (e.g.,
+	 * a resource).
+	 */
+
+	private static File mozFile(String key, String path, String stamp, ParserStrategy strategy) {
+		if (strategy.GrammarCache == null || !new File(path).isFile()) {
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(StringUtils.toUtf8(key + "\n" + stamp));
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			sb.append(".moz");
+			return new File(strategy.GrammarCache, sb.toString());
+		} catch (NoSuchAlgorithmException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+	}
+
+}
@@ -3,15 +3,20 @@ package nez.parser;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 
 import nez.ast.Tree;
+import nez.lang.Expression;
 import nez.lang.Grammar;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
 import nez.lang.Production;
 import nez.lang.Productions;
 import nez.lang.Productions.NonterminalReference;
 import nez.lang.Typestate;
 import nez.lang.Typestate.TypestateAnalyzer;
+import nez.parser.vm.InstructionProfile;
 import nez.parser.vm.Moz86;
 import nez.parser.vm.MozInst;
 import nez.parser.vm.ParserMachineContext;
@@ -32,6 +37,17 @@ public abstract class ParserCode<T extends Instruction> {
 		this.RecognitionMode = typestate.inferTypestate(grammar.getStartProduction()) == Typestate.Unit;
 	}
 
+	/**
+	 * Used for code that is loaded without its source grammar (e.g., .moz).
+	 */
+
+	protected ParserCode(boolean recognitionMode, T[] initArray) {
+		this.grammar = null;
+		this.funcMap = new HashMap<>();
+		this.codeList = new UList<>(initArray);
+		this.RecognitionMode = recognitionMode;
+	}
+
 	public final Grammar getCompiledGrammar() {
 		return this.grammar;
 	}
@@ -65,10 +81,20 @@ public abstract class ParserCode<T extends Instruction> {
 		}
 	}
 
+	private InstructionProfile instProfile = null;
+
+	public final void setInstructionProfile(InstructionProfile instProfile) {
+		this.instProfile = instProfile;
+	}
+
+	public final InstructionProfile getInstructionProfile() {
+		return this.instProfile;
+	}
+
 	public final <E extends Tree<E>> E exec(ParserMachineContext<E> ctx) {
 		int ppos = (int) ctx.getPosition();
 		MozInst code = (MozInst) this.getStartInstruction();
-		boolean result = exec(ctx, code);
+		boolean result = instProfile != null ? instProfile.exec(ctx, code) : exec(ctx, code);
 		if (RecognitionMode && result) {
 			ctx.left = ctx.newTree(null, ppos, (int) ctx.getPosition(), 0, null);
 		}
@@ -133,7 +159,7 @@ public abstract class ParserCode<T extends Instruction> {
 		Typestate ts;
 		double score;
 
-		Score(Production p, Typestate ts, int score, double factor) {
+		Score(Production p, Typestate ts, double score, double factor) {
 			this.p = p;
 			this.ts = ts;
 			this.score = score * factor;
@@ -143,31 +169,82 @@ public abstract class ParserCode<T extends Instruction> {
 	public void initMemoPoint(ParserStrategy strategy) {
 		final TypestateAnalyzer typestate = Typestate.newAnalyzer();
 		memoPointMap = new HashMap<>();
+		if (strategy.Incremental) {
+			this.initIncrementalMemoPoint(strategy, typestate);
+			return;
+		}
 		NonterminalReference refs = Productions.countNonterminalReference(grammar);
+		MemoProfile profile = strategy.MemoProfiling ? null : MemoProfile.load(MemoProfile.getProfilePath(grammar, strategy));
 		ArrayList<Score> l = new ArrayList<Score>();
 		for (Production p : grammar) {
 			String uname = p.getUniqueName();
 			Typestate ts = typestate.inferTypestate(p);
 			if (ts != Typestate.TreeMutation) {
-				l.add(new Score(p, ts, refs.count(uname), ts == Typestate.Unit ? 1 : 1 * strategy.TreeFactor));
+				double score = profile == null ? refs.count(uname) : profile.reentries(uname);
+				l.add(new Score(p, ts, score, ts == Typestate.Unit ? 1 : 1 * strategy.TreeFactor));
 			}
 		}
 		int c = 0;
 		int limits = (int) (l.size() * strategy.MemoLimit);
-		Collections.sort(l, (s, s2) -> (int) (s2.score - s.score));
+		/* with a profile, any measured re-entry is worth memoizing */
+		double threshold = profile == null ? 3 * strategy.TreeFactor : 1;
+		Collections.sort(l, (s, s2) -> Double.compare(s2.score, s.score));
 		for (Score s : l) {
 			c++;
-			if (c < limits && s.score >= 3 * strategy.TreeFactor) {
+			if (c < limits && s.score >= threshold) {
 				Production p = s.p;
 				String uname = p.getUniqueName();
 				MemoPoint memoPoint = new MemoPoint(this.memoPointMap.size(), uname, p.getExpression(), s.ts, false);
-				this.memoPointMap.put(uname, memoPoint);
+				this.addMemoPoint(memoPoint, strategy);
 				Verbose.println("MomoPoint(%d): %s score=%f", memoPoint.id, uname, s.score);
 			}
 		}
 
 	}
 
+	/*
+	 * Incremental parsing reuses the results of all productions that an edit
+	 * has not touched, so every production is memoized except those that
+	 * rewrite the tree or depend on the symbol table, whose results are not
+	 * determined by the input bytes alone.
+	 */
+
+	private void initIncrementalMemoPoint(ParserStrategy strategy, TypestateAnalyzer typestate) {
+		for (Production p : grammar) {
+			String uname = p.getUniqueName();
+			Typestate ts = typestate.inferTypestate(p);
+			if (ts != Typestate.TreeMutation && !isStateful(p.getExpression(), new HashSet<String>())) {
+				MemoPoint memoPoint = new MemoPoint(this.memoPointMap.size(), uname, p.getExpression(), ts, false);
+				this.addMemoPoint(memoPoint, strategy);
+				Verbose.println("MomoPoint(%d): %s incremental", memoPoint.id, uname);
+			}
+		}
+	}
+
+	private static boolean isStateful(Expression e, HashSet<String> visited) {
+		if (e instanceof NonTerminal) {
+			Production p = ((NonTerminal) e).getProduction();
+			return p != null && visited.add(p.getUniqueName()) && isStateful(p.getExpression(), visited);
+		}
+		if (e instanceof Nez.Function && !(e instanceof Nez.IfCondition) && !(e instanceof Nez.OnCondition)) {
+			return true;
+		}
+		for (Expression sub : e) {
+			if (isStateful(sub, visited)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	public final void addMemoPoint(MemoPoint memoPoint, ParserStrategy strategy) {
+		if (memoPointMap == null) {
+			memoPointMap = new HashMap<>();
+		}
+		memoPoint.setAdaptive(strategy.AdaptiveMemo && !strategy.Incremental);
+		this.memoPointMap.put(memoPoint.label, memoPoint);
+	}
+
 	public final MemoPoint getMemoPoint(String uname) {
 		if (memoPointMap != null) {
 			return this.memoPointMap.get(uname);
@@ -205,4 +282,29 @@ public abstract class ParserCode<T extends Instruction> {
 		return next;
 	}
 
+	/* MemoProfile */
+	private MemoProfile memoProfile = null;
+
+	public void initMemoProfiling(ParserStrategy strategy) {
+		if (strategy.MemoProfiling) {
+			String path = MemoProfile.getProfilePath(grammar, strategy);
+			if (path == null) {
+				strategy.reportWarning(null, "no memo profile path; use MemoProfile=file");
+				return;
+			}
+			memoProfile = new MemoProfile(path);
+		}
+	}
+
+	public MozInst compileMemoProfile(Production p, MozInst next) {
+		if (memoProfile != null) {
+			return new Moz86.Trap(memoProfile.getId(p.getUniqueName()), next);
+		}
+		return next;
+	}
+
+	public final MemoProfile getMemoProfile() {
+		return this.memoProfile;
+	}
+
 }
@@ -1,5 +1,7 @@
 package nez.parser;
 
+import java.util.Arrays;
+
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
@@ -32,6 +34,52 @@ public class ParserContext<T extends Tree<T>> {
 	private byte[] inputs;
 	private int length;
 
+	/**
+	 * Resets all parsing states so that this context can be reused for
+	 * another input. The tree log, the symbol table and the memo table keep
+	 * their allocated arrays.
+	 */
+	protected void reset(Source s, T proto) {
+		this.source = s;
+		this.resetState(proto);
+		this.clearMemoTable();
+		this.clearAdaptiveMemo();
+	}
+
+	/**
+	 * Drops the references to the last input, its trees and the memoized
+	 * results, so that a pooled context does not keep them alive until it is
+	 * reused.
+	 */
+	protected void release() {
+		this.source = null;
+		this.left = null;
+		for (TreeLog l : this.logs) {
+			l.value = null;
+			l.tree = null;
+		}
+		this.unused_log = 0;
+		this.clearMemoTable();
+	}
+
+	/**
+	 * Resets the parsing states except the memo table, whose entries remain
+	 * valid as long as the source is the same.
+	 */
+	protected final void resetState(T proto) {
+		this.pos = 0;
+		this.left = proto;
+		for (int i = 0; i < this.unused_log; i++) {
+			this.logs[i].value = null;
+			this.logs[i].tree = null;
+		}
+		this.unused_log = 0;
+		this.backSymbolPoint(0);
+		this.stateValue = 0;
+		this.stateCount = 0;
+		this.count = 0;
+	}
+
 	public boolean eof() {
 		return !(pos < length);
 	}
@@ -66,6 +114,27 @@ public class ParserContext<T extends Tree<T>> {
 		return true;
 	}
 
+	/* repetitions of a byte, a byte set, or a string */
+
+	public void skipWhile(boolean[] byteSet) {
+		while (pos < this.length && byteSet[this.inputs[pos] & 0xff]) {
+			pos++;
+		}
+	}
+
+	public void skipWhile(int byteChar) {
+		while (pos < this.length && (this.inputs[pos] & 0xff) == byteChar) {
+			pos++;
+		}
+	}
+
+	public void skipWhile(byte[] text) {
+		if (text.length > 0) {
+			while (this.match(text)) {
+			}
+		}
+	}
+
 	public byte[] subByte(int startIndex, int endIndex) {
 		byte[] b = new byte[endIndex - startIndex];
 		System.arraycopy(this.inputs, (startIndex), b, 0, b.length);
@@ -183,6 +252,52 @@ public class ParserContext<T extends Tree<T>> {
 		}
 	}
 
+	/**
+	 * Removes the subtrees linked so far to the node under construction from
+	 * the tree log and passes them to the committer, if that node is the
+	 * only one under construction. The caller ensures that no backtracking
+	 * can discard the subtrees.
+	 */
+
+	@SuppressWarnings("unchecked")
+	protected final boolean commitTree(TreeCommitter<T> committer) {
+		if (this.unused_log == 0 || logs[0].op != Operation.New) {
+			return false;
+		}
+		Symbol tag = null;
+		for (int i = 1; i < unused_log; i++) {
+			if (logs[i].op == Operation.New) {
+				return false;
+			}
+			if (logs[i].op == Operation.Tag) {
+				tag = (Symbol) logs[i].value;
+			}
+		}
+		int n = 1;
+		for (int i = 1; i < unused_log; i++) {
+			TreeLog l = logs[i];
+			if (l.op == Operation.Link) {
+				committer.commit(logs[0].pos, tag, (Symbol) l.value, (T) l.tree);
+				l.value = null;
+				l.tree = null;
+			} else {
+				logs[i] = logs[n];
+				logs[n++] = l;
+			}
+		}
+		this.unused_log = n;
+		committer.committed(this);
+		return true;
+	}
+
+	public static interface TreeCommitter<T extends Tree<T>> {
+		/* a subtree of the node starting at start, whose tag is so far tag */
+		public void commit(int start, Symbol tag, Symbol label, T subtree);
+
+		/* all the subtrees are passed */
+		public void committed(ParserContext<T> ctx);
+	}
+
 	public final T saveTree() {
 		return this.left;
 	}
@@ -202,11 +317,25 @@ public class ParserContext<T extends Tree<T>> {
 	private int stateValue = 0;
 	private int stateCount = 0;
 
+	/*
+	 * The entries form a stack that is cut back on backtracking. To avoid
+	 * scanning it, each table keeps the index of its top entry and of its
+	 * last mask, and entries are chained in hash buckets with the newest
+	 * entry first. Every entry remembers what it overwrote, so that
+	 * backSymbolPoint() restores the index by popping entries in reverse.
+	 */
+	private int[] tops = new int[0]; // Symbol.id() -> top entry
+	private int[] masks = new int[0]; // Symbol.id() -> last mask entry
+	private int[] buckets = new int[0]; // hash -> newest entry
+
 	static final class SymbolTableEntry {
 		int stateValue;
 		Symbol table;
 		long code;
 		byte[] symbol; // if uft8 is null, hidden
+		int prevTop;
+		int prevMask;
+		int nextInBucket;
 
 		// @Override
 		// public String toString() {
@@ -242,20 +371,68 @@ public class ParserContext<T extends Tree<T>> {
 		return false;
 	}
 
+	private int bucket(Symbol table, long code) {
+		long h = code * 31 + table.id();
+		return (int) (h ^ (h >>> 32)) & (buckets.length - 1);
+	}
+
+	private int top(Symbol table) {
+		int id = table.id();
+		return id < tops.length ? tops[id] : -1;
+	}
+
+	private int lastMask(Symbol table) {
+		int id = table.id();
+		return id < masks.length ? masks[id] : -1;
+	}
+
+	private void ensureTableIndex(Symbol table) {
+		int id = table.id();
+		if (!(id < tops.length)) {
+			int size = Math.max(id + 1, tops.length * 2);
+			int[] newtops = new int[size];
+			int[] newmasks = new int[size];
+			System.arraycopy(tops, 0, newtops, 0, tops.length);
+			System.arraycopy(masks, 0, newmasks, 0, masks.length);
+			for (int i = tops.length; i < size; i++) {
+				newtops[i] = -1;
+				newmasks[i] = -1;
+			}
+			this.tops = newtops;
+			this.masks = newmasks;
+		}
+	}
+
+	private void rehash() {
+		this.buckets = new int[tables.length];
+		for (int i = 0; i < buckets.length; i++) {
+			buckets[i] = -1;
+		}
+		for (int i = 0; i < tableSize; i++) {
+			SymbolTableEntry entry = tables[i];
+			int h = bucket(entry.table, entry.code);
+			entry.nextInBucket = buckets[h];
+			buckets[h] = i;
+		}
+	}
+
 	private void push(Symbol table, long code, byte[] utf8) {
 		if (!(tableSize < tables.length)) {
-			SymbolTableEntry[] newtable = new SymbolTableEntry[tables.length + 256];
+			SymbolTableEntry[] newtable = new SymbolTableEntry[Math.max(256, tables.length * 2)];
 			System.arraycopy(this.tables, 0, newtable, 0, tables.length);
 			for (int i = tables.length; i < newtable.length; i++) {
 				newtable[i] = new SymbolTableEntry();
 			}
 			this.tables = newtable;
+			this.rehash();
 		}
-		SymbolTableEntry entry = tables[tableSize];
+		int index = tableSize;
+		SymbolTableEntry entry = tables[index];
 		tableSize++;
 		if (entry.table == table && equalsBytes(entry.symbol, utf8)) {
 			// reuse state value
 			entry.code = code;
+			entry.symbol = utf8;
 			this.stateValue = entry.stateValue;
 		} else {
 			entry.table = table;
@@ -266,6 +443,17 @@ public class ParserContext<T extends Tree<T>> {
 			this.stateValue = stateCount;
 			entry.stateValue = stateCount;
 		}
+		ensureTableIndex(table);
+		int id = table.id();
+		entry.prevTop = tops[id];
+		entry.prevMask = masks[id];
+		tops[id] = index;
+		if (utf8 == NullSymbol) {
+			masks[id] = index;
+		}
+		int h = bucket(table, code);
+		entry.nextInBucket = buckets[h];
+		buckets[h] = index;
 	}
 
 	public final int saveSymbolPoint() {
@@ -274,6 +462,13 @@ public class ParserContext<T extends Tree<T>> {
 
 	public final void backSymbolPoint(int savePoint) {
 		if (this.tableSize != savePoint) {
+			for (int i = this.tableSize - 1; i >= savePoint; i--) {
+				SymbolTableEntry entry = tables[i];
+				int id = entry.table.id();
+				tops[id] = entry.prevTop;
+				masks[id] = entry.prevMask;
+				buckets[bucket(entry.table, entry.code)] = entry.nextInBucket;
+			}
 			this.tableSize = savePoint;
 			if (this.tableSize == 0) {
 				this.stateValue = 0;
@@ -284,8 +479,18 @@ public class ParserContext<T extends Tree<T>> {
 	}
 
 	public final void addSymbol(Symbol table, int ppos) {
-		byte[] b = this.subByte(ppos, pos);
-		push(table, hash(b, 0, b.length), b);
+		long code = hashInputs(ppos, pos);
+		byte[] b = null;
+		if (tableSize < tables.length) {
+			SymbolTableEntry entry = tables[tableSize];
+			if (entry.table == table && entry.code == code && equalsInputs(ppos, pos, entry.symbol)) {
+				b = entry.symbol; // reuse the bytes of a backtracked entry
+			}
+		}
+		if (b == null) {
+			b = this.subByte(ppos, pos);
+		}
+		push(table, code, b);
 	}
 
 	public final void addSymbolMask(Symbol table) {
@@ -293,42 +498,36 @@ public class ParserContext<T extends Tree<T>> {
 	}
 
 	public final boolean exists(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				return entry.symbol != NullSymbol;
-			}
-		}
-		return false;
+		int top = top(table);
+		return top != -1 && tables[top].symbol != NullSymbol;
 	}
 
-	public final boolean existsSymbol(Symbol table, byte[] symbol) {
-		long code = hash(symbol, 0, symbol.length);
-		for (int i = tableSize - 1; i >= 0; i--) {
+	/* the newest live entry of the table with the symbol, or -1 */
+	private int find(Symbol table, long code, byte[] symbol, int ppos) {
+		if (buckets.length == 0) {
+			return -1;
+		}
+		for (int i = buckets[bucket(table, code)]; i != -1; i = tables[i].nextInBucket) {
 			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (entry.code == code && equalsBytes(entry.symbol, symbol)) {
-					return true;
+			if (entry.table == table && entry.code == code && entry.symbol != NullSymbol) {
+				if (symbol != null ? equalsBytes(entry.symbol, symbol) : equalsInputs(ppos, pos, entry.symbol)) {
+					return i > lastMask(table) ? i : -1; // masked
 				}
 			}
 		}
-		return false;
+		return -1;
+	}
+
+	public final boolean existsSymbol(Symbol table, byte[] symbol) {
+		return find(table, hash(symbol, 0, symbol.length), symbol, 0) != -1;
 	}
 
 	public final boolean matchSymbol(Symbol table) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				return this.match(entry.symbol);
-			}
+		int top = top(table);
+		if (top == -1 || tables[top].symbol == NullSymbol) {
+			return false; // masked
 		}
-		return false;
+		return this.match(tables[top].symbol);
 	}
 
 	private final long hashInputs(int ppos, int pos) {
@@ -352,32 +551,15 @@ public class ParserContext<T extends Tree<T>> {
 	}
 
 	public final boolean equals(Symbol table, int ppos) {
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				return equalsInputs(ppos, pos, entry.symbol);
-			}
+		int top = top(table);
+		if (top == -1 || tables[top].symbol == NullSymbol) {
+			return false; // masked
 		}
-		return false;
+		return equalsInputs(ppos, pos, tables[top].symbol);
 	}
 
 	public boolean contains(Symbol table, int ppos) {
-		long code = hashInputs(ppos, pos);
-		for (int i = tableSize - 1; i >= 0; i--) {
-			SymbolTableEntry entry = tables[i];
-			if (entry.table == table) {
-				if (entry.symbol == NullSymbol) {
-					return false; // masked
-				}
-				if (code == entry.code && equalsInputs(ppos, pos, entry.symbol)) {
-					return true;
-				}
-			}
-		}
-		return false;
+		return find(table, hashInputs(ppos, pos), null, ppos) != -1;
 	}
 
 	// Counter ------------------------------------------------------------
@@ -420,6 +602,7 @@ public class ParserContext<T extends Tree<T>> {
 	}
 
 	private MemoEntry<T>[] memoArray = null;
+	private PackedMemoTable packedMemo = null;
 	private int shift = 0;
 
 	@SuppressWarnings("unchecked")
@@ -430,16 +613,138 @@ public class ParserContext<T extends Tree<T>> {
 			this.memoArray[i].key = -1;
 			this.memoArray[i].result = NotFound;
 		}
+		this.packedMemo = null;
 		this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
 		// this.initStat();
 	}
 
+	/**
+	 * Drops all memoized results, e.g., when their trees are released.
+	 */
+
+	public final void clearMemoTable() {
+		if (this.memoArray != null) {
+			for (MemoEntry<T> m : this.memoArray) {
+				m.key = -1;
+				m.memoTree = null;
+				m.result = NotFound;
+			}
+		}
+		if (this.packedMemo != null) {
+			this.packedMemo.clear();
+		}
+	}
+
+	public void initMemoTable(ParserStrategy strategy, int n) {
+		if (strategy.PackedMemoTable) {
+			this.memoArray = null;
+			this.packedMemo = new PackedMemoTable(strategy.SlidingWindow, n, strategy.MemoAssociativity);
+			this.shift = (int) (Math.log(n) / Math.log(2.0)) + 1;
+		} else {
+			this.initMemoTable(strategy.SlidingWindow, n);
+		}
+		if (strategy.AdaptiveMemo && !strategy.Incremental) {
+			this.initAdaptiveMemo(n, strategy.MemoReactivation);
+		} else {
+			this.memoMiss = null;
+		}
+	}
+
+	public void recordMemoTable(ParserProfiler prof) {
+		if (this.packedMemo != null) {
+			this.packedMemo.record(prof);
+		}
+		if (this.memoMiss != null) {
+			int deactivated = 0;
+			for (boolean off : this.memoOff) {
+				deactivated += off ? 1 : 0;
+			}
+			prof.setCount("M.MemoPoint.Deactivated", deactivated);
+		}
+	}
+
+	/* Adaptive memoization */
+
+	private int[] memoHit = null;
+	private int[] memoMiss = null;
+	private int[] memoSkipped = null;
+	private boolean[] memoOff = null;
+	private int memoReactivation = 0;
+
+	/*
+	 * The counters belong to the context, not to the shared MemoPoint, so
+	 * that a memo point turned off for one input is on again for the next.
+	 */
+	private void initAdaptiveMemo(int n, int reactivation) {
+		this.memoHit = new int[n];
+		this.memoMiss = new int[n];
+		this.memoSkipped = new int[n];
+		this.memoOff = new boolean[n];
+		this.memoReactivation = reactivation;
+	}
+
+	private void clearAdaptiveMemo() {
+		if (this.memoMiss != null) {
+			Arrays.fill(this.memoHit, 0);
+			Arrays.fill(this.memoMiss, 0);
+			Arrays.fill(this.memoSkipped, 0);
+			Arrays.fill(this.memoOff, false);
+		}
+	}
+
+	public final boolean isMemoActivated(int memoPoint) {
+		return this.memoOff == null || !this.memoOff[memoPoint];
+	}
+
+	public final void memoHit(int memoPoint) {
+		if (this.memoHit != null) {
+			this.memoHit[memoPoint]++;
+		}
+	}
+
+	/**
+	 * Counts a miss and deactivates the memo point when the hit ratio turns
+	 * out to be too poor to pay for storing entries.
+	 */
+
+	public final void memoMiss(int memoPoint) {
+		if (this.memoMiss != null) {
+			int miss = ++this.memoMiss[memoPoint];
+			if (MemoPoint.checkDeactivation(this.memoHit[memoPoint], miss)) {
+				this.memoOff[memoPoint] = true;
+				this.memoSkipped[memoPoint] = 0;
+			}
+		}
+	}
+
+	/**
+	 * Counts a lookup skipped while deactivated. After MemoReactivation
+	 * skips, the counters are reset and the memo point is activated again
+	 * to probe whether the input has changed its character.
+	 */
+
+	public final void memoSkip(int memoPoint) {
+		if (this.memoReactivation > 0 && ++this.memoSkipped[memoPoint] >= this.memoReactivation) {
+			this.memoHit[memoPoint] = 0;
+			this.memoMiss[memoPoint] = 0;
+			this.memoOff[memoPoint] = false;
+		}
+	}
+
 	final long longkey(long pos, int memoPoint, int shift) {
 		return ((pos << shift) | memoPoint) & Long.MAX_VALUE;
 	}
 
-	public final int lookupMemo(int memoPoint) {
+	public int lookupMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			int slot = packedMemo.find(key);
+			if (slot >= 0) {
+				this.pos += packedMemo.consumed[slot];
+				return packedMemo.result[slot];
+			}
+			return NotFound;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		if (m.key == key) {
@@ -449,8 +754,18 @@ public class ParserContext<T extends Tree<T>> {
 		return NotFound;
 	}
 
-	public final int lookupTreeMemo(int memoPoint) {
+	@SuppressWarnings("unchecked")
+	public int lookupTreeMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			int slot = packedMemo.find(key);
+			if (slot >= 0) {
+				this.pos += packedMemo.consumed[slot];
+				this.left = (T) packedMemo.trees[slot];
+				return packedMemo.result[slot];
+			}
+			return NotFound;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		if (m.key == key) {
@@ -463,6 +778,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoSucc(int memoPoint, int ppos) {
 		long key = longkey(ppos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, pos - ppos, SuccFound, left, -1);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -475,6 +794,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoTreeSucc(int memoPoint, int ppos) {
 		long key = longkey(ppos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, pos - ppos, SuccFound, left, -1);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -487,6 +810,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoFail(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, 0, FailFound, left, -1);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -500,6 +827,14 @@ public class ParserContext<T extends Tree<T>> {
 
 	public final int lookupStateMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			int slot = packedMemo.find(key);
+			if (slot >= 0) {
+				this.pos += packedMemo.consumed[slot];
+				return packedMemo.result[slot];
+			}
+			return NotFound;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		if (m.key == key) {
@@ -509,8 +844,18 @@ public class ParserContext<T extends Tree<T>> {
 		return NotFound;
 	}
 
+	@SuppressWarnings("unchecked")
 	public final int lookupStateTreeMemo(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			int slot = packedMemo.find(key, this.stateValue);
+			if (slot >= 0) {
+				this.pos += packedMemo.consumed[slot];
+				this.left = (T) packedMemo.trees[slot];
+				return packedMemo.result[slot];
+			}
+			return NotFound;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		if (m.key == key && m.stateValue == this.stateValue) {
@@ -523,6 +868,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoStateSucc(int memoPoint, int ppos) {
 		long key = longkey(ppos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, pos - ppos, SuccFound, left, this.stateValue);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -535,6 +884,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoStateTreeSucc(int memoPoint, int ppos) {
 		long key = longkey(ppos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, pos - ppos, SuccFound, left, this.stateValue);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -547,6 +900,10 @@ public class ParserContext<T extends Tree<T>> {
 
 	public void memoStateFail(int memoPoint) {
 		long key = longkey(pos, memoPoint, shift);
+		if (packedMemo != null) {
+			packedMemo.store(key, 0, FailFound, left, this.stateValue);
+			return;
+		}
 		int hash = (int) (key % memoArray.length);
 		MemoEntry<T> m = this.memoArray[hash];
 		m.key = key;
@@ -34,6 +34,9 @@ public class ParserOptimizer {
 	public Grammar optimize(Production start, ParserStrategy strategy, TreeMap<String, Boolean> boolMap) {
 		this.strategy = strategy;
 		this.grammar = new Grammar();
+		if (start.getGrammar().getURN() != null) {
+			this.grammar.setURN(start.getGrammar().getURN());
+		}
 
 		long t1 = System.nanoTime();
 		new CheckerVisitor().check(start, boolMap);
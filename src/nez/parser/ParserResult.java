@@ -0,0 +1,67 @@
+package nez.parser;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.ast.Tree;
+import nez.util.ConsoleUtils;
+import nez.util.UList;
+
+/**
+ * ParserResult holds the tree and the errors of a single input. Unlike
+ * Parser.getErrors(), it is owned by the caller, so results produced on
+ * different threads never share mutable state.
+ */
+
+public final class ParserResult<T extends Tree<T>> {
+	private final Source source;
+	private T tree;
+	private UList<SourceError> errors = null;
+
+	public ParserResult(Source source) {
+		this.source = source;
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	public final T getTree() {
+		return this.tree;
+	}
+
+	final void setTree(T tree) {
+		this.tree = tree;
+	}
+
+	/* the memo table of an incremental parse, consumed by Parser.reparse() */
+	IncrementalMemo<T> memo = null;
+
+	final void perror(long pos, String message) {
+		if (this.errors == null) {
+			this.errors = new UList<SourceError>(new SourceError[2]);
+		}
+		errors.add(new SourceError(source, pos, message));
+	}
+
+	public final boolean hasErrors() {
+		return errors != null;
+	}
+
+	public final List<SourceError> getErrors() {
+		return errors == null ? new ArrayList<SourceError>() : this.errors;
+	}
+
+	public final boolean showErrors() {
+		if (errors != null) {
+			for (SourceError e : errors) {
+				ConsoleUtils.println(e.toString());
+			}
+			return true;
+		}
+		return false;
+	}
+
+}
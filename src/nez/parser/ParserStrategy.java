@@ -32,11 +32,14 @@ public class ParserStrategy {
 	public boolean Ostring = true;
 	public int ChoicePrediction = 2;
 	public boolean Odfa = false;
+	public boolean Ofuse = false;
 
 	public boolean Oorder = true;
 	public boolean Detree = false;
 	/* Classic */
 	public boolean Moz = false;
+	public boolean JIT = false;
+	public String GrammarCache = null;
 
 	/* PackratParsing */
 	public boolean PackratParsing = true;
@@ -44,10 +47,19 @@ public class ParserStrategy {
 	public double TreeFactor = 3.00;
 	public double MemoLimit = 0.5;
 	public boolean StatefulPackratParsing = false;
+	public boolean PackedMemoTable = false;
+	public int MemoAssociativity = 1;
+	public boolean AdaptiveMemo = false;
+	public int MemoReactivation = 0;
+	public boolean MemoProfiling = false;
+	public String MemoProfile = null;
+	public boolean Incremental = false;
 
 	/* Profiling */
 	public boolean Coverage = false;
 	public boolean Profiling = false;
+	public boolean InstProfiling = false;
+	public String InstProfile = null;
 	public boolean Wnone = false;
 	public boolean Wall = false;
 
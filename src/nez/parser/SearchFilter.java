@@ -0,0 +1,102 @@
+package nez.parser;
+
+import java.io.ByteArrayOutputStream;
+
+import nez.ast.Source;
+import nez.lang.ByteAcceptance;
+import nez.lang.Expression;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+
+/**
+ * SearchFilter skips the positions where an expression cannot match.
+ * ByteAcceptance gives the bytes that can start a match, so the other bytes
+ * are skipped in bulk by Source.skipWhile(). If every match starts with the
+ * same literal (e.g., "function" in Function = "function" S* ...), the
+ * literal is also compared before the position is passed to the parser.
+ */
+
+final class SearchFilter {
+	private final boolean[] skipSet = new boolean[256];
+	private final byte[] prefix;
+
+	/* for code without its grammar; every position is tried */
+	SearchFilter() {
+		this.prefix = null;
+	}
+
+	SearchFilter(Expression e) {
+		for (int c = 1; c < 256; c++) {
+			this.skipSet[c] = ByteAcceptance.acc(e, c) == ByteAcceptance.Reject;
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		prefix(e, bytes, 0);
+		this.prefix = bytes.size() > 1 ? bytes.toByteArray() : null;
+	}
+
+	/* appends the bytes every match starts with; returns true if e is exactly them */
+	private static boolean prefix(Expression e, ByteArrayOutputStream bytes, int depth) {
+		if (e instanceof NonTerminal) {
+			return depth < 16 && prefix(((NonTerminal) e).deReference(), bytes, depth + 1);
+		}
+		if (e instanceof Nez.Byte) {
+			int c = ((Nez.Byte) e).byteChar;
+			if (c == 0) {
+				return false; // the end of input
+			}
+			bytes.write(c);
+			return true;
+		}
+		if (e instanceof Nez.MultiByte) {
+			for (byte b : ((Nez.MultiByte) e).byteSeq) {
+				if (b == 0) {
+					return false;
+				}
+				bytes.write(b);
+			}
+			return true;
+		}
+		if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+			for (Expression sub : e) {
+				if (!prefix(sub, bytes, depth)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		if (e instanceof Nez.LinkTree || e instanceof Nez.Detree) {
+			return prefix(e.get(0), bytes, depth);
+		}
+		if (e instanceof Nez.OneMore) {
+			prefix(e.get(0), bytes, depth);
+			return false;
+		}
+		return e instanceof Nez.BeginTree || e instanceof Nez.EndTree || e instanceof Nez.Tag || e instanceof Nez.Replace;
+	}
+
+	/**
+	 * Returns the first position at or after pos where a match may start,
+	 * or the length of the source.
+	 */
+
+	final long next(Source s, long pos) {
+		long length = s.length();
+		while (true) {
+			pos = s.skipWhile(pos, skipSet);
+			if (pos >= length || prefix == null || s.match(pos, prefix)) {
+				return pos;
+			}
+			pos++;
+		}
+	}
+
+	@Override
+	public String toString() {
+		int c = 0;
+		for (boolean b : skipSet) {
+			c += b ? 0 : 1;
+		}
+		return "first=" + c + (prefix == null ? "" : " prefix=" + prefix.length);
+	}
+
+}
@@ -4,8 +4,9 @@ package nez.parser;
 public class TerminationException extends Exception {
 	public boolean status;
 
+	/* thrown once per parse; no stack trace is needed */
 	public TerminationException(boolean status) {
-		super();
+		super(null, null, false, false);
 		this.status = status;
 	}
 }
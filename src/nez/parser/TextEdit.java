@@ -0,0 +1,32 @@
+package nez.parser;
+
+/**
+ * TextEdit replaces the bytes in [start, end) with newLength bytes. Offsets
+ * are byte positions in the text as it is before the edit; a sequence of
+ * edits is applied in order, each to the result of the previous one.
+ */
+
+public final class TextEdit {
+	public final int start;
+	public final int end;
+	public final int newLength;
+
+	public TextEdit(long start, long end, int newLength) {
+		if (start < 0 || end < start || newLength < 0) {
+			throw new IllegalArgumentException("invalid edit: [" + start + "," + end + ") " + newLength);
+		}
+		this.start = (int) start;
+		this.end = (int) end;
+		this.newLength = newLength;
+	}
+
+	public final int delta() {
+		return this.newLength - (this.end - this.start);
+	}
+
+	@Override
+	public String toString() {
+		return "[" + start + "," + end + ")+" + newLength;
+	}
+
+}
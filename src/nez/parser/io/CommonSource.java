@@ -5,6 +5,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
 
 import nez.ast.Source;
 import nez.util.FileBuilder;
@@ -44,18 +45,104 @@ public abstract class CommonSource implements Source {
 		return new StringSource(this.getResourceName(), this.linenum(startIndex), subByte(startIndex, endIndex), false);
 	}
 
+	/* bulk scanning; sources holding their bytes override these */
+
 	@Override
-	public abstract long linenum(long pos);
+	public long skipWhile(long pos, boolean[] byteSet) {
+		while (!this.eof(pos) && byteSet[this.byteAt(pos)]) {
+			pos++;
+		}
+		return pos;
+	}
 
 	@Override
-	public final int column(long pos) {
-		int count = 0;
-		for (long p = pos - 1; p >= 0; p--) {
-			if (this.byteAt(pos) == '\n') {
+	public long skipWhile(long pos, int byteChar) {
+		while (!this.eof(pos) && this.byteAt(pos) == byteChar) {
+			pos++;
+		}
+		return pos;
+	}
+
+	@Override
+	public long skipWhile(long pos, byte[] text) {
+		if (text.length > 0) {
+			while (this.match(pos, text)) {
+				pos += text.length;
+			}
+		}
+		return pos;
+	}
+
+	private final static long Ones = 0x0101010101010101L;
+
+	/**
+	 * Skips the bytes equal to byteChar in buf[pos, end), comparing eight
+	 * bytes at a time. buf must be in little-endian order.
+	 */
+
+	protected final static int skipByte(ByteBuffer buf, int pos, int end, int byteChar) {
+		long pattern = (byteChar & 0xff) * Ones;
+		while (pos + 8 <= end) {
+			long diff = buf.getLong(pos) ^ pattern;
+			if (diff != 0) {
+				return pos + (Long.numberOfTrailingZeros(diff) >>> 3);
+			}
+			pos += 8;
+		}
+		while (pos < end && (buf.get(pos) & 0xff) == byteChar) {
+			pos++;
+		}
+		return pos;
+	}
+
+	/* line index */
+
+	private final static int LineBlockSize = 64 * 1024;
+	private LineIndex lineIndex = null;
+
+	/**
+	 * Indexes lines up to pos. The default reads the source in blocks;
+	 * sources holding their bytes in memory index them in one pass.
+	 */
+
+	protected void indexLines(LineIndex index, long pos) {
+		long end = Math.min(this.length(), Math.max(pos, index.scanned() + LineBlockSize));
+		while (index.scanned() < end) {
+			long start = index.scanned();
+			byte[] b = this.subByte(start, Math.min(end, start + LineBlockSize));
+			if (b.length == 0) {
 				break;
 			}
+			index.add(b, 0, b.length);
+		}
+	}
+
+	private LineIndex getLineIndex(long pos) {
+		if (this.lineIndex == null) {
+			this.lineIndex = new LineIndex(this.startLineNum, 0);
+		}
+		if (this.lineIndex.scanned() < pos) {
+			this.indexLines(this.lineIndex, pos);
 		}
-		return count;
+		return this.lineIndex;
+	}
+
+	/**
+	 * Restarts the line index at position 0 with the given line and column.
+	 */
+
+	protected final void resetLineIndex(long linenum, int column) {
+		this.lineIndex = new LineIndex(linenum, column);
+	}
+
+	@Override
+	public final long linenum(long pos) {
+		return getLineIndex(pos).linenum(pos);
+	}
+
+	@Override
+	public final int column(long pos) {
+		return getLineIndex(pos).column(pos);
 	}
 
 	/* handling input stream */
@@ -184,6 +271,12 @@ public abstract class CommonSource implements Source {
 		return new StringSource(resource, linenum, str);
 	}
 
+	/**
+	 * Files at least this large are memory-mapped instead of being paged
+	 * through a RandomAccessFile.
+	 */
+	public static long MappedFileThreshold = 16L * 1024 * 1024;
+
 	public final static Source newFileSource(String fileName) throws IOException {
 		File f = new File(fileName);
 		if (!f.isFile()) {
@@ -204,6 +297,9 @@ public abstract class CommonSource implements Source {
 				return new StringSource(fileName, 1, builder.toString());
 			}
 		}
+		if (f.length() >= MappedFileThreshold) {
+			return new MappedFileSource(fileName);
+		}
 		return new FileSource(fileName);
 	}
 }
@@ -16,7 +16,6 @@ public class FileSource extends CommonSource {
 	private long fileLength = 0;
 	private long buffer_offset;
 	private byte[] buffer;
-	private long lines[];
 
 	private final int FifoSize = 8;
 	private LinkedHashMap<Long, byte[]> fifoMap = null;
@@ -28,8 +27,6 @@ public class FileSource extends CommonSource {
 			this.fileLength = this.file.length();
 
 			this.buffer_offset = 0;
-			lines = new long[((int) this.fileLength / PageSize) + 1];
-			lines[0] = 1;
 			if (this.FifoSize > 0) {
 				this.fifoMap = new LinkedHashMap<Long, byte[]>(FifoSize) { // FIFO
 					private static final long serialVersionUID = 6725894996600788028L;
@@ -123,6 +120,42 @@ public class FileSource extends CommonSource {
 		return true;
 	}
 
+	@Override
+	public final long skipWhile(long pos, boolean[] byteSet) {
+		while (pos < this.fileLength) {
+			this.byteAt(pos); // loads the page
+			int offset = (int) (pos - this.buffer_offset);
+			int end = (int) Math.min(PageSize, this.fileLength - this.buffer_offset);
+			int i = offset;
+			while (i < end && byteSet[this.buffer[i] & 0xff]) {
+				i++;
+			}
+			pos += i - offset;
+			if (i < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
+	@Override
+	public final long skipWhile(long pos, int byteChar) {
+		while (pos < this.fileLength) {
+			this.byteAt(pos); // loads the page
+			int offset = (int) (pos - this.buffer_offset);
+			int end = (int) Math.min(PageSize, this.fileLength - this.buffer_offset);
+			int i = offset;
+			while (i < end && (this.buffer[i] & 0xff) == byteChar) {
+				i++;
+			}
+			pos += i - offset;
+			if (i < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
 	@Override
 	public final String subString(long startIndex, long endIndex) {
 		if (endIndex > startIndex) {
@@ -167,39 +200,7 @@ public class FileSource extends CommonSource {
 		return b;
 	}
 
-	private int lineIndex(long pos) {
-		return (int) (pos / PageSize);
-	}
-
-	private long startLineNum(long pos) {
-		int index = lineIndex(pos);
-		return this.lines[index];
-	}
-
-	@Override
-	public final long linenum(long pos) {
-		long count = startLineNum(pos);
-		byteAt(pos); // restore buffer at pos
-		int offset = (int) (pos - this.buffer_offset);
-		for (int i = 0; i < offset; i++) {
-			if (this.buffer[i] == '\n') {
-				count++;
-			}
-		}
-		return count;
-	}
-
 	private void readMainBuffer(long pos) {
-		int index = lineIndex(pos);
-		if (this.lines[index] == 0) {
-			long count = this.lines[index - 1];
-			for (int i = 0; i < this.buffer.length; i++) {
-				if (this.buffer[i] == '\n') {
-					count++;
-				}
-			}
-			this.lines[index] = count;
-		}
 		if (this.fifoMap != null) {
 			Long key = pos;
 			byte[] buf = this.fifoMap.get(key);
@@ -0,0 +1,73 @@
+package nez.parser.io;
+
+/**
+ * LineIndex records the start offset of each line of a source. The index is
+ * extended incrementally by add() as the source is scanned, and linenum()
+ * and column() are binary searches over the recorded offsets.
+ */
+
+public class LineIndex {
+	private final long startLineNum;
+	private final int startColumn;
+	private long[] starts = new long[256];
+	private int size = 1; // starts[0] = 0
+	private long scanned = 0;
+
+	public LineIndex(long linenum, int column) {
+		this.startLineNum = linenum;
+		this.startColumn = column;
+	}
+
+	/**
+	 * Returns the number of bytes indexed so far.
+	 */
+
+	public final long scanned() {
+		return this.scanned;
+	}
+
+	/**
+	 * Indexes the next len bytes of the source, which start at scanned().
+	 */
+
+	public final void add(byte[] b, int offset, int len) {
+		long base = this.scanned - offset;
+		int end = offset + len;
+		for (int i = offset; i < end; i++) {
+			if (b[i] == '\n') {
+				if (size == starts.length) {
+					long[] newstarts = new long[starts.length * 2];
+					System.arraycopy(starts, 0, newstarts, 0, size);
+					this.starts = newstarts;
+				}
+				starts[size++] = base + i + 1;
+			}
+		}
+		this.scanned += len;
+	}
+
+	private int lineIndex(long pos) {
+		int low = 0;
+		int high = size - 1;
+		while (low < high) {
+			int mid = (low + high + 1) >>> 1;
+			if (starts[mid] <= pos) {
+				low = mid;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return low;
+	}
+
+	public final long linenum(long pos) {
+		return this.startLineNum + lineIndex(pos);
+	}
+
+	public final int column(long pos) {
+		int index = lineIndex(pos);
+		long c = pos - starts[index];
+		return (int) (index == 0 ? c + startColumn : c);
+	}
+
+}
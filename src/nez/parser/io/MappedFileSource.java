@@ -0,0 +1,156 @@
+package nez.parser.io;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * MappedFileSource reads a file through memory-mapped segments. Files larger
+ * than a single mapping (2 GiB) are split into fixed-size segments so that
+ * byteAt() is a shift, a mask and a plain memory read.
+ */
+
+public class MappedFileSource extends CommonSource {
+	public final static int SegmentShift = 30; // 1 GiB
+	public final static long SegmentSize = 1L << SegmentShift;
+	private final static long SegmentMask = SegmentSize - 1;
+
+	private final long fileLength;
+	private final MappedByteBuffer[] segments;
+
+	public MappedFileSource(String fileName) throws IOException {
+		super(fileName, 1);
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			FileChannel channel = file.getChannel();
+			this.fileLength = channel.size();
+			int n = (int) ((this.fileLength + SegmentSize - 1) >>> SegmentShift);
+			this.segments = new MappedByteBuffer[n];
+			for (int i = 0; i < n; i++) {
+				long offset = (long) i << SegmentShift;
+				long size = Math.min(SegmentSize, this.fileLength - offset);
+				this.segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+				this.segments[i].order(ByteOrder.LITTLE_ENDIAN); // for skipByte()
+			}
+		} catch (IOException e) {
+			Verbose.traceException(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public final long length() {
+		return this.fileLength;
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		if (pos < this.fileLength) {
+			return this.segments[(int) (pos >>> SegmentShift)].get((int) (pos & SegmentMask)) & 0xff;
+		}
+		return 0;
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		return pos >= this.fileLength;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (pos + text.length > this.fileLength) {
+			return false;
+		}
+		MappedByteBuffer segment = this.segments[(int) (pos >>> SegmentShift)];
+		int offset = (int) (pos & SegmentMask);
+		if (offset + text.length <= segment.limit()) {
+			for (int i = 0; i < text.length; i++) {
+				if (text[i] != segment.get(offset + i)) {
+					return false;
+				}
+			}
+			return true;
+		}
+		for (int i = 0; i < text.length; i++) {
+			if ((text[i] & 0xff) != this.byteAt(pos + i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final long skipWhile(long pos, boolean[] byteSet) {
+		while (pos < this.fileLength) {
+			MappedByteBuffer segment = this.segments[(int) (pos >>> SegmentShift)];
+			int offset = (int) (pos & SegmentMask);
+			int end = segment.limit();
+			int i = offset;
+			while (i < end && byteSet[segment.get(i) & 0xff]) {
+				i++;
+			}
+			pos += i - offset;
+			if (i < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
+	@Override
+	public final long skipWhile(long pos, int byteChar) {
+		while (pos < this.fileLength) {
+			MappedByteBuffer segment = this.segments[(int) (pos >>> SegmentShift)];
+			int offset = (int) (pos & SegmentMask);
+			int end = segment.limit();
+			int i = skipByte(segment, offset, end, byteChar);
+			pos += i - offset;
+			if (i < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (endIndex > this.fileLength) {
+			endIndex = this.fileLength;
+		}
+		if (!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		int copied = 0;
+		long pos = startIndex;
+		while (copied < b.length) {
+			MappedByteBuffer segment = this.segments[(int) (pos >>> SegmentShift)];
+			int offset = (int) (pos & SegmentMask);
+			int len = Math.min(b.length - copied, segment.limit() - offset);
+			ByteBuffer buf = segment.duplicate();
+			((Buffer) buf).position(offset);
+			buf.get(b, copied, len);
+			copied += len;
+			pos += len;
+		}
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		try {
+			return new String(this.subByte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+			Verbose.traceException(e);
+		}
+		return "";
+	}
+
+}
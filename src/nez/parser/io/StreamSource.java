@@ -0,0 +1,197 @@
+package nez.parser.io;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * StreamSource reads an InputStream of unknown length (e.g., a pipe or a
+ * socket) through a ring buffer. Bytes are read on demand, and release()
+ * drops the bytes before a given position, which then becomes position 0.
+ * The buffer starts at the backtracking window and grows only when a single
+ * unreleased region exceeds it, so memory stays bounded if the caller
+ * releases each parsed element (see Parser.parseStream()).
+ */
+
+public class StreamSource extends CommonSource {
+	public final static int MinWindowSize = 4096;
+
+	private final InputStream in;
+	private byte[] buffer;
+	private int mask;
+	private long origin = 0; // stream offset of position 0
+	private long filled = 0; // stream offset of the end of read bytes
+	private boolean endOfStream = false;
+
+	public StreamSource(String resourceName, InputStream in, int window) {
+		super(resourceName, 1);
+		this.in = in;
+		int size = MinWindowSize;
+		while (size < window) {
+			size <<= 1;
+		}
+		this.buffer = new byte[size];
+		this.mask = size - 1;
+	}
+
+	/**
+	 * Returns the stream offset of position 0.
+	 */
+
+	public final long getOffset() {
+		return this.origin;
+	}
+
+	/**
+	 * Drops all bytes before pos; pos becomes the new position 0.
+	 */
+
+	public final void release(long pos) {
+		long linenum = this.linenum(pos);
+		int column = this.column(pos);
+		this.origin += pos;
+		this.resetLineIndex(linenum, column);
+	}
+
+	private void fill(long offset) {
+		while (!endOfStream && filled <= offset) {
+			if (filled - origin == buffer.length) {
+				grow();
+			}
+			int start = (int) filled & mask;
+			int len = Math.min(buffer.length - (int) (filled - origin), buffer.length - start);
+			try {
+				int n = in.read(buffer, start, len);
+				if (n < 0) {
+					endOfStream = true;
+				} else {
+					filled += n;
+				}
+			} catch (IOException e) {
+				Verbose.traceException(e);
+				endOfStream = true;
+			}
+		}
+	}
+
+	private void grow() {
+		byte[] newbuffer = new byte[buffer.length * 2];
+		int newmask = newbuffer.length - 1;
+		for (long p = origin; p < filled; p++) {
+			newbuffer[(int) p & newmask] = buffer[(int) p & mask];
+		}
+		this.buffer = newbuffer;
+		this.mask = newmask;
+	}
+
+	/**
+	 * Returns the number of bytes read so far after position 0; the total
+	 * length is unknown until eof() is true.
+	 */
+
+	@Override
+	public final long length() {
+		return filled - origin;
+	}
+
+	@Override
+	protected final void indexLines(LineIndex index, long pos) {
+		this.fill(this.origin + pos);
+		super.indexLines(index, pos);
+	}
+
+	@Override
+	public final int byteAt(long pos) {
+		long offset = origin + pos;
+		if (offset >= filled) {
+			fill(offset);
+			if (offset >= filled) {
+				return 0;
+			}
+		}
+		return buffer[(int) offset & mask] & 0xff;
+	}
+
+	@Override
+	public final boolean eof(long pos) {
+		long offset = origin + pos;
+		if (offset >= filled) {
+			fill(offset);
+		}
+		return offset >= filled;
+	}
+
+	@Override
+	public final boolean match(long pos, byte[] text) {
+		if (text.length > 0 && eof(pos + text.length - 1)) {
+			return false;
+		}
+		for (int i = 0; i < text.length; i++) {
+			if (text[i] != buffer[(int) (origin + pos + i) & mask]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public final long skipWhile(long pos, boolean[] byteSet) {
+		while (!this.eof(pos)) {
+			long offset = origin + pos;
+			long end = filled;
+			while (offset < end && byteSet[buffer[(int) offset & mask] & 0xff]) {
+				offset++;
+			}
+			pos = offset - origin;
+			if (offset < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
+	@Override
+	public final long skipWhile(long pos, int byteChar) {
+		while (!this.eof(pos)) {
+			long offset = origin + pos;
+			long end = filled;
+			while (offset < end && (buffer[(int) offset & mask] & 0xff) == byteChar) {
+				offset++;
+			}
+			pos = offset - origin;
+			if (offset < end) {
+				break;
+			}
+		}
+		return pos;
+	}
+
+	@Override
+	public final byte[] subByte(long startIndex, long endIndex) {
+		if (endIndex > startIndex && eof(endIndex - 1)) {
+			endIndex = this.length();
+		}
+		if (!(endIndex > startIndex)) {
+			return new byte[0];
+		}
+		byte[] b = new byte[(int) (endIndex - startIndex)];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = buffer[(int) (origin + startIndex + i) & mask];
+		}
+		return b;
+	}
+
+	@Override
+	public final String subString(long startIndex, long endIndex) {
+		try {
+			return new String(this.subByte(startIndex, endIndex), StringUtils.DefaultEncoding);
+		} catch (UnsupportedEncodingException e) {
+			Verbose.traceException(e);
+		}
+		return "";
+	}
+
+}
@@ -8,6 +8,8 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import nez.ast.Source;
 import nez.util.StringUtils;
@@ -75,6 +77,45 @@ public class StringSource extends CommonSource {
 		return true;
 	}
 
+	@Override
+	public final long skipWhile(long pos, boolean[] byteSet) {
+		int i = (int) pos;
+		int end = (int) this.length;
+		while (i < end && byteSet[this.inputs[i] & 0xff]) {
+			i++;
+		}
+		return i;
+	}
+
+	private ByteBuffer view = null;
+
+	@Override
+	public final long skipWhile(long pos, int byteChar) {
+		if (this.view == null) {
+			this.view = ByteBuffer.wrap(this.inputs).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		return skipByte(this.view, (int) pos, (int) this.length, byteChar);
+	}
+
+	@Override
+	public final long skipWhile(long pos, byte[] text) {
+		int len = text.length;
+		if (len == 0) {
+			return pos;
+		}
+		int i = (int) pos;
+		int end = (int) this.length - len;
+		L: while (i <= end) {
+			for (int j = 0; j < len; j++) {
+				if (text[j] != this.inputs[i + j]) {
+					break L;
+				}
+			}
+			i += len;
+		}
+		return i;
+	}
+
 	@Override
 	public final byte[] subByte(long startIndex, long endIndex) {
 		byte[] b = new byte[(int) (endIndex - startIndex)];
@@ -99,18 +140,10 @@ public class StringSource extends CommonSource {
 	}
 
 	@Override
-	public final long linenum(long pos) {
-		long count = this.startLineNum;
-		int end = (int) pos;
-		if (end >= this.inputs.length) {
-			end = this.inputs.length;
-		}
-		for (int i = 0; i < end; i++) {
-			if (this.inputs[i] == '\n') {
-				count++;
-			}
+	protected final void indexLines(LineIndex index, long pos) {
+		if (index.scanned() < this.length) {
+			index.add(this.inputs, (int) index.scanned(), (int) (this.length - index.scanned()));
 		}
-		return count;
 	}
 
 	/* utils */
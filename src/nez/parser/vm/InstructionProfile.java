@@ -0,0 +1,181 @@
+package nez.parser.vm;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+
+import nez.lang.Grammar;
+import nez.parser.ParserStrategy;
+import nez.parser.TerminationException;
+import nez.util.ConsoleUtils;
+import nez.util.FileBuilder;
+import nez.util.Verbose;
+
+/**
+ * InstructionProfile is a histogram of the instruction n-grams (n = 1, 2, 3)
+ * executed by the interpreter (+InstProfiling). An n-gram is a sequence of
+ * instruction names in execution order, e.g., "Alt Set Succ". The histogram
+ * is written next to the grammar (grammar.ngram) and tells MozFusion which
+ * idioms are worth fusing on subsequent compiles.
+ */
+
+public class InstructionProfile {
+	private final String path;
+	private final HashMap<String, Long> counts = new HashMap<>();
+	private long total = 0;
+
+	/* profiling; instruction names are numbered by kind */
+	private String[] names;
+	private int[] kinds;
+	private long[] grams;
+
+	public InstructionProfile(String path) {
+		this.path = path;
+	}
+
+	public final static String getProfilePath(Grammar g, ParserStrategy strategy) {
+		return getProfilePath(g == null ? null : g.getURN(), strategy);
+	}
+
+	public final static String getProfilePath(String urn, ParserStrategy strategy) {
+		if (strategy.InstProfile != null) {
+			return strategy.InstProfile;
+		}
+		if (urn != null) {
+			return FileBuilder.changeFileExtension(urn, "ngram");
+		}
+		return null;
+	}
+
+	final void init(MozCode code) {
+		HashMap<String, Integer> kindMap = new HashMap<>();
+		ArrayList<String> nameList = new ArrayList<>();
+		this.kinds = new int[code.getInstructionSize()];
+		for (MozInst inst : code.codeList()) {
+			String name = inst.getName();
+			Integer k = kindMap.get(name);
+			if (k == null) {
+				k = nameList.size();
+				kindMap.put(name, k);
+				nameList.add(name);
+			}
+			kinds[inst.id] = k;
+		}
+		this.names = nameList.toArray(new String[nameList.size()]);
+		int n = names.length + 1; // the last kind is none
+		this.grams = new long[n * n * n];
+	}
+
+	/**
+	 * Runs the interpreter while counting the n-grams of executed
+	 * instructions.
+	 */
+
+	public final boolean exec(ParserMachineContext<?> ctx, MozInst inst) {
+		int n = names.length + 1;
+		int k1 = n - 1;
+		int k2 = n - 1;
+		MozInst cur = inst;
+		try {
+			while (true) {
+				int k3 = cur.id >= 0 && cur.id < kinds.length ? kinds[cur.id] : n - 1;
+				grams[(k1 * n + k2) * n + k3]++;
+				k1 = k2;
+				k2 = k3;
+				cur = cur.exec(ctx);
+			}
+		} catch (TerminationException e) {
+			return e.status;
+		}
+	}
+
+	private void collect() {
+		int n = names.length + 1;
+		for (int k1 = 0; k1 < n; k1++) {
+			for (int k2 = 0; k2 < n; k2++) {
+				for (int k3 = 0; k3 < n - 1; k3++) {
+					long c = grams[(k1 * n + k2) * n + k3];
+					if (c == 0) {
+						continue;
+					}
+					add(names[k3], c);
+					total += c;
+					if (k2 < n - 1) {
+						add(names[k2] + " " + names[k3], c);
+						if (k1 < n - 1) {
+							add(names[k1] + " " + names[k2] + " " + names[k3], c);
+						}
+					}
+				}
+			}
+		}
+		this.grams = new long[grams.length];
+	}
+
+	private void add(String gram, long c) {
+		Long c0 = counts.get(gram);
+		counts.put(gram, c0 == null ? c : c0 + c);
+	}
+
+	public final long count(String gram) {
+		Long c = counts.get(gram);
+		return c == null ? 0 : c;
+	}
+
+	public final long total() {
+		return this.total;
+	}
+
+	/* File */
+
+	public final void save() {
+		this.collect();
+		ArrayList<String> l = new ArrayList<>(counts.keySet());
+		Collections.sort(l, (s, s2) -> Long.compare(count(s2), count(s)));
+		try (PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(this.path)))) {
+			out.println("# n-gram\tcount\t(total " + total + ")");
+			for (String gram : l) {
+				out.println(gram + "\t" + count(gram));
+			}
+		} catch (IOException e) {
+			ConsoleUtils.println("cannot write instruction profile: " + this.path);
+			Verbose.traceException(e);
+		}
+	}
+
+	public final static InstructionProfile load(String path) {
+		if (path == null || !new File(path).isFile()) {
+			return null;
+		}
+		InstructionProfile profile = new InstructionProfile(path);
+		try (BufferedReader in = new BufferedReader(new FileReader(path))) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (line.startsWith("#")) {
+					continue;
+				}
+				String[] t = line.split("\t");
+				if (t.length == 2) {
+					long c = Long.parseLong(t[1]);
+					profile.counts.put(t[0], c);
+					if (t[0].indexOf(' ') == -1) {
+						profile.total += c;
+					}
+				}
+			}
+		} catch (IOException | NumberFormatException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+		Verbose.println("loaded instruction profile: " + path);
+		return profile;
+	}
+
+}
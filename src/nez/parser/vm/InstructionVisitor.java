@@ -75,6 +75,8 @@ public abstract class InstructionVisitor {
 
 	public abstract void visitDDispatch(Moz86.DDispatch inst); // Dfa
 
+	public abstract void visitDfa(Moz86.Dfa inst);
+
 	/* Matching */
 
 	public abstract void visitTPush(Moz86.TPush inst);
@@ -0,0 +1,36 @@
+package nez.parser.vm;
+
+/**
+ * LexicalDFA is a transition table built by LexicalDFAConverter. State 0 is
+ * the start state; table[state << 8 | byte] is the next state, or -1 if the
+ * byte cannot be consumed. The Dfa instruction runs the table to the longest
+ * accepted prefix.
+ */
+
+public class LexicalDFA {
+	final int[] table;
+	final boolean[] accepts;
+
+	LexicalDFA(int[] table, boolean[] accepts) {
+		this.table = table;
+		this.accepts = accepts;
+	}
+
+	public final int size() {
+		return this.accepts.length;
+	}
+
+	public final int next(int state, int byteChar) {
+		return this.table[(state << 8) | byteChar];
+	}
+
+	public final boolean isAccepted(int state) {
+		return this.accepts[state];
+	}
+
+	@Override
+	public String toString() {
+		return "dfa" + this.accepts.length;
+	}
+
+}
@@ -0,0 +1,407 @@
+package nez.parser.vm;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import nez.lang.Expression;
+import nez.lang.Expressions;
+import nez.lang.Nez;
+import nez.lang.NonTerminal;
+import nez.lang.Production;
+import nez.util.UList;
+import nez.util.Verbose;
+
+/**
+ * LexicalDFAConverter converts lexical productions into LexicalDFAs (Odfa).
+ * A DFA accepts the longest prefix in the regular language of an
+ * expression, while PEG commits to the first alternative and repeats
+ * greedily. Both agree on the subset converted here:
+ *
+ * <pre>
+ * e1 e2  the bytes that extend a match of e1 do not start e2
+ * e1 / e2  first bytes are disjoint, and e1 does not match the empty string
+ * e* e+ e?  e does not match the empty string (nor extends into itself)
+ * </pre>
+ *
+ * Nonterminals are inlined unless recursive. Predicates, tree construction,
+ * and symbol tables are not converted, nor is the byte 0, which matches the
+ * end of input in the interpreter.
+ */
+
+public class LexicalDFAConverter {
+	public static int MaxStates = 256;
+	private final static int MaxNFAStates = 4096;
+
+	private final HashMap<String, LexicalDFA> cache = new HashMap<>();
+
+	public final LexicalDFA convert(Production p) {
+		String uname = p.getUniqueName();
+		if (cache.containsKey(uname)) {
+			return cache.get(uname);
+		}
+		LexicalDFA dfa = null;
+		if (!isTrivial(p.getExpression())) {
+			dfa = new Builder().build(p);
+			if (dfa != null) {
+				Verbose.println("dfa: %s states=%d", p.getLocalName(), dfa.size());
+			}
+		}
+		cache.put(uname, dfa);
+		return dfa;
+	}
+
+	/* single terminals and their repetitions are better done by Olex */
+
+	private static boolean isTrivial(Expression e) {
+		e = Expressions.resolveNonTerminal(e);
+		if (e instanceof Nez.Option || e instanceof Nez.Repetition) {
+			e = Expressions.resolveNonTerminal(e.get(0));
+		}
+		return e instanceof Nez.Byte || e instanceof Nez.ByteSet || e instanceof Nez.MultiByte || e instanceof Nez.Any || e instanceof Nez.Empty;
+	}
+
+	/* Thompson NFA */
+
+	static class State {
+		final int id;
+		boolean[] byteSet = null;
+		State target = null;
+		UList<State> epsilons = null;
+
+		State(int id) {
+			this.id = id;
+		}
+
+		void epsilon(State s) {
+			if (epsilons == null) {
+				epsilons = new UList<>(new State[2]);
+			}
+			epsilons.add(s);
+		}
+	}
+
+	static class Fragment {
+		final State start;
+		final State end;
+		final boolean[] first;
+		final boolean[] ext; // bytes that extend a match
+		final boolean nullable;
+
+		Fragment(State start, State end, boolean[] first, boolean[] ext, boolean nullable) {
+			this.start = start;
+			this.end = end;
+			this.first = first;
+			this.ext = ext;
+			this.nullable = nullable;
+			if (nullable) {
+				union(ext, first);
+			}
+		}
+	}
+
+	private static boolean[] union(boolean[] a, boolean[] b) {
+		for (int c = 0; c < 256; c++) {
+			a[c] |= b[c];
+		}
+		return a;
+	}
+
+	private static boolean intersects(boolean[] a, boolean[] b) {
+		for (int c = 0; c < 256; c++) {
+			if (a[c] && b[c]) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	class Builder {
+		final UList<State> states = new UList<>(new State[64]);
+		final HashSet<String> visiting = new HashSet<>();
+
+		State newState() {
+			State s = new State(states.size());
+			states.add(s);
+			return s;
+		}
+
+		LexicalDFA build(Production p) {
+			visiting.add(p.getUniqueName());
+			Fragment f = build(p.getExpression());
+			if (f == null) {
+				return null;
+			}
+			return construct(f);
+		}
+
+		Fragment build(Expression e) {
+			if (states.size() > MaxNFAStates) {
+				return null;
+			}
+			if (e instanceof Nez.Byte) {
+				boolean[] byteSet = new boolean[256];
+				byteSet[((Nez.Byte) e).byteChar] = true;
+				return terminal(byteSet);
+			}
+			if (e instanceof Nez.ByteSet) {
+				return terminal(((Nez.ByteSet) e).byteMap.clone());
+			}
+			if (e instanceof Nez.Any) {
+				boolean[] byteSet = new boolean[256];
+				for (int c = 0; c < 256; c++) {
+					byteSet[c] = true;
+				}
+				return terminal(byteSet);
+			}
+			if (e instanceof Nez.MultiByte) {
+				return multiByte(((Nez.MultiByte) e).byteSeq);
+			}
+			if (e instanceof Nez.Empty) {
+				State s = newState();
+				return new Fragment(s, s, new boolean[256], new boolean[256], true);
+			}
+			if (e instanceof Nez.Pair || e instanceof Nez.Sequence) {
+				Fragment f = build(e.get(0));
+				for (int i = 1; i < e.size() && f != null; i++) {
+					Fragment f2 = build(e.get(i));
+					f = f2 == null ? null : sequence(f, f2);
+				}
+				return f;
+			}
+			if (e instanceof Nez.Choice) {
+				return choice((Nez.Choice) e);
+			}
+			if (e instanceof Nez.Option || e instanceof Nez.Repetition) {
+				Fragment f = build(e.get(0));
+				if (f == null || f.nullable) {
+					return null;
+				}
+				if (e instanceof Nez.Option) {
+					return option(f);
+				}
+				return repetition(f, e instanceof Nez.OneMore);
+			}
+			if (e instanceof NonTerminal) {
+				Production p = ((NonTerminal) e).getProduction();
+				if (p == null || visiting.contains(p.getUniqueName())) {
+					return null;
+				}
+				visiting.add(p.getUniqueName());
+				Fragment f = build(p.getExpression());
+				visiting.remove(p.getUniqueName());
+				return f;
+			}
+			return null;
+		}
+
+		Fragment terminal(boolean[] byteSet) {
+			if (byteSet[0]) {
+				return null;
+			}
+			State s = newState();
+			State t = newState();
+			s.byteSet = byteSet;
+			s.target = t;
+			return new Fragment(s, t, byteSet.clone(), new boolean[256], false);
+		}
+
+		Fragment multiByte(byte[] utf8) {
+			State s = newState();
+			State t = s;
+			for (byte b : utf8) {
+				if (b == 0) {
+					return null;
+				}
+				boolean[] byteSet = new boolean[256];
+				byteSet[b & 0xff] = true;
+				t.byteSet = byteSet;
+				t.target = newState();
+				t = t.target;
+			}
+			boolean[] first = new boolean[256];
+			if (utf8.length > 0) {
+				first[utf8[0] & 0xff] = true;
+			}
+			return new Fragment(s, t, first, new boolean[256], utf8.length == 0);
+		}
+
+		Fragment sequence(Fragment f, Fragment f2) {
+			if (intersects(f.ext, f2.first)) {
+				return null;
+			}
+			f.end.epsilon(f2.start);
+			boolean[] first = f.first.clone();
+			if (f.nullable) {
+				union(first, f2.first);
+			}
+			boolean[] ext = f2.ext.clone();
+			if (f2.nullable) {
+				union(union(ext, f.ext), f2.first);
+			}
+			return new Fragment(f.start, f2.end, first, ext, f.nullable && f2.nullable);
+		}
+
+		Fragment choice(Nez.Choice e) {
+			State s = newState();
+			State t = newState();
+			boolean[] first = new boolean[256];
+			boolean[] ext = new boolean[256];
+			boolean nullable = false;
+			for (int i = 0; i < e.size(); i++) {
+				Fragment f = build(e.get(i));
+				if (f == null || nullable || intersects(first, f.first)) {
+					return null;
+				}
+				s.epsilon(f.start);
+				f.end.epsilon(t);
+				union(first, f.first);
+				union(ext, f.ext);
+				nullable = f.nullable;
+			}
+			return new Fragment(s, t, first, ext, nullable);
+		}
+
+		Fragment option(Fragment f) {
+			State s = newState();
+			State t = newState();
+			s.epsilon(f.start);
+			s.epsilon(t);
+			f.end.epsilon(t);
+			return new Fragment(s, t, f.first.clone(), f.ext.clone(), true);
+		}
+
+		Fragment repetition(Fragment f, boolean oneMore) {
+			if (intersects(f.ext, f.first)) {
+				return null;
+			}
+			State t = newState();
+			boolean[] ext = union(f.ext.clone(), f.first);
+			if (oneMore) {
+				f.end.epsilon(f.start);
+				f.end.epsilon(t);
+				return new Fragment(f.start, t, f.first.clone(), ext, false);
+			}
+			State s = newState();
+			s.epsilon(f.start);
+			s.epsilon(t);
+			f.end.epsilon(s);
+			return new Fragment(s, t, f.first.clone(), ext, true);
+		}
+
+		/* subset construction */
+
+		BitSet closure(BitSet set) {
+			int[] stack = new int[states.size()];
+			int top = 0;
+			for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+				stack[top++] = i;
+			}
+			while (top > 0) {
+				State s = states.ArrayValues[stack[--top]];
+				if (s.epsilons != null) {
+					for (State n : s.epsilons) {
+						if (!set.get(n.id)) {
+							set.set(n.id);
+							stack[top++] = n.id;
+						}
+					}
+				}
+			}
+			return set;
+		}
+
+		LexicalDFA construct(Fragment f) {
+			ArrayList<BitSet> dstates = new ArrayList<>();
+			HashMap<BitSet, Integer> ids = new HashMap<>();
+			BitSet start = new BitSet();
+			start.set(f.start.id);
+			dstates.add(closure(start));
+			ids.put(start, 0);
+			int[] table = new int[MaxStates * 256];
+			for (int d = 0; d < dstates.size(); d++) {
+				BitSet set = dstates.get(d);
+				for (int c = 0; c < 256; c++) {
+					BitSet moved = null;
+					for (int i = set.nextSetBit(0); i >= 0; i = set.nextSetBit(i + 1)) {
+						State s = states.ArrayValues[i];
+						if (s.byteSet != null && s.byteSet[c]) {
+							if (moved == null) {
+								moved = new BitSet();
+							}
+							moved.set(s.target.id);
+						}
+					}
+					int next = -1;
+					if (moved != null) {
+						closure(moved);
+						Integer id = ids.get(moved);
+						if (id == null) {
+							if (dstates.size() == MaxStates) {
+								return null;
+							}
+							id = dstates.size();
+							dstates.add(moved);
+							ids.put(moved, id);
+						}
+						next = id;
+					}
+					table[(d << 8) | c] = next;
+				}
+			}
+			boolean[] accepts = new boolean[dstates.size()];
+			for (int d = 0; d < accepts.length; d++) {
+				accepts[d] = dstates.get(d).get(f.end.id);
+			}
+			return minimize(table, accepts);
+		}
+	}
+
+	/* Moore's partition refinement; the start state remains 0 */
+
+	static LexicalDFA minimize(int[] table, boolean[] accepts) {
+		int size = accepts.length;
+		int[] group = new int[size];
+		for (int s = 0; s < size; s++) {
+			group[s] = accepts[s] ? 1 : 0;
+		}
+		int groups = -1;
+		while (true) {
+			HashMap<String, Integer> signatures = new HashMap<>();
+			int[] refined = new int[size];
+			for (int s = 0; s < size; s++) {
+				StringBuilder sb = new StringBuilder();
+				sb.append(group[s]);
+				for (int c = 0; c < 256; c++) {
+					int next = table[(s << 8) | c];
+					sb.append(',').append(next < 0 ? -1 : group[next]);
+				}
+				String key = sb.toString();
+				Integer g = signatures.get(key);
+				if (g == null) {
+					g = signatures.size();
+					signatures.put(key, g);
+				}
+				refined[s] = g;
+			}
+			group = refined;
+			if (signatures.size() == groups) {
+				break;
+			}
+			groups = signatures.size();
+		}
+		int[] mtable = new int[groups * 256];
+		boolean[] maccepts = new boolean[groups];
+		for (int s = 0; s < size; s++) {
+			int g = group[s];
+			maccepts[g] = accepts[s];
+			for (int c = 0; c < 256; c++) {
+				int next = table[(s << 8) | c];
+				mtable[(g << 8) | c] = next < 0 ? -1 : group[next];
+			}
+		}
+		return new LexicalDFA(mtable, maccepts);
+	}
+
+}
@@ -90,10 +90,22 @@ public class Moz86 {
 			// Memoization
 			{ "Lookup", "jump", "uid" }, //
 			{ "Memo", "uid" }, //
-			{ "FailMemo", "uid" }, //
+			{ "MemoFail", "uid" }, //
 			{ "TLookup", "jump", "uid" }, //
 			{ "TMemo", "uid" }, //
 
+			// Binary grammars
+			{ "BinaryByte", "byteChar" }, //
+			{ "BinaryNByte", "byteChar" }, //
+			{ "BinaryOByte", "byteChar" }, //
+			{ "BinaryRByte", "byteChar" }, //
+			{ "BinarySet", "byteSet" }, //
+			{ "BinaryNSet", "byteSet" }, //
+			{ "BinaryOSet", "byteSet" }, //
+			{ "BinaryRSet", "byteSet" }, //
+			{ "TStart" }, //
+			{ "Dfa", "dfa" }, //
+
 	};
 
 	static HashMap<String, String[]> specMap = new HashMap<>();
@@ -258,7 +270,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			prof.countCoverage(this.uid, state);
+			if (prof != null) {
+				prof.countCoverage(this.uid, state);
+			}
 			return this.next;
 		}
 	}
@@ -450,8 +464,24 @@ public class Moz86 {
 			return this.next;
 		}
 
+		/* a compiled leaf production (+JIT) */
+		private MozJITCode leafCode = null;
+		private int leafProd;
+
+		final void setLeafCode(MozJITCode leafCode, int leafProd) {
+			this.leafCode = leafCode;
+			this.leafProd = leafProd;
+		}
+
+		public final boolean isCompiled() {
+			return this.leafCode != null;
+		}
+
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (leafCode != null) {
+				return leafCode.match(sc, leafProd) ? this.jump : sc.xFail();
+			}
 			sc.xCall(name, jump);
 			return this.next;
 		}
@@ -490,7 +520,7 @@ public class Moz86 {
 	}
 
 	public final static class Alt extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public Alt(Expression e, MozInst failjump, MozInst next) {
 			super(MozSet.Alt, e, next);
@@ -792,33 +822,23 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
-			while (sc.prefetch() == this.byteChar) {
-				sc.consume(1);
-			}
+			sc.skipWhile(this.byteChar);
 			return this.next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			while (sc.prefetch() == this.byteChar) {
-				sc.move(1);
-			}
+			sc.skipWhile(this.byteChar);
 			return this.next;
 		}
 	}
 
+	/* skipWhile() stops at the end of input, which is the binary semantics */
+
 	public static class BinaryRByte extends RByte {
 		public BinaryRByte(MozInst next) {
 			super(0, next);
 		}
-
-		@Override
-		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			while (sc.prefetch() == 0 && !sc.eof()) {
-				sc.move(1);
-			}
-			return this.next;
-		}
 	}
 
 	static abstract class AbstAny extends MozInst {
@@ -1064,19 +1084,13 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
-			int byteChar = sc.prefetch();
-			while (byteSet[byteChar]) {
-				sc.consume(1);
-				byteChar = sc.prefetch();
-			}
+			sc.skipWhile(this.byteSet);
 			return this.next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			while (byteSet[sc.prefetch()]) {
-				sc.move(1);
-			}
+			sc.skipWhile(this.byteSet);
 			return this.next;
 		}
 
@@ -1087,14 +1101,6 @@ public class Moz86 {
 			super(byteMap, next);
 		}
 
-		@Override
-		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			while (byteSet[sc.prefetch()] && !sc.eof()) {
-				sc.move(1);
-			}
-			return this.next;
-		}
-
 	}
 
 	static abstract class AbstStr extends MozInst {
@@ -1230,16 +1236,13 @@ public class Moz86 {
 
 		@Override
 		public MozInst execMoz(MozMachine sc) throws TerminationException {
-			while (sc.match(this.utf8)) {
-				sc.consume(utf8.length);
-			}
+			sc.skipWhile(this.utf8);
 			return this.next;
 		}
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			while (sc.match(this.utf8)) {
-			}
+			sc.skipWhile(this.utf8);
 			return this.next;
 		}
 
@@ -1514,6 +1517,11 @@ public class Moz86 {
 			this.label = e.label;
 		}
 
+		public TLink(Symbol label, MozInst next) {
+			super(MozSet.TPop, null, next);
+			this.label = label;
+		}
+
 		// @Override
 		// protected String getOperand() {
 		// return label.getSymbol();
@@ -1582,6 +1590,11 @@ public class Moz86 {
 			this.label = e.label;
 		}
 
+		public TEmit(Symbol label, MozInst next) {
+			super(MozSet.TCommit, null, next);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTEmit(this);
@@ -1607,6 +1620,10 @@ public class Moz86 {
 			super(MozSet.TStart, e, next);
 		}
 
+		public TStart(MozInst next) {
+			super(MozSet.TStart, null, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTStart(this);
@@ -1627,6 +1644,66 @@ public class Moz86 {
 
 	}
 
+	public final static class Dfa extends MozInst {
+		public final LexicalDFA dfa;
+
+		public Dfa(LexicalDFA dfa, MozInst next) {
+			super(MozSet.Lex, null, next);
+			this.dfa = dfa;
+		}
+
+		@Override
+		public void visit(InstructionVisitor v) {
+			v.visitDfa(this);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			int[] table = dfa.table;
+			boolean[] accepts = dfa.accepts;
+			int state = 0;
+			long accepted = accepts[0] ? sc.getPosition() : -1;
+			while (sc.hasUnconsumed()) {
+				state = table[(state << 8) | sc.prefetch()];
+				if (state < 0) {
+					break;
+				}
+				sc.consume(1);
+				if (accepts[state]) {
+					accepted = sc.getPosition();
+				}
+			}
+			if (accepted < 0) {
+				return sc.xFail();
+			}
+			sc.rollback(accepted);
+			return this.next;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			int[] table = dfa.table;
+			boolean[] accepts = dfa.accepts;
+			int state = 0;
+			long accepted = accepts[0] ? sc.getPosition() : -1;
+			while (!sc.eof()) {
+				state = table[(state << 8) | sc.prefetch()];
+				if (state < 0) {
+					break;
+				}
+				sc.move(1);
+				if (accepts[state]) {
+					accepted = sc.getPosition();
+				}
+			}
+			if (accepted < 0) {
+				return sc.xFail();
+			}
+			sc.back((int) accepted);
+			return this.next;
+		}
+	}
+
 	/* Symbol */
 
 	static abstract class AbstractTableInstruction extends MozInst {
@@ -1644,6 +1721,10 @@ public class Moz86 {
 			super(MozSet.SOpen, e, next);
 		}
 
+		public SOpen(MozInst next) {
+			super(MozSet.SOpen, null, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSOpen(this);
@@ -1693,6 +1774,10 @@ public class Moz86 {
 			super(MozSet.SMask, e, e.tableName, next);
 		}
 
+		public SMask(Symbol table, MozInst next) {
+			super(MozSet.SMask, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMask(this);
@@ -1721,6 +1806,10 @@ public class Moz86 {
 			super(MozSet.SDef, e, e.tableName, next);
 		}
 
+		public SDef(Symbol table, MozInst next) {
+			super(MozSet.SDef, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSDef(this);
@@ -1750,6 +1839,10 @@ public class Moz86 {
 			super(MozSet.SExists, e, e.tableName, next);
 		}
 
+		public SExists(Symbol table, MozInst next) {
+			super(MozSet.SExists, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSExists(this);
@@ -1769,13 +1862,18 @@ public class Moz86 {
 	}
 
 	public final static class SIsDef extends AbstractTableInstruction {
-		byte[] utf8;
+		public final byte[] utf8;
 
 		public SIsDef(SymbolExists e, MozInst next) {
 			super(MozSet.SIsDef, e, e.tableName, next);
 			utf8 = StringUtils.toUtf8(e.symbol);
 		}
 
+		public SIsDef(Symbol table, byte[] utf8, MozInst next) {
+			super(MozSet.SIsDef, null, table, next);
+			this.utf8 = utf8;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsDef(this);
@@ -1800,6 +1898,10 @@ public class Moz86 {
 			super(MozSet.SMatch, e, e.tableName, next);
 		}
 
+		public SMatch(Symbol table, MozInst next) {
+			super(MozSet.SMatch, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSMatch(this);
@@ -1830,6 +1932,10 @@ public class Moz86 {
 			super(MozSet.SIs, e, e.tableName, next);
 		}
 
+		public SIs(Symbol table, MozInst next) {
+			super(MozSet.SIs, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIs(this);
@@ -1863,6 +1969,10 @@ public class Moz86 {
 			super(MozSet.SIsa, e, e.tableName, next);
 		}
 
+		public SIsa(Symbol table, MozInst next) {
+			super(MozSet.SIsa, null, table, next);
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitSIsa(this);
@@ -1919,13 +2029,18 @@ public class Moz86 {
 	}
 
 	public final static class NDec extends MozInst {
-		public final MozInst jump;
+		public MozInst jump;
 
 		public NDec(MozInst jump, MozInst next) {
 			super(MozSet.SCount, null, next);
 			this.jump = jump;
 		}
 
+		@Override
+		MozInst branch() {
+			return this.jump;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitNDec(this);
@@ -1948,7 +2063,7 @@ public class Moz86 {
 		final MemoPoint memoPoint;
 		public final int uid;
 		public final boolean state;
-		public final MozInst jump;
+		public MozInst jump;
 
 		AbstMemo(byte opcode, Expression e, MemoPoint m, boolean state, MozInst next, MozInst skip) {
 			super(opcode, e, next);
@@ -1966,6 +2081,20 @@ public class Moz86 {
 			this.jump = null;
 		}
 
+		/* counts the lookup result for adaptive memoization */
+		final MozInst adaptiveLookup(ParserMachineContext<?> sc, int found) {
+			switch (found) {
+			case ParserContext.NotFound:
+				sc.memoMiss(uid);
+				return this.next;
+			case ParserContext.SuccFound:
+				sc.memoHit(uid);
+				return this.jump;
+			default:
+				return sc.xFail();
+			}
+		}
+
 	}
 
 	public final static class Lookup extends AbstMemo {
@@ -1996,6 +2125,13 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (memoPoint.isAdaptive()) {
+				if (!sc.isMemoActivated(uid)) {
+					sc.memoSkip(uid);
+					return this.next;
+				}
+				return adaptiveLookup(sc, sc.lookupMemo(uid));
+			}
 			switch (sc.lookupMemo(uid)) {
 			case ParserContext.NotFound:
 				return this.next;
@@ -2028,7 +2164,9 @@ public class Moz86 {
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
 			int ppos = sc.xSuccPos();
-			sc.memoSucc(uid, ppos);
+			if (sc.isMemoActivated(uid)) {
+				sc.memoSucc(uid, ppos);
+			}
 			return this.next;
 		}
 	}
@@ -2051,7 +2189,9 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
-			sc.memoFail(uid);
+			if (sc.isMemoActivated(uid)) {
+				sc.memoFail(uid);
+			}
 			return sc.xFail();
 		}
 
@@ -2070,6 +2210,11 @@ public class Moz86 {
 			this.label = null;
 		}
 
+		public TLookup(Symbol label, MemoPoint m, MozInst next, MozInst skip) {
+			super(MozSet.TLookup, null, m, m.isStateful(), next, skip);
+			this.label = label;
+		}
+
 		@Override
 		public void visit(InstructionVisitor v) {
 			v.visitTLookup(this);
@@ -2095,6 +2240,13 @@ public class Moz86 {
 
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (memoPoint.isAdaptive()) {
+				if (!sc.isMemoActivated(uid)) {
+					sc.memoSkip(uid);
+					return this.next;
+				}
+				return adaptiveLookup(sc, sc.lookupTreeMemo(uid));
+			}
 			switch (sc.lookupTreeMemo(uid)) {
 			case ParserContext.NotFound:
 				return this.next;
@@ -2129,7 +2281,9 @@ public class Moz86 {
 		@Override
 		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
 			int ppos = sc.xSuccPos();
-			sc.memoTreeSucc(uid, ppos);
+			if (sc.isMemoActivated(uid)) {
+				sc.memoTreeSucc(uid, ppos);
+			}
 			return this.next;
 		}
 
@@ -4,6 +4,7 @@ import nez.lang.Grammar;
 import nez.parser.Parser;
 import nez.parser.ParserCode;
 import nez.parser.ParserInstance;
+import nez.parser.ParserStrategy;
 import nez.parser.TerminationException;
 import nez.util.ConsoleUtils;
 import nez.util.UList;
@@ -15,6 +16,10 @@ public class MozCode extends ParserCode<MozInst> {
 		super(compiledGrammar, new MozInst[1026]);
 	}
 
+	MozCode(boolean recognitionMode, int instSize) {
+		super(recognitionMode, new MozInst[instSize + 1]);
+	}
+
 	UList<MozInst> codeList() {
 		return this.codeList;
 	}
@@ -85,16 +90,42 @@ public class MozCode extends ParserCode<MozInst> {
 		}
 	}
 
+	/**
+	 * Returns the number of bytes an instruction may test at or beyond the
+	 * current position without consuming them.
+	 */
+
+	public final int getLookahead() {
+		int lookahead = 1;
+		for (MozInst inst : codeList) {
+			if (inst instanceof Moz86.AbstStr) {
+				lookahead = Math.max(lookahead, ((Moz86.AbstStr) inst).utf8.length);
+			}
+		}
+		return lookahead;
+	}
+
+	public final void initInstructionProfile(ParserStrategy strategy) {
+		String path = InstructionProfile.getProfilePath(grammar, strategy);
+		if (path == null) {
+			strategy.reportWarning(null, "no instruction profile path; use InstProfile=file");
+			return;
+		}
+		InstructionProfile profile = new InstructionProfile(path);
+		profile.init(this);
+		this.setInstructionProfile(profile);
+	}
+
 	public final void encode(MozWriter coder) {
 		if (coder != null) {
 			coder.setHeader(codeList.size(), this.getInstructionSize(), this.getMemoPointSize());
+			coder.setRecognitionMode(this.RecognitionMode);
 			coder.setInstructions(codeList.ArrayValues, codeList.size());
 		}
 	}
 
 	public final static void writeMozCode(Parser parser, String path) {
-		ParserMachineCompiler compile = ParserMachineCompiler.newCompiler(parser.getParserStrategy());
-		MozCode code = compile.compile(parser.getGrammar());
+		MozCode code = (MozCode) parser.getParserCode();
 		MozWriter c = new MozWriter();
 		code.encode(c);
 		Verbose.println("generating " + path);
@@ -0,0 +1,410 @@
+package nez.parser.vm;
+
+import java.util.HashMap;
+
+import nez.parser.TerminationException;
+import nez.util.UList;
+import nez.util.Verbose;
+
+/**
+ * MozFusion replaces frequent instruction idioms with superinstructions
+ * (Ofuse), so that the interpreter dispatches once per idiom instead of once
+ * per primitive step. Each fused instruction performs exactly the steps of
+ * the idiom, including the failure position recorded for error reports.
+ *
+ * <pre>
+ * Alt Byte, Alt Set, Alt Str, Alt Dispatch   no catch frame if the first test fails
+ * Byte Step, Set Step, Any Step              the body of a repetition
+ * NByte Any Step, NSet Any Step, NStr Any Step   (!e .)* as a single loop
+ * Byte RSet                                  a token followed by spaces
+ * TBegin RSet TEnd                           { [c]* }
+ * </pre>
+ *
+ * Fusion is off unless +Ofuse is given. Idioms are fused where they appear
+ * in the code; with an instruction profile (InstProfiling), only idioms
+ * whose n-gram accounts for at least MinFrequency of executed instructions
+ * are fused. The unfused instructions remain in the code for other jumps
+ * that reach them.
+ */
+
+public class MozFusion {
+	public static double MinFrequency = 0.001;
+
+	private final InstructionProfile profile;
+	private final HashMap<MozInst, MozInst> fused = new HashMap<>();
+	private final HashMap<String, Integer> stats = new HashMap<>();
+
+	MozFusion(InstructionProfile profile) {
+		this.profile = profile;
+	}
+
+	private boolean isFrequent(String gram) {
+		if (profile == null) {
+			return true;
+		}
+		return profile.count(gram) >= profile.total() * MinFrequency;
+	}
+
+	public final void fuse(MozCode code) {
+		UList<MozInst> codeList = code.codeList();
+		int size = codeList.size();
+		for (int i = 0; i < size; i++) {
+			MozInst inst = codeList.ArrayValues[i];
+			MozInst f = fuse(inst);
+			if (f != null) {
+				fused.put(inst, f);
+				String name = f.getName();
+				stats.put(name, stats.containsKey(name) ? stats.get(name) + 1 : 1);
+			}
+		}
+		for (int i = 0; i < size; i++) {
+			retarget(codeList.ArrayValues[i]);
+		}
+		for (MozInst f : fused.values()) {
+			retarget(f);
+		}
+		for (MozInst f : fused.values()) {
+			code.layoutCode(f);
+		}
+		Verbose.println("fused: " + stats);
+	}
+
+	private MozInst fuse(MozInst inst) {
+		Class<?> c = inst.getClass();
+		MozInst next = inst.next;
+		Class<?> c2 = next == null ? null : next.getClass();
+		if (c == Moz86.Alt.class) {
+			Moz86.Alt alt = (Moz86.Alt) inst;
+			if (c2 == Moz86.Byte.class && isFrequent("Alt Byte")) {
+				return new AltByte(alt, (Moz86.Byte) next);
+			}
+			if (c2 == Moz86.Set.class && isFrequent("Alt Set")) {
+				return new AltSet(alt, (Moz86.Set) next);
+			}
+			if (c2 == Moz86.Str.class && isFrequent("Alt Str")) {
+				return new AltStr(alt, (Moz86.Str) next);
+			}
+			if (c2 == Moz86.Dispatch.class && isFrequent("Alt Dispatch")) {
+				return new AltDispatch(alt, (Moz86.Dispatch) next);
+			}
+			return null;
+		}
+		if (c2 == Moz86.Step.class) {
+			if (c == Moz86.Byte.class && isFrequent("Byte Step")) {
+				return new ByteStep((Moz86.Byte) inst, next.next);
+			}
+			if (c == Moz86.Set.class && isFrequent("Set Step")) {
+				return new SetStep((Moz86.Set) inst, next.next);
+			}
+			if (c == Moz86.Any.class && isFrequent("Any Step")) {
+				return new AnyStep((Moz86.Any) inst, next.next);
+			}
+			return null;
+		}
+		if (c2 == Moz86.Any.class && next.next != null && next.next.getClass() == Moz86.Step.class && next.next.next == inst) {
+			if (c == Moz86.NByte.class && isFrequent("NByte Any Step")) {
+				boolean[] byteSet = new boolean[256];
+				byteSet[((Moz86.NByte) inst).byteChar] = true;
+				return new NSetAnyStep(inst, byteSet);
+			}
+			if (c == Moz86.NSet.class && isFrequent("NSet Any Step")) {
+				return new NSetAnyStep(inst, ((Moz86.NSet) inst).byteSet);
+			}
+			if (c == Moz86.NStr.class && isFrequent("NStr Any Step")) {
+				return new NStrAnyStep(inst, ((Moz86.NStr) inst).utf8);
+			}
+			return null;
+		}
+		if (c == Moz86.Byte.class && c2 == Moz86.RSet.class && isFrequent("Byte RSet")) {
+			return new ByteRSet((Moz86.Byte) inst, (Moz86.RSet) next);
+		}
+		if (c == Moz86.TBegin.class && c2 == Moz86.RSet.class && next.next != null && next.next.getClass() == Moz86.TEnd.class && isFrequent("TBegin RSet TEnd")) {
+			return new TRSet((Moz86.TBegin) inst, (Moz86.RSet) next, (Moz86.TEnd) next.next);
+		}
+		return null;
+	}
+
+	private MozInst map(MozInst inst) {
+		MozInst f = fused.get(inst);
+		return f == null ? inst : f;
+	}
+
+	private void retarget(MozInst inst) {
+		inst.next = map(inst.next);
+		if (inst instanceof Moz86.Alt) {
+			((Moz86.Alt) inst).jump = map(((Moz86.Alt) inst).jump);
+		} else if (inst instanceof Moz86.Call) {
+			((Moz86.Call) inst).jump = map(((Moz86.Call) inst).jump);
+		} else if (inst instanceof Moz86.Jump) {
+			((Moz86.Jump) inst).jump = map(((Moz86.Jump) inst).jump);
+		} else if (inst instanceof Moz86.NDec) {
+			((Moz86.NDec) inst).jump = map(((Moz86.NDec) inst).jump);
+		} else if (inst instanceof Moz86.AbstMemo) {
+			((Moz86.AbstMemo) inst).jump = map(((Moz86.AbstMemo) inst).jump);
+		} else if (inst instanceof Moz86.Dispatch) {
+			MozInst[] jumpTable = ((Moz86.Dispatch) inst).jumpTable;
+			for (int ch = 0; ch < jumpTable.length; ch++) {
+				jumpTable[ch] = map(jumpTable[ch]);
+			}
+		} else if (inst instanceof FusedInst) {
+			FusedInst f = (FusedInst) inst;
+			f.jump = map(f.jump);
+		}
+	}
+
+	/* Superinstructions */
+
+	static abstract class FusedInst extends MozInst {
+		final MozInst head;
+		MozInst jump = null;
+
+		FusedInst(MozInst head, MozInst next) {
+			super(head.opcode, null, next);
+			this.head = head;
+		}
+
+		@Override
+		MozInst branch() {
+			return this.jump;
+		}
+
+		/* the unfused head continues to the rest of the idiom */
+		@Override
+		public void visit(InstructionVisitor v) {
+			head.visit(v);
+		}
+
+		@Override
+		public MozInst execMoz(MozMachine sc) throws TerminationException {
+			return head.execMoz(sc);
+		}
+
+		@Override
+		public String toString() {
+			return this.getName().toLowerCase() + " (" + head + ")";
+		}
+	}
+
+	/* Alt e; a failure of the first test jumps without a catch frame */
+
+	final static class AltByte extends FusedInst {
+		final int byteChar;
+
+		AltByte(Moz86.Alt alt, Moz86.Byte inst) {
+			super(alt, inst.next);
+			this.jump = alt.jump;
+			this.byteChar = inst.byteChar;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			int pos = (int) sc.getPosition();
+			if (sc.prefetch() == this.byteChar) {
+				sc.xAlt(jump);
+				sc.move(1);
+				return this.next;
+			}
+			sc.move(1);
+			sc.back(pos);
+			return this.jump;
+		}
+	}
+
+	final static class AltSet extends FusedInst {
+		final boolean[] byteSet;
+
+		AltSet(Moz86.Alt alt, Moz86.Set inst) {
+			super(alt, inst.next);
+			this.jump = alt.jump;
+			this.byteSet = inst.byteSet;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			int pos = (int) sc.getPosition();
+			if (byteSet[sc.prefetch()]) {
+				sc.xAlt(jump);
+				sc.move(1);
+				return this.next;
+			}
+			sc.move(1);
+			sc.back(pos);
+			return this.jump;
+		}
+	}
+
+	final static class AltStr extends FusedInst {
+		final byte[] utf8;
+
+		AltStr(Moz86.Alt alt, Moz86.Str inst) {
+			super(alt, inst.next);
+			this.jump = alt.jump;
+			this.utf8 = inst.utf8;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			long pos = sc.getPosition();
+			if (sc.match(utf8)) {
+				sc.setPosition(pos);
+				sc.xAlt(jump);
+				sc.move(utf8.length);
+				return this.next;
+			}
+			return this.jump;
+		}
+	}
+
+	final static class AltDispatch extends FusedInst {
+		final MozInst[] jumpTable;
+
+		AltDispatch(Moz86.Alt alt, Moz86.Dispatch inst) {
+			super(alt, inst.next);
+			this.jump = alt.jump;
+			this.jumpTable = inst.jumpTable;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			MozInst next = jumpTable[sc.prefetch()];
+			if (next instanceof Moz86.Fail) {
+				return this.jump;
+			}
+			sc.xAlt(jump);
+			return next;
+		}
+	}
+
+	/* e Step; the body of a repetition */
+
+	final static class ByteStep extends FusedInst {
+		final int byteChar;
+
+		ByteStep(Moz86.Byte inst, MozInst next) {
+			super(inst, next);
+			this.byteChar = inst.byteChar;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (sc.read() == this.byteChar) {
+				return sc.xStep(this.next);
+			}
+			return sc.xFail();
+		}
+	}
+
+	final static class SetStep extends FusedInst {
+		final boolean[] byteSet;
+
+		SetStep(Moz86.Set inst, MozInst next) {
+			super(inst, next);
+			this.byteSet = inst.byteSet;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (byteSet[sc.read()]) {
+				return sc.xStep(this.next);
+			}
+			return sc.xFail();
+		}
+	}
+
+	final static class AnyStep extends FusedInst {
+		AnyStep(Moz86.Any inst, MozInst next) {
+			super(inst, next);
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (!sc.eof()) {
+				sc.move(1);
+				return sc.xStep(this.next);
+			}
+			return sc.xFail();
+		}
+	}
+
+	/* (!e .)*; the loop ends in a failure, which leaves the repetition */
+
+	final static class NSetAnyStep extends FusedInst {
+		final boolean[] byteSet;
+
+		NSetAnyStep(MozInst inst, boolean[] byteSet) {
+			super(inst, null);
+			this.byteSet = byteSet;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			while (!byteSet[sc.prefetch()] && !sc.eof()) {
+				sc.move(1);
+				sc.xStep(this);
+			}
+			return sc.xFail();
+		}
+	}
+
+	final static class NStrAnyStep extends FusedInst {
+		final byte[] utf8;
+
+		NStrAnyStep(MozInst inst, byte[] utf8) {
+			super(inst, null);
+			this.utf8 = utf8;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			while (!sc.match(utf8) && !sc.eof()) {
+				sc.move(1);
+				sc.xStep(this);
+			}
+			return sc.xFail();
+		}
+	}
+
+	/* Byte RSet and TBegin RSet TEnd */
+
+	final static class ByteRSet extends FusedInst {
+		final int byteChar;
+		final boolean[] byteSet;
+
+		ByteRSet(Moz86.Byte inst, Moz86.RSet rset) {
+			super(inst, rset.next);
+			this.byteChar = inst.byteChar;
+			this.byteSet = rset.byteSet;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			if (sc.read() == this.byteChar) {
+				sc.skipWhile(byteSet);
+				return this.next;
+			}
+			return sc.xFail();
+		}
+	}
+
+	final static class TRSet extends FusedInst {
+		final int beginShift;
+		final boolean[] byteSet;
+		final Moz86.TEnd end;
+
+		TRSet(Moz86.TBegin inst, Moz86.RSet rset, Moz86.TEnd end) {
+			super(inst, end.next);
+			this.beginShift = inst.shift;
+			this.byteSet = rset.byteSet;
+			this.end = end;
+		}
+
+		@Override
+		public MozInst exec(ParserMachineContext<?> sc) throws TerminationException {
+			sc.beginTree(beginShift);
+			sc.skipWhile(byteSet);
+			sc.endTree(end.shift, end.tag, end.value);
+			return this.next;
+		}
+	}
+
+}
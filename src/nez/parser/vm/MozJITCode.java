@@ -0,0 +1,32 @@
+package nez.parser.vm;
+
+/**
+ * MozJITCode is the base class of the classes generated by MozJITCompiler.
+ * match() runs a compiled leaf production from the current position and
+ * returns whether it matched; Call instructions to the production invoke it
+ * instead of interpreting its instructions. The code keeps no parsing
+ * state, so it can be shared by threads.
+ */
+
+public abstract class MozJITCode {
+	protected final boolean[][] sets;
+	protected final byte[][] strs;
+
+	protected MozJITCode(MozCode code) {
+		int size = code.getInstructionSize();
+		this.sets = new boolean[size][];
+		this.strs = new byte[size][];
+		for (int id = 0; id < size; id++) {
+			MozInst inst = code.codeList().ArrayValues[id];
+			if (inst instanceof Moz86.AbstSet) {
+				this.sets[id] = ((Moz86.AbstSet) inst).byteSet;
+			}
+			if (inst instanceof Moz86.AbstStr) {
+				this.strs[id] = ((Moz86.AbstStr) inst).utf8;
+			}
+		}
+	}
+
+	public abstract boolean match(ParserMachineContext<?> ctx, int prod);
+
+}
@@ -0,0 +1,802 @@
+package nez.parser.vm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+
+import nez.util.Verbose;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * MozJITCompiler translates the leaf productions of MozCode into a JVM class
+ * (+JIT). A leaf production only matches bytes (e.g., spacing, identifiers
+ * and literals without a tree); it becomes one method returning whether it
+ * matched, with matching instructions inlined as straight-line code and
+ * Dispatch as a tableswitch. Calls to a leaf production run its method
+ * instead of the instructions, and the interpreter runs the rest.
+ *
+ * A choice, option or repetition whose body only matches bytes (a local
+ * choice) keeps its backtrack position in a JVM local variable instead of
+ * the stack of ParserMachineContext; its failures jump straight to the
+ * alternative.
+ *
+ * Productions with trees or choices that fail across production boundaries
+ * are left to the interpreter: compiled, they spend more time passing
+ * control between methods than they save.
+ */
+
+public class MozJITCompiler implements Opcodes {
+	/*
+	 * HotSpot does not compile methods larger than 8000 bytes of bytecode
+	 * (HugeMethodLimit), so larger productions are not compiled.
+	 */
+	public static int MaxMethodSize = 8000;
+
+	private final static String Base = "nez/parser/vm/MozJITCode";
+	private final static String Context = "nez/parser/vm/ParserMachineContext";
+	private final static String MatchDesc = "(L" + Context + ";I)Z";
+	private final static String LeafDesc = "(L" + Context + ";)Z";
+	private final static int This = 0;
+	private final static int Ctx = 1;
+	private final static int Prod = 2;
+	private final static int Saved = 2;
+
+	private static int unique = 0;
+
+	/**
+	 * Compiles the leaf productions of code and links the calls to them;
+	 * returns null if there is none or the compilation fails.
+	 */
+
+	public final static MozJITCode compile(MozCode code) {
+		long t = System.nanoTime();
+		try {
+			MozJITCompiler c = new MozJITCompiler(code);
+			if (c.countLeafProductions() == 0) {
+				return null;
+			}
+			String name = "nez/parser/vm/jit/MozJIT" + (unique++);
+			byte[] b = c.generate(name);
+			Class<?> cls = new JITClassLoader(MozJITCode.class.getClassLoader()).define(name.replace('/', '.'), b);
+			MozJITCode jit = (MozJITCode) cls.getConstructor(MozCode.class).newInstance(code);
+			int calls = c.link(jit);
+			Verbose.printElapsedTime("JITCompilingTime", t, System.nanoTime());
+			Verbose.println("JIT: %d leaf productions, %d calls, %d local choices", c.countLeafProductions(), calls, c.countLocalChoices());
+			return jit;
+		} catch (Exception | LinkageError e) {
+			Verbose.traceException(e);
+			Verbose.println("JIT compilation failed; falling back to the interpreter: " + e);
+		}
+		return null;
+	}
+
+	static class JITClassLoader extends ClassLoader {
+		JITClassLoader(ClassLoader parent) {
+			super(parent);
+		}
+
+		Class<?> define(String name, byte[] b) {
+			return defineClass(name, b, 0, b.length);
+		}
+	}
+
+	private final MozInst[] insts;
+	private final int[] owner;
+	private final int[] start;
+	private final int[] end;
+	private final int[] frame;
+	private final int[] slot;
+	private final int[] locals;
+	private final boolean[] leaf;
+	private final int[] entry;
+	private final boolean[] memo;
+
+	/* owner[id] is the production of the instruction id */
+	private MozJITCompiler(MozCode code) {
+		int size = code.getInstructionSize();
+		this.insts = new MozInst[size];
+		this.owner = new int[size];
+		int prod = -1;
+		for (int id = 0; id < size; id++) {
+			insts[id] = code.codeList().ArrayValues[id];
+			if (insts[id] instanceof Moz86.Nop || prod == -1) {
+				prod++;
+			}
+			owner[id] = prod;
+		}
+		this.start = new int[prod + 1];
+		this.end = new int[prod + 1];
+		for (int id = size - 1; id >= 0; id--) {
+			start[owner[id]] = id;
+		}
+		for (int id = 0; id < size; id++) {
+			end[owner[id]] = id + 1;
+		}
+		this.frame = new int[size];
+		this.slot = new int[size];
+		this.locals = new int[prod + 1];
+		this.leaf = new boolean[prod + 1];
+		this.entry = new int[prod + 1];
+		this.memo = new boolean[size];
+		for (int p = 0; p <= prod; p++) {
+			entry[p] = analyzeMemo(p);
+		}
+		this.analyzeLocalChoices();
+	}
+
+	/* a rough upper bound of the bytecode size of an instruction */
+	private static int estimateSize(MozInst inst) {
+		if (inst instanceof Moz86.Dispatch) {
+			Moz86.Dispatch d = (Moz86.Dispatch) inst;
+			int[] range = dispatchRange(d);
+			return 40 + 4 * (range[1] - range[0] + 1) + 8 * new HashSet<MozInst>(Arrays.asList(d.jumpTable)).size();
+		}
+		return 40;
+	}
+
+	/* the range of bytes that do not dispatch to the default (next) */
+	private static int[] dispatchRange(Moz86.Dispatch inst) {
+		int lo = inst.jumpTable.length;
+		int hi = -1;
+		for (int ch = 0; ch < inst.jumpTable.length; ch++) {
+			if (inst.jumpTable[ch] != inst.next) {
+				lo = Math.min(lo, ch);
+				hi = ch;
+			}
+		}
+		return new int[] { lo, hi };
+	}
+
+	/*
+	 * A compiled leaf production is not memoized, since matching bytes
+	 * costs less than a memo lookup. memo[id] marks the Lookup, the Alt and
+	 * the MemoFail around the body; the returned entry is the start of the
+	 * body.
+	 */
+	private int analyzeMemo(int p) {
+		MozInst nop = insts[start[p]];
+		if (nop instanceof Moz86.Nop && nop.next.getClass() == Moz86.Lookup.class) {
+			MozInst lookup = nop.next;
+			MozInst alt = lookup.next;
+			if (alt.getClass() == Moz86.Alt.class && alt.branch().getClass() == Moz86.MemoFail.class) {
+				MozInst[] wrapper = { lookup, alt, alt.branch() };
+				for (MozInst x : wrapper) {
+					if (x.id < 0 || owner[x.id] != p) {
+						return nop.next.id;
+					}
+				}
+				for (MozInst x : wrapper) {
+					memo[x.id] = true;
+				}
+				return alt.next.id;
+			}
+		}
+		return nop.next == null || nop.next.id < 0 ? -1 : nop.next.id;
+	}
+
+	/* local choices */
+
+	private static class Region {
+		final HashMap<Integer, Integer> frame = new HashMap<>();
+		final ArrayList<Integer> alts = new ArrayList<>();
+		final ArrayList<MozInst> exits = new ArrayList<>();
+	}
+
+	private List<MozInst>[] preds;
+
+	/*
+	 * frame[id] is the innermost local choice that encloses the instruction
+	 * id, or -1; slot[id] is the local variable of the local choice id, or
+	 * -1.
+	 */
+	@SuppressWarnings("unchecked")
+	private void analyzeLocalChoices() {
+		this.preds = new List[insts.length];
+		for (int id = 0; id < insts.length; id++) {
+			preds[id] = new ArrayList<MozInst>();
+		}
+		ArrayList<MozInst> succs = new ArrayList<>();
+		for (MozInst inst : insts) {
+			succs.clear();
+			successors(inst, succs);
+			for (MozInst s : succs) {
+				if (s.id >= 0) {
+					preds[s.id].add(inst);
+				}
+			}
+		}
+		/* more leaf productions make more local choices, and vice versa */
+		boolean changed = true;
+		while (changed) {
+			Arrays.fill(frame, -1);
+			Arrays.fill(slot, -1);
+			Arrays.fill(locals, 0);
+			for (int p = 0; p < start.length; p++) {
+				this.prod = p;
+				for (int id = start[p]; id < end[p]; id++) {
+					if (insts[id].getClass() == Moz86.Alt.class && !memo[id] && frame[id] == -1 && slot[id] == -1) {
+						Region r = region((Moz86.Alt) insts[id]);
+						if (r != null) {
+							for (int alt : r.alts) {
+								slot[alt] = Saved + locals[p]++;
+							}
+							for (int member : r.frame.keySet()) {
+								frame[member] = r.frame.get(member);
+							}
+						}
+					}
+				}
+			}
+			changed = false;
+			for (int p = 0; p < start.length; p++) {
+				if (!leaf[p] && isLeaf(p)) {
+					leaf[p] = true;
+					changed = true;
+				}
+			}
+		}
+		this.preds = null;
+	}
+
+	/*
+	 * A leaf production only matches bytes, in local choices or through
+	 * calls to other leaf productions (so it is not recursive), and never
+	 * leaves its code except by Ret or failure.
+	 */
+	private boolean isLeaf(int p) {
+		if (!(insts[start[p]] instanceof Moz86.Nop) || entry[p] == -1 || owner[entry[p]] != p) {
+			return false;
+		}
+		ArrayList<MozInst> succs = new ArrayList<>();
+		int size = 0;
+		for (int id = start[p] + 1; id < end[p]; id++) {
+			MozInst x = insts[id];
+			Class<?> c = x.getClass();
+			size += estimateSize(x);
+			if (memo[id]) {
+				continue;
+			}
+			if (c == Moz86.Memo.class) {
+				successors(x, succs);
+			} else if (c == Moz86.Call.class) {
+				if (!isLeafCall(x)) {
+					return false;
+				}
+				succs.add(((Moz86.Call) x).jump);
+			} else if (c == Moz86.Alt.class) {
+				if (slot[id] == -1) {
+					return false;
+				}
+				successors(x, succs);
+			} else if (c == Moz86.Succ.class || c == Moz86.Step.class || c == Moz86.Guard.class) {
+				if (frame[id] == -1) {
+					return false;
+				}
+				successors(x, succs);
+			} else if (matching.contains(c)) {
+				successors(x, succs);
+			} else if (c != Moz86.Fail.class && c != Moz86.Ret.class) {
+				return false;
+			}
+		}
+		if (size > MaxMethodSize) {
+			return false;
+		}
+		for (MozInst s : succs) {
+			if (s.getClass() != Moz86.Fail.class && (s.id < 0 || owner[s.id] != p)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean isLeafCall(MozInst inst) {
+		if (inst.getClass() != Moz86.Call.class || inst.next.id < 0) {
+			return false;
+		}
+		int p = owner[inst.next.id];
+		return leaf[p] && insts[start[p]].next == inst.next;
+	}
+
+	private int countLocalChoices() {
+		int n = 0;
+		for (int p = 0; p < locals.length; p++) {
+			n += leaf[p] ? locals[p] : 0;
+		}
+		return n;
+	}
+
+	private int countLeafProductions() {
+		int n = 0;
+		for (int p = 0; p < leaf.length; p++) {
+			n += leaf[p] ? 1 : 0;
+		}
+		return n;
+	}
+
+	/* makes the calls to leaf productions run the compiled methods */
+	private int link(MozJITCode jit) {
+		int n = 0;
+		for (MozInst inst : insts) {
+			if (isLeafCall(inst)) {
+				((Moz86.Call) inst).setLeafCode(jit, owner[inst.next.id]);
+				n++;
+			}
+		}
+		return n;
+	}
+
+	private static void successors(MozInst inst, Collection<MozInst> l) {
+		if (inst.next != null) {
+			l.add(inst.next);
+		}
+		if (inst.branch() != null) {
+			l.add(inst.branch());
+		}
+		if (inst instanceof Moz86.Call && ((Moz86.Call) inst).jump != null) {
+			l.add(((Moz86.Call) inst).jump);
+		}
+		if (inst instanceof Moz86.Jump) {
+			l.add(((Moz86.Jump) inst).jump);
+		}
+		if (inst instanceof Moz86.AbstMemo && ((Moz86.AbstMemo) inst).jump != null) {
+			l.add(((Moz86.AbstMemo) inst).jump);
+		}
+		if (inst instanceof Moz86.Dispatch) {
+			for (MozInst target : ((Moz86.Dispatch) inst).jumpTable) {
+				l.add(target);
+			}
+		}
+	}
+
+	private final static HashSet<Class<?>> matching = new HashSet<>();
+	static {
+		Class<?>[] c = { Moz86.Byte.class, Moz86.NByte.class, Moz86.OByte.class, Moz86.RByte.class, Moz86.Any.class, Moz86.NAny.class, //
+				Moz86.Set.class, Moz86.NSet.class, Moz86.OSet.class, Moz86.RSet.class, //
+				Moz86.Str.class, Moz86.NStr.class, Moz86.OStr.class, Moz86.RStr.class, //
+				Moz86.Jump.class, Moz86.Dispatch.class, Moz86.DDispatch.class, Moz86.Move.class };
+		for (Class<?> k : c) {
+			matching.add(k);
+		}
+	}
+
+	/*
+	 * Returns the region of alt if it is a local choice: its body only
+	 * matches bytes (or contains local choices), stays in the production,
+	 * and is entered only through alt. Nothing in the body touches the tree
+	 * log or the symbol table, so backtracking only restores the position.
+	 */
+	private Region region(Moz86.Alt alt) {
+		Region r = new Region();
+		r.alts.add(alt.id);
+		ArrayDeque<MozInst> work = new ArrayDeque<>();
+		work.add(alt.next);
+		while (!work.isEmpty()) {
+			MozInst x = work.poll();
+			Class<?> c = x.getClass();
+			if (c == Moz86.Fail.class || r.frame.containsKey(x.id)) {
+				continue;
+			}
+			if (x.id < 0 || owner[x.id] != prod) {
+				return null;
+			}
+			r.frame.put(x.id, alt.id);
+			if (c == Moz86.Succ.class) {
+				r.exits.add(x.next);
+				continue;
+			}
+			if (c == Moz86.Step.class || c == Moz86.Guard.class) {
+				work.add(x.next);
+				continue;
+			}
+			if (isLeafCall(x)) {
+				work.add(((Moz86.Call) x).jump);
+				continue;
+			}
+			if (c == Moz86.Alt.class) {
+				Region sub = region((Moz86.Alt) x);
+				if (sub == null) {
+					return null;
+				}
+				for (int member : sub.frame.keySet()) {
+					if (r.frame.containsKey(member)) {
+						return null;
+					}
+					r.frame.put(member, sub.frame.get(member));
+				}
+				r.alts.addAll(sub.alts);
+				work.add(((Moz86.Alt) x).jump);
+				work.addAll(sub.exits);
+				continue;
+			}
+			if (!matching.contains(c)) {
+				return null;
+			}
+			successors(x, work);
+		}
+		if (r.frame.containsKey(alt.jump.id)) {
+			return null;
+		}
+		for (MozInst e : r.exits) {
+			if (r.frame.containsKey(e.id)) {
+				return null;
+			}
+		}
+		for (int member : r.frame.keySet()) {
+			for (MozInst p : preds[member]) {
+				if (!r.frame.containsKey(p.id) && !(p == alt && member == alt.next.id)) {
+					return null;
+				}
+			}
+		}
+		return r;
+	}
+
+	private byte[] generate(String name) {
+		this.name = name;
+		ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+		cw.visit(V1_7, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, name, null, Base, null);
+
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "<init>", "(Lnez/parser/vm/MozCode;)V", null, null);
+		mv.visitCode();
+		mv.visitVarInsn(ALOAD, This);
+		mv.visitVarInsn(ALOAD, 1);
+		mv.visitMethodInsn(INVOKESPECIAL, Base, "<init>", "(Lnez/parser/vm/MozCode;)V");
+		mv.visitInsn(RETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+
+		generateMatch(cw, name);
+		for (int p = 0; p < start.length; p++) {
+			if (leaf[p]) {
+				generateProduction(cw, p);
+			}
+		}
+		cw.visitEnd();
+		return cw.toByteArray();
+	}
+
+	/* match(ctx, p) calls q<p>(ctx) */
+	private void generateMatch(ClassWriter cw, String name) {
+		MethodVisitor mv = cw.visitMethod(ACC_PUBLIC, "match", MatchDesc, null, null);
+		mv.visitCode();
+		Label dflt = new Label();
+		Label[] labels = new Label[start.length];
+		for (int p = 0; p < labels.length; p++) {
+			labels[p] = leaf[p] ? new Label() : dflt;
+		}
+		mv.visitVarInsn(ILOAD, Prod);
+		mv.visitTableSwitchInsn(0, labels.length - 1, dflt, labels);
+		for (int p = 0; p < labels.length; p++) {
+			if (leaf[p]) {
+				mv.visitLabel(labels[p]);
+				mv.visitVarInsn(ALOAD, This);
+				mv.visitVarInsn(ALOAD, Ctx);
+				mv.visitMethodInsn(INVOKESPECIAL, name, "q" + p, LeafDesc);
+				mv.visitInsn(IRETURN);
+			}
+		}
+		mv.visitLabel(dflt);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/* production */
+
+	private String name;
+	private MethodVisitor mv;
+	private int prod;
+	private Label[] labels;
+	private Label[] localFail;
+	private Label fail;
+
+	/* q<n>(ctx) runs production n from its entry */
+	private void generateProduction(ClassWriter cw, int p) {
+		this.prod = p;
+		this.mv = cw.visitMethod(ACC_PRIVATE, "q" + p, LeafDesc, null, null);
+		mv.visitCode();
+		this.labels = new Label[end[p] - start[p]];
+		this.localFail = new Label[end[p] - start[p]];
+		for (int i = 0; i < labels.length; i++) {
+			labels[i] = new Label();
+			if (slot[start[p] + i] != -1) {
+				localFail[i] = new Label();
+				mv.visitInsn(ICONST_0);
+				mv.visitVarInsn(ISTORE, slot[start[p] + i]);
+			}
+		}
+		this.fail = new Label();
+		mv.visitJumpInsn(GOTO, labels[entry[p] - start[p]]);
+		mv.visitLabel(fail);
+		mv.visitInsn(ICONST_0);
+		mv.visitInsn(IRETURN);
+		for (int i = 0; i < labels.length; i++) {
+			if (localFail[i] != null) {
+				generateLocalFail((Moz86.Alt) insts[start[p] + i]);
+			}
+		}
+		for (int i = 0; i < labels.length; i++) {
+			mv.visitLabel(labels[i]);
+			generate(insts[start[p] + i]);
+		}
+		mv.visitMaxs(0, 0);
+		mv.visitEnd();
+	}
+
+	/* backtracks to the position saved by a local choice */
+	private void generateLocalFail(Moz86.Alt alt) {
+		Label skip = new Label();
+		mv.visitLabel(localFail[alt.id - start[prod]]);
+		pos();
+		mv.visitVarInsn(ILOAD, slot[alt.id]);
+		mv.visitJumpInsn(IF_ICMPLE, skip);
+		mv.visitVarInsn(ALOAD, Ctx);
+		mv.visitVarInsn(ILOAD, slot[alt.id]);
+		mv.visitMethodInsn(INVOKEVIRTUAL, Context, "back", "(I)V");
+		mv.visitLabel(skip);
+		gotoInst(alt.jump, frame[alt.id]);
+	}
+
+	private Label failLabel(int f) {
+		return f == -1 ? fail : localFail[f - start[prod]];
+	}
+
+	private void pos() {
+		mv.visitVarInsn(ALOAD, Ctx);
+		mv.visitFieldInsn(GETFIELD, "nez/parser/ParserContext", "pos", "I");
+	}
+
+	private void gotoInst(MozInst inst, int f) {
+		if (inst.getClass() == Moz86.Fail.class) {
+			mv.visitJumpInsn(GOTO, failLabel(f));
+		} else {
+			mv.visitJumpInsn(GOTO, labels[inst.id - start[prod]]);
+		}
+	}
+
+	private void pushInt(int n) {
+		if (-1 <= n && n <= 5) {
+			mv.visitInsn(ICONST_0 + n);
+		} else if (Byte.MIN_VALUE <= n && n <= Byte.MAX_VALUE) {
+			mv.visitIntInsn(BIPUSH, n);
+		} else if (Short.MIN_VALUE <= n && n <= Short.MAX_VALUE) {
+			mv.visitIntInsn(SIPUSH, n);
+		} else {
+			mv.visitLdcInsn(n);
+		}
+	}
+
+	private void loadArray(String field, String desc, int id) {
+		mv.visitVarInsn(ALOAD, This);
+		mv.visitFieldInsn(GETFIELD, Base, field, desc);
+		pushInt(id);
+		mv.visitInsn(AALOAD);
+	}
+
+	private void ctx(String method, String desc) {
+		mv.visitVarInsn(ALOAD, Ctx);
+		mv.visitMethodInsn(INVOKEVIRTUAL, Context, method, desc);
+	}
+
+	private void move(int shift) {
+		mv.visitVarInsn(ALOAD, Ctx);
+		pushInt(shift);
+		mv.visitMethodInsn(INVOKEVIRTUAL, Context, "move", "(I)V");
+	}
+
+	/* set[prefetch() or read()] */
+	private void testSet(int id, String read) {
+		loadArray("sets", "[[Z", id);
+		ctx(read, "()I");
+		mv.visitInsn(BALOAD);
+	}
+
+	private void testStr(int id) {
+		mv.visitVarInsn(ALOAD, Ctx);
+		loadArray("strs", "[[B", id);
+		mv.visitMethodInsn(INVOKEVIRTUAL, Context, "match", "([B)Z");
+	}
+
+	private void generate(MozInst inst) {
+		Class<?> c = inst.getClass();
+		int id = inst.id;
+		int f = frame[id];
+		Label fail = failLabel(f);
+		Label next = new Label();
+		if (memo[id]) {
+			mv.visitJumpInsn(GOTO, fail); // not reached
+			return;
+		}
+		if (c == Moz86.Nop.class || c == Moz86.Memo.class) {
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Byte.class) {
+			ctx("read", "()I");
+			pushInt(((Moz86.Byte) inst).byteChar);
+			mv.visitJumpInsn(IF_ICMPNE, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.NByte.class) {
+			ctx("prefetch", "()I");
+			pushInt(((Moz86.NByte) inst).byteChar);
+			mv.visitJumpInsn(IF_ICMPEQ, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.OByte.class) {
+			int byteChar = ((Moz86.OByte) inst).byteChar;
+			ctx("prefetch", "()I");
+			pushInt(byteChar);
+			mv.visitJumpInsn(IF_ICMPNE, next);
+			if (byteChar != 0) {
+				move(1);
+			}
+			mv.visitLabel(next);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.RByte.class) {
+			mv.visitVarInsn(ALOAD, Ctx);
+			pushInt(((Moz86.RByte) inst).byteChar);
+			mv.visitMethodInsn(INVOKEVIRTUAL, Context, "skipWhile", "(I)V");
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Any.class) {
+			ctx("eof", "()Z");
+			mv.visitJumpInsn(IFNE, fail);
+			move(1);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.NAny.class) {
+			ctx("eof", "()Z");
+			mv.visitJumpInsn(IFEQ, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Set.class) {
+			testSet(id, "read");
+			mv.visitJumpInsn(IFEQ, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.NSet.class) {
+			testSet(id, "prefetch");
+			mv.visitJumpInsn(IFNE, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.OSet.class) {
+			testSet(id, "prefetch");
+			mv.visitJumpInsn(IFEQ, next);
+			move(1);
+			mv.visitLabel(next);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.RSet.class) {
+			mv.visitVarInsn(ALOAD, Ctx);
+			loadArray("sets", "[[Z", id);
+			mv.visitMethodInsn(INVOKEVIRTUAL, Context, "skipWhile", "([Z)V");
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Str.class) {
+			testStr(id);
+			mv.visitJumpInsn(IFEQ, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.NStr.class) {
+			testStr(id);
+			mv.visitJumpInsn(IFNE, fail);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.OStr.class) {
+			testStr(id);
+			mv.visitInsn(POP);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.RStr.class) {
+			mv.visitVarInsn(ALOAD, Ctx);
+			loadArray("strs", "[[B", id);
+			mv.visitMethodInsn(INVOKEVIRTUAL, Context, "skipWhile", "([B)V");
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Move.class) {
+			move(((Moz86.Move) inst).shift);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Jump.class) {
+			gotoInst(((Moz86.Jump) inst).jump, f);
+			return;
+		}
+		if (c == Moz86.Dispatch.class || c == Moz86.DDispatch.class) {
+			generateDispatch((Moz86.Dispatch) inst, c == Moz86.DDispatch.class ? "read" : "prefetch", f);
+			return;
+		}
+		if (c == Moz86.Alt.class) {
+			pos();
+			mv.visitVarInsn(ISTORE, slot[id]);
+			gotoInst(inst.next, id);
+			return;
+		}
+		if (c == Moz86.Succ.class) {
+			gotoInst(inst.next, frame[f]);
+			return;
+		}
+		if (c == Moz86.Step.class || c == Moz86.Guard.class) {
+			/* a repetition must consume; otherwise it ends */
+			pos();
+			mv.visitVarInsn(ILOAD, slot[f]);
+			mv.visitJumpInsn(IF_ICMPEQ, fail);
+			pos();
+			mv.visitVarInsn(ISTORE, slot[f]);
+			gotoInst(inst.next, f);
+			return;
+		}
+		if (c == Moz86.Fail.class) {
+			mv.visitJumpInsn(GOTO, fail);
+			return;
+		}
+		if (c == Moz86.Ret.class) {
+			mv.visitInsn(ICONST_1);
+			mv.visitInsn(IRETURN);
+			return;
+		}
+		if (c == Moz86.Call.class) {
+			mv.visitVarInsn(ALOAD, This);
+			mv.visitVarInsn(ALOAD, Ctx);
+			mv.visitMethodInsn(INVOKESPECIAL, name, "q" + owner[inst.next.id], LeafDesc);
+			mv.visitJumpInsn(IFEQ, fail);
+			gotoInst(((Moz86.Call) inst).jump, f);
+			return;
+		}
+		throw new IllegalStateException("not in a leaf production: " + inst);
+	}
+
+	private void generateDispatch(Moz86.Dispatch inst, String read, int f) {
+		int[] range = dispatchRange(inst);
+		ctx(read, "()I");
+		if (range[1] < 0) {
+			mv.visitInsn(POP);
+			gotoInst(inst.next, f);
+			return;
+		}
+		HashMap<MozInst, Label> targets = new HashMap<>();
+		Label dflt = new Label();
+		targets.put(inst.next, dflt);
+		Label[] table = new Label[range[1] - range[0] + 1];
+		for (int ch = range[0]; ch <= range[1]; ch++) {
+			Label l = targets.get(inst.jumpTable[ch]);
+			if (l == null) {
+				l = new Label();
+				targets.put(inst.jumpTable[ch], l);
+			}
+			table[ch - range[0]] = l;
+		}
+		mv.visitTableSwitchInsn(range[0], range[1], dflt, table);
+		for (MozInst target : targets.keySet()) {
+			mv.visitLabel(targets.get(target));
+			gotoInst(target, f);
+		}
+	}
+
+}
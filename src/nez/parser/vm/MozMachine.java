@@ -27,6 +27,18 @@ public final class MozMachine extends ParserRuntime {
 		return s.match(pos, utf8);
 	}
 
+	public final void skipWhile(boolean[] byteSet) {
+		this.pos = s.skipWhile(pos, byteSet);
+	}
+
+	public final void skipWhile(int byteChar) {
+		this.pos = s.skipWhile(pos, byteChar);
+	}
+
+	public final void skipWhile(byte[] utf8) {
+		this.pos = s.skipWhile(pos, utf8);
+	}
+
 	public final byte[] subbyte(long start, long end) {
 		return s.subByte(start, end);
 	}
@@ -0,0 +1,388 @@
+package nez.parser.vm;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import nez.ast.Symbol;
+import nez.lang.Nez;
+import nez.lang.Typestate;
+import nez.parser.MemoPoint;
+import nez.parser.ParserStrategy;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+/**
+ * MozReader reconstructs MozCode from a .moz file written by MozWriter, so
+ * that a parser can start without loading, optimizing and compiling its
+ * grammar. Jumps are encoded as instruction ids; they are resolved after all
+ * instructions are created.
+ */
+
+public class MozReader {
+	public final static int NullJump = 0xffffff;
+
+	private final ParserStrategy strategy;
+	private ByteReader r;
+	private String[] nonTerminals;
+	private boolean[][] sets;
+	private byte[][] strs;
+	private Symbol[] tags;
+	private Symbol[] tables;
+	private MemoPoint[] memoPoints;
+
+	private MozInst[] insts;
+	private int[] nexts;
+	private int[] jumps;
+	private int[][] jumpTables;
+
+	public MozReader(ParserStrategy strategy) {
+		this.strategy = strategy;
+	}
+
+	public final MozCode read(String fileName) throws IOException {
+		long t = System.nanoTime();
+		MozCode code = read(Files.readAllBytes(Paths.get(fileName)));
+		Verbose.printElapsedTime("LoadingTime", t, System.nanoTime());
+		return code;
+	}
+
+	public final MozCode read(byte[] b) throws IOException {
+		this.r = new ByteReader(b);
+		if (b.length < 5 || r.read_u8() != 'N' || r.read_u8() != 'E' || r.read_u8() != 'Z' || r.read_u8() != '1') {
+			throw new IOException("not a .moz file");
+		}
+		try {
+			return readMozCode();
+		} catch (ArrayIndexOutOfBoundsException e) {
+			Verbose.traceException(e);
+			throw new IOException("broken .moz file at " + r.pos);
+		}
+	}
+
+	private MozCode readMozCode() throws IOException {
+		boolean recognitionMode = r.read_b();
+		int instSize = r.read_u16();
+		int memoSize = r.read_u16();
+		r.read_u16(); // jumpTableSize
+
+		nonTerminals = new String[r.read_u16()];
+		for (int i = 0; i < nonTerminals.length; i++) {
+			nonTerminals[i] = StringUtils.newString(read_utf8());
+		}
+		sets = new boolean[r.read_u16()][];
+		for (int i = 0; i < sets.length; i++) {
+			sets[i] = read_bset();
+		}
+		strs = new byte[r.read_u16()][];
+		for (int i = 0; i < strs.length; i++) {
+			strs[i] = read_utf8();
+		}
+		tags = new Symbol[r.read_u16()];
+		for (int i = 0; i < tags.length; i++) {
+			tags[i] = read_symbol();
+		}
+		tables = new Symbol[r.read_u16()];
+		for (int i = 0; i < tables.length; i++) {
+			tables[i] = read_symbol();
+		}
+		MozCode code = new MozCode(recognitionMode, instSize);
+		memoPoints = new MemoPoint[memoSize];
+		for (int i = 0; i < memoSize; i++) {
+			String label = StringUtils.newString(read_utf8());
+			Typestate ts = Typestate.values()[r.read_u8()];
+			memoPoints[i] = new MemoPoint(i, label, null, ts, r.read_b());
+			code.addMemoPoint(memoPoints[i], strategy);
+		}
+
+		insts = new MozInst[instSize];
+		nexts = new int[instSize];
+		jumps = new int[instSize];
+		jumpTables = new int[instSize][];
+		for (int id = 0; id < instSize; id++) {
+			int opcode = r.read_u8();
+			jumps[id] = NullJump;
+			insts[id] = decode(id, opcode & 127);
+			insts[id].id = id;
+			nexts[id] = (opcode & 128) != 0 ? r.read_u24() : id + 1;
+		}
+		for (int id = 0; id < instSize; id++) {
+			MozInst inst = insts[id];
+			if (!isTerminal(inst)) {
+				inst.next = getInst(nexts[id]);
+			}
+			link(inst, id);
+			code.codeList().add(inst);
+		}
+		return code;
+	}
+
+	private MozInst decode(int id, int opcode) throws IOException {
+		if (opcode >= Moz86.Specification.length) {
+			throw new IOException("undefined opcode " + opcode + " at " + r.pos);
+		}
+		switch (Moz86.Specification[opcode][0]) {
+		case "Nop":
+			return new Moz86.Nop(nonTerminals[r.read_u16()], null);
+		case "Exit":
+			return new Moz86.Exit(r.read_b());
+		case "Cov": {
+			int uid = r.read_u16();
+			r.read_b();
+			return new Moz86.Cov(uid, null);
+		}
+		case "Trap":
+			return new Moz86.Trap(r.read_u16(), null);
+		case "Pos":
+			return new Moz86.Pos(null);
+		case "Back":
+			return new Moz86.Back(null);
+		case "Move":
+			return new Moz86.Move(r.read_i8(), null);
+		case "Jump":
+			jumps[id] = r.read_u24();
+			return new Moz86.Jump(null);
+		case "Call":
+			jumps[id] = r.read_u24();
+			return new Moz86.Call(nonTerminals[r.read_u16()], null, null);
+		case "Ret":
+			return new Moz86.Ret();
+		case "Alt":
+			jumps[id] = r.read_u24();
+			return new Moz86.Alt(null, null);
+		case "Succ":
+			return new Moz86.Succ(null);
+		case "Fail":
+			return new Moz86.Fail();
+		case "Guard":
+			return new Moz86.Guard();
+		case "Step":
+			return new Moz86.Step();
+
+		case "Byte":
+			return new Moz86.Byte(r.read_u8(), null);
+		case "Set":
+			return new Moz86.Set(sets[r.read_u16()], null);
+		case "Str":
+			return new Moz86.Str(strs[r.read_u16()], null);
+		case "Any":
+			return new Moz86.Any(null);
+		case "NByte":
+			return new Moz86.NByte(r.read_u8(), null);
+		case "NSet":
+			return new Moz86.NSet(sets[r.read_u16()], null);
+		case "NStr":
+			return new Moz86.NStr(strs[r.read_u16()], null);
+		case "NAny":
+			return new Moz86.NAny(null, null);
+		case "OByte":
+			return new Moz86.OByte(r.read_u8(), null);
+		case "OSet":
+			return new Moz86.OSet(sets[r.read_u16()], null);
+		case "OStr":
+			return new Moz86.OStr(strs[r.read_u16()], null);
+		case "RByte":
+			return new Moz86.RByte(r.read_u8(), null);
+		case "RSet":
+			return new Moz86.RSet(sets[r.read_u16()], null);
+		case "RStr":
+			return new Moz86.RStr(strs[r.read_u16()], null);
+
+		case "Dispatch":
+			jumpTables[id] = read_jumpTable();
+			return new Moz86.Dispatch((Nez.Choice) null, null);
+		case "DDispatch":
+			jumpTables[id] = read_jumpTable();
+			return new Moz86.DDispatch(null, null);
+		case "Dfa":
+			return new Moz86.Dfa(read_dfa(), null);
+
+		case "TPush":
+			return new Moz86.TPush(null, null);
+		case "TPop":
+			return new Moz86.TPop(null, null);
+		case "TBegin":
+			return new Moz86.TBegin(r.read_i8(), null);
+		case "TEnd": {
+			int shift = r.read_i8();
+			Symbol tag = read_label();
+			String value = r.read_b() ? StringUtils.newString(strs[r.read_u16()]) : null;
+			return new Moz86.TEnd(tag, value, shift, null);
+		}
+		case "TTag":
+			return new Moz86.TTag(tags[r.read_u16()], null);
+		case "TReplace":
+			return new Moz86.TReplace(StringUtils.newString(strs[r.read_u16()]), null);
+		case "TLink":
+			return new Moz86.TLink(read_label(), null);
+		case "TFold": {
+			int shift = r.read_i8();
+			return new Moz86.TFold(read_label(), shift, null);
+		}
+		case "TEmit":
+			return new Moz86.TEmit(read_label(), null);
+		case "TStart":
+			return new Moz86.TStart(null);
+
+		case "SOpen":
+			return new Moz86.SOpen(null);
+		case "SClose":
+			return new Moz86.SClose(null, null);
+		case "SMask":
+			return new Moz86.SMask(tables[r.read_u16()], null);
+		case "SDef":
+			return new Moz86.SDef(tables[r.read_u16()], null);
+		case "SExists":
+			return new Moz86.SExists(tables[r.read_u16()], null);
+		case "SIsDef": {
+			Symbol table = tables[r.read_u16()];
+			return new Moz86.SIsDef(table, strs[r.read_u16()], null);
+		}
+		case "SMatch":
+			return new Moz86.SMatch(tables[r.read_u16()], null);
+		case "SIs":
+			return new Moz86.SIs(tables[r.read_u16()], null);
+		case "SIsa":
+			return new Moz86.SIsa(tables[r.read_u16()], null);
+
+		case "NScan": {
+			long mask = ((long) r.read_u32() << 32) | (r.read_u32() & 0xffffffffL);
+			return new Moz86.NScan(mask, r.read_i8(), null);
+		}
+		case "NDec":
+			jumps[id] = r.read_u24();
+			return new Moz86.NDec(null, null);
+
+		case "Lookup": {
+			MemoPoint m = read_memoPoint();
+			jumps[id] = r.read_u24();
+			return new Moz86.Lookup(null, m, null, null);
+		}
+		case "Memo":
+			return new Moz86.Memo(null, read_memoPoint(), null);
+		case "MemoFail":
+			return new Moz86.MemoFail(null, read_memoPoint());
+		case "TLookup": {
+			MemoPoint m = read_memoPoint();
+			jumps[id] = r.read_u24();
+			return new Moz86.TLookup(read_label(), m, null, null);
+		}
+		case "TMemo":
+			return new Moz86.TMemo(null, read_memoPoint(), null);
+
+		case "BinaryByte":
+			r.read_u8();
+			return new Moz86.BinaryByte(null);
+		case "BinaryNByte":
+			return new Moz86.BinaryNByte(r.read_u8(), null);
+		case "BinaryOByte":
+			r.read_u8();
+			return new Moz86.BinaryOByte(null);
+		case "BinaryRByte":
+			r.read_u8();
+			return new Moz86.BinaryRByte(null);
+		case "BinarySet":
+			return new Moz86.BinarySet(sets[r.read_u16()], null);
+		case "BinaryNSet":
+			return new Moz86.BinaryNSet(sets[r.read_u16()], null);
+		case "BinaryOSet":
+			return new Moz86.BinaryOSet(sets[r.read_u16()], null);
+		case "BinaryRSet":
+			return new Moz86.BinaryRSet(sets[r.read_u16()], null);
+		}
+		throw new IOException("unsupported instruction " + Moz86.Specification[opcode][0]);
+	}
+
+	private static boolean isTerminal(MozInst inst) {
+		return inst instanceof Moz86.Ret || inst instanceof Moz86.Fail || inst instanceof Moz86.Exit || inst instanceof Moz86.Jump || inst instanceof Moz86.MemoFail;
+	}
+
+	private void link(MozInst inst, int id) {
+		if (inst instanceof Moz86.Dispatch) {
+			Moz86.Dispatch d = (Moz86.Dispatch) inst;
+			int[] table = jumpTables[id];
+			d.jumpTable = new MozInst[table.length];
+			for (int ch = 0; ch < table.length; ch++) {
+				MozInst jump = getInst(table[ch]);
+				d.jumpTable[ch] = (jump == d.next) ? jump : Moz86.joinPoint(jump);
+			}
+			return;
+		}
+		if (jumps[id] == NullJump) {
+			return;
+		}
+		MozInst jump = getInst(jumps[id]);
+		if (inst instanceof Moz86.Jump) {
+			((Moz86.Jump) inst).jump = jump;
+		} else if (inst instanceof Moz86.Call) {
+			((Moz86.Call) inst).jump = Moz86.joinPoint(jump);
+			Moz86.joinPoint(inst.next);
+		} else if (inst instanceof Moz86.Alt) {
+			((Moz86.Alt) inst).jump = Moz86.joinPoint(jump);
+		} else if (inst instanceof Moz86.NDec) {
+			((Moz86.NDec) inst).jump = jump;
+		} else if (inst instanceof Moz86.AbstMemo) {
+			((Moz86.AbstMemo) inst).jump = Moz86.joinPoint(jump);
+		}
+	}
+
+	private MozInst getInst(int id) {
+		return (id < insts.length) ? insts[id] : null;
+	}
+
+	private byte[] read_utf8() {
+		int len = r.read_u16();
+		byte[] b = new byte[len];
+		System.arraycopy(r.source, r.pos, b, 0, len);
+		r.pos += len + 1; // with '\0'
+		return b;
+	}
+
+	private Symbol read_symbol() {
+		return Symbol.unique(StringUtils.newString(read_utf8()));
+	}
+
+	private Symbol read_label() {
+		Symbol label = tags[r.read_u16()];
+		return label == Symbol.Null ? null : label;
+	}
+
+	private boolean[] read_bset() {
+		boolean[] b = new boolean[257];
+		for (int offset = 0; offset < 256; offset += 32) {
+			int n = r.read_u32();
+			for (int i = 0; i < 32; i++) {
+				b[offset + i] = (n & (1 << i)) != 0;
+			}
+		}
+		return b;
+	}
+
+	private int[] read_jumpTable() {
+		int[] table = new int[r.read_u16()];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = r.read_u24();
+		}
+		return table;
+	}
+
+	private LexicalDFA read_dfa() {
+		int size = r.read_u16();
+		int[] table = new int[size * 256];
+		boolean[] accepts = new boolean[size];
+		for (int state = 0; state < size; state++) {
+			accepts[state] = r.read_b();
+			for (int c = 0; c < 256; c++) {
+				int next = r.read_u16();
+				table[(state << 8) | c] = next == 0xffff ? -1 : next;
+			}
+		}
+		return new LexicalDFA(table, accepts);
+	}
+
+	private MemoPoint read_memoPoint() {
+		r.read_b(); // state
+		return memoPoints[r.read_u32()];
+	}
+
+}
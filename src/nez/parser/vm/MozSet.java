@@ -67,6 +67,7 @@ public class MozSet {
 	public final static byte DFirst = 55; // Dfa
 	public final static byte Cov = 56;
 	public final static byte Covx = 57;
+	public final static byte Lex = 58; // LexicalDFA
 
 	public final static byte Label = 127; // 7-bit
 
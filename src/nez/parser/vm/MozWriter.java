@@ -4,10 +4,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 import nez.ast.Symbol;
+import nez.parser.MemoPoint;
 import nez.parser.vm.Moz86.Alt;
 import nez.parser.vm.Moz86.Any;
 import nez.parser.vm.Moz86.Back;
@@ -15,6 +17,7 @@ import nez.parser.vm.Moz86.Byte;
 import nez.parser.vm.Moz86.Call;
 import nez.parser.vm.Moz86.Cov;
 import nez.parser.vm.Moz86.DDispatch;
+import nez.parser.vm.Moz86.Dfa;
 import nez.parser.vm.Moz86.Dispatch;
 import nez.parser.vm.Moz86.Exit;
 import nez.parser.vm.Moz86.Fail;
@@ -116,6 +119,8 @@ public class MozWriter extends InstructionVisitor {
 	int prodSize;
 	int jumpTableSize;
 	int memoSize;
+	boolean recognitionMode;
+	MemoPoint[] memoPoints;
 	ByteArrayOutputStream stream;
 	HashMap<String, StrEntry> NonTerminalPoolMap;
 	HashMap<String, SetEntry> BSetPoolMap;
@@ -132,6 +137,7 @@ public class MozWriter extends InstructionVisitor {
 		this.instSize = instSize;
 		this.prodSize = prodSize;
 		this.memoSize = memoSize;
+		this.memoPoints = new MemoPoint[memoSize];
 		NonTerminalPoolMap = new HashMap<>();
 		BSetPoolMap = new HashMap<>();
 		BStrPoolMap = new HashMap<>();
@@ -144,6 +150,10 @@ public class MozWriter extends InstructionVisitor {
 		TablePools = new ArrayList<>();
 	}
 
+	public void setRecognitionMode(boolean recognitionMode) {
+		this.recognitionMode = recognitionMode;
+	}
+
 	public void setInstructions(MozInst[] insts, int len) {
 		stream = new ByteArrayOutputStream();
 		for (int i = 0; i < len; i++) {
@@ -223,11 +233,12 @@ public class MozWriter extends InstructionVisitor {
 	}
 
 	public final void encodeJump(MozInst jump) {
-		write_u24(jump.id);
+		write_u24(jump == null ? MozReader.NullJump : jump.id);
 	}
 
 	public final void encodeJumpTable(MozInst[] table) {
 		this.jumpTableSize += 1;
+		write_u16(table.length);
 		for (MozInst j : table) {
 			encodeJump(j);
 		}
@@ -237,8 +248,9 @@ public class MozWriter extends InstructionVisitor {
 		stream.write(b ? 1 : 0);
 	}
 
-	public void encodeMemoPoint(int id) {
-		this.write_u32(id);
+	public void encodeMemoPoint(MemoPoint m) {
+		this.memoPoints[m.id] = m;
+		this.write_u32(m.id);
 	}
 
 	public void encodeShift(int shift) {
@@ -265,18 +277,15 @@ public class MozWriter extends InstructionVisitor {
 	}
 
 	public void encodeBstr(byte[] utf8) {
-		try {
-			String key = new String(utf8, StringUtils.DefaultEncoding);
-			StrEntry entry = BStrPoolMap.get(key);
-			if (entry == null) {
-				entry = new StrEntry(BStrPoolMap.size(), utf8);
-				BStrPoolMap.put(key, entry);
-				BStrPools.add(entry);
-			}
-			write_u16(entry.id);
-		} catch (IOException e) {
-			Verbose.traceException(e);
+		/* ISO-8859-1 keeps partial UTF-8 sequences distinct */
+		String key = new String(utf8, StandardCharsets.ISO_8859_1);
+		StrEntry entry = BStrPoolMap.get(key);
+		if (entry == null) {
+			entry = new StrEntry(BStrPoolMap.size(), utf8);
+			BStrPoolMap.put(key, entry);
+			BStrPools.add(entry);
 		}
+		write_u16(entry.id);
 	}
 
 	public void encodeNonTerminal(String key) {
@@ -320,13 +329,25 @@ public class MozWriter extends InstructionVisitor {
 	}
 
 	public void writeTo(String fileName) {
+		byte[] code = this.toByteArray();
+		try {
+			OutputStream out = new FileOutputStream(fileName);
+			out.write(code);
+			out.close();
+		} catch (IOException e) {
+			Verbose.traceException(e);
+		}
+	}
+
+	public byte[] toByteArray() {
 		byte[] body = stream.toByteArray();
 		stream = new ByteArrayOutputStream();
 		stream.write('N');
 		stream.write('E');
 		stream.write('Z');
-		stream.write('0');
+		stream.write('1');
 
+		write_b(recognitionMode);
 		write_u16(instSize);
 		write_u16(memoSize);
 		write_u16(jumpTableSize);
@@ -351,6 +372,11 @@ public class MozWriter extends InstructionVisitor {
 		for (TagEntry e : TablePools) {
 			encodeData(e.data);
 		}
+		for (MemoPoint m : memoPoints) {
+			write_utf8(StringUtils.toUtf8(m == null ? "" : m.label));
+			write_i8(m == null ? 0 : m.getTypestate().ordinal());
+			write_b(m != null && m.isStateful());
+		}
 		try {
 			stream.write(body);
 		} catch (IOException e1) {
@@ -358,21 +384,30 @@ public class MozWriter extends InstructionVisitor {
 		}
 
 		byte[] code = stream.toByteArray();
+		stream = new ByteArrayOutputStream();
 		try {
-			OutputStream out = new FileOutputStream(fileName);
-			out.write(code);
-			out.close();
+			stream.write(body);
 		} catch (IOException e) {
 			Verbose.traceException(e);
 		}
+		return code;
 	}
 
 	private void encode(MozInst inst) {
+		if (inst instanceof MozFusion.FusedInst) {
+			/* a superinstruction is encoded as its unfused head */
+			MozInst head = ((MozFusion.FusedInst) inst).head;
+			this.encodeOpcode((byte) (Moz86.opCode(head.getName()) | 128));
+			head.visit(this);
+			this.encodeJump(head.next);
+			return;
+		}
+		byte opcode = Moz86.opCode(inst.getName());
 		if (inst.isIncrementedNext()) {
-			this.encodeOpcode(inst.opcode);
+			this.encodeOpcode(opcode);
 			inst.visit(this);
 		} else {
-			this.encodeOpcode((byte) (inst.opcode | 128)); // opcode | 10000000
+			this.encodeOpcode((byte) (opcode | 128)); // opcode | 10000000
 			inst.visit(this);
 			this.encodeJump(inst.next);
 		}
@@ -520,17 +555,23 @@ public class MozWriter extends InstructionVisitor {
 
 	@Override
 	public void visitDispatch(Dispatch inst) {
-		this.encodeJumpTable();
-		for (int i = 0; i < inst.jumpTable.length; i++) {
-			this.encodeJump(inst.jumpTable[i]);
-		}
+		this.encodeJumpTable(inst.jumpTable);
 	}
 
 	@Override
 	public void visitDDispatch(DDispatch inst) {
-		this.encodeJumpTable();
-		for (int i = 0; i < inst.jumpTable.length; i++) {
-			this.encodeJump(inst.jumpTable[i]);
+		this.encodeJumpTable(inst.jumpTable);
+	}
+
+	@Override
+	public void visitDfa(Dfa inst) {
+		int size = inst.dfa.size();
+		write_u16(size);
+		for (int state = 0; state < size; state++) {
+			write_b(inst.dfa.isAccepted(state));
+			for (int c = 0; c < 256; c++) {
+				write_u16(inst.dfa.next(state, c)); // 0xffff for -1
+			}
 		}
 	}
 
@@ -550,6 +591,11 @@ public class MozWriter extends InstructionVisitor {
 	@Override
 	public void visitTEnd(TEnd inst) {
 		this.encodeShift(inst.shift);
+		this.encodeLabel(inst.tag);
+		this.write_b(inst.value != null);
+		if (inst.value != null) {
+			this.encodeBstr(StringUtils.toUtf8(inst.value));
+		}
 	}
 
 	@Override
@@ -559,7 +605,7 @@ public class MozWriter extends InstructionVisitor {
 
 	@Override
 	public void visitTReplace(TReplace inst) {
-		this.encodeBstr(inst.value.getBytes());
+		this.encodeBstr(StringUtils.toUtf8(inst.value));
 	}
 
 	@Override
@@ -628,39 +674,39 @@ public class MozWriter extends InstructionVisitor {
 
 	@Override
 	public void visitNScan(NScan inst) {
-		// TODO Auto-generated method stub
-
+		this.write_u32((int) (inst.mask >>> 32));
+		this.write_u32((int) inst.mask);
+		this.encodeShift(inst.shift);
 	}
 
 	@Override
 	public void visitNDec(NDec inst) {
-		// TODO Auto-generated method stub
-
+		this.encodeJump(inst.jump);
 	}
 
 	@Override
 	public void visitLookup(Lookup inst) {
 		this.write_b(inst.state);
-		this.write_u32(inst.uid);
+		this.encodeMemoPoint(inst.memoPoint);
 		this.encodeJump(inst.jump);
 	}
 
 	@Override
 	public void visitMemo(Memo inst) {
 		this.write_b(inst.state);
-		this.write_u32(inst.uid);
+		this.encodeMemoPoint(inst.memoPoint);
 	}
 
 	@Override
 	public void visitMemoFail(MemoFail inst) {
 		this.write_b(inst.state);
-		this.write_u32(inst.uid);
+		this.encodeMemoPoint(inst.memoPoint);
 	}
 
 	@Override
 	public void visitTLookup(TLookup inst) {
 		this.write_b(inst.state);
-		this.write_u32(inst.uid);
+		this.encodeMemoPoint(inst.memoPoint);
 		this.encodeJump(inst.jump);
 		this.encodeLabel(inst.label);
 	}
@@ -668,7 +714,7 @@ public class MozWriter extends InstructionVisitor {
 	@Override
 	public void visitTMemo(TMemo inst) {
 		this.write_b(inst.state);
-		this.write_u32(inst.uid);
+		this.encodeMemoPoint(inst.memoPoint);
 	}
 
 }
@@ -31,13 +31,39 @@ public class ParserMachineCompiler implements ParserCompiler {
 	public MozCode compile(Grammar grammar) {
 		long t = System.nanoTime();
 		MozCode code = new MozCode(grammar);
-		if (strategy.PackratParsing) {
+		if (strategy.PackratParsing || strategy.Incremental) {
 			code.initMemoPoint(strategy);
 		}
 		code.initCoverage(strategy);
+		code.initMemoProfiling(strategy);
 		new CompilerVisitor(code, grammar).compile();
-		long t2 = System.nanoTime();
-		Verbose.printElapsedTime("CompilingTime", t, t2);
+		if (strategy.InstProfiling && !strategy.Moz) {
+			code.initInstructionProfile(strategy);
+			Verbose.printElapsedTime("CompilingTime", t, System.nanoTime());
+			return code;
+		}
+		if (strategy.Ofuse && !strategy.Moz && !strategy.JIT) {
+			new MozFusion(InstructionProfile.load(InstructionProfile.getProfilePath(grammar, strategy))).fuse(code);
+		}
+		Verbose.printElapsedTime("CompilingTime", t, System.nanoTime());
+		if (strategy.JIT && !strategy.Moz) {
+			MozJITCompiler.compile(code);
+		}
+		return code;
+	}
+
+	/**
+	 * Applies the code-level optimizations (superinstructions and JIT) to
+	 * code loaded from a .moz file, which stores the code before them.
+	 */
+
+	public final MozCode link(MozCode code, String profilePath) {
+		if (strategy.Ofuse && !strategy.Moz && !strategy.JIT) {
+			new MozFusion(InstructionProfile.load(profilePath)).fuse(code);
+		}
+		if (strategy.JIT && !strategy.Moz) {
+			MozJITCompiler.compile(code);
+		}
 		return code;
 	}
 
@@ -46,9 +72,12 @@ public class ParserMachineCompiler implements ParserCompiler {
 		final MozCode code;
 		final Grammar grammar;
 
+		final LexicalDFAConverter dfaConverter;
+
 		CompilerVisitor(MozCode code, Grammar grammar) {
 			this.code = code;
 			this.grammar = grammar;
+			this.dfaConverter = strategy.Odfa ? new LexicalDFAConverter() : null;
 			for (Production p : grammar) {
 				code.setProductionCode(p, new ProductionCode<MozInst>(null));
 			}
@@ -76,14 +105,19 @@ public class ParserMachineCompiler implements ParserCompiler {
 		protected void visitProduction(UList<MozInst> codeList, Production p, MozInst next) {
 			ProductionCode<MozInst> f = code.getProductionCode(p);
 			encodingProduction = p;
+			LexicalDFA dfa = dfaConverter == null ? null : dfaConverter.convert(p);
 			if (strategy.Moz) {
 				// next = Coverage.visitExitCoverage(p, next);
 				next = compile(p.getExpression(), next, null/* failjump */);
 				// next = Coverage.visitEnterCoverage(p, next);
 				f.setCompiled(next);
+			} else if (dfa != null) {
+				next = new Moz86.Dfa(dfa, next);
+				f.setCompiled(next);
 			} else {
 				MemoPoint memoPoint = code.getMemoPoint(p.getUniqueName());
 				next = compile(memoPoint, p.getExpression(), next);
+				next = code.compileMemoProfile(p, next);
 				f.setCompiled(next);
 			}
 			MozInst block = new Moz86.Nop(p.getLocalName(), next);
@@ -185,6 +219,12 @@ public class ParserMachineCompiler implements ParserCompiler {
 
 		private MozInst compileNonTerminal(NonTerminal n, Object next) {
 			Production p = n.getProduction();
+			if (dfaConverter != null) {
+				LexicalDFA dfa = dfaConverter.convert(p);
+				if (dfa != null) {
+					return new Moz86.Dfa(dfa, (MozInst) next);
+				}
+			}
 			ProductionCode<MozInst> f = code.getProductionCode(p);
 			return new Moz86.Call(f, p.getLocalName(), (MozInst) next);
 		}
@@ -3,6 +3,8 @@ package nez.parser.vm;
 import nez.ast.Source;
 import nez.ast.Symbol;
 import nez.ast.Tree;
+import nez.parser.IncrementalMemo;
+import nez.parser.MemoProfile;
 import nez.parser.ParserContext;
 
 public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
@@ -40,6 +42,21 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		return false;
 	}
 
+	@Override
+	public final void skipWhile(boolean[] byteSet) {
+		this.pos = (int) source.skipWhile(pos, byteSet);
+	}
+
+	@Override
+	public final void skipWhile(int byteChar) {
+		this.pos = (int) source.skipWhile(pos, byteChar);
+	}
+
+	@Override
+	public final void skipWhile(byte[] text) {
+		this.pos = (int) source.skipWhile(pos, text);
+	}
+
 	@Override
 	public final byte[] subByte(int start, int end) {
 		return source.subByte(start, end);
@@ -52,6 +69,37 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 
 	private int head_pos = 0;
 
+	@Override
+	public final void reset(Source source, T proto) {
+		super.reset(source, proto);
+		this.head_pos = 0;
+		this.incremental = null;
+		this.headTop = 0;
+		this.initVM();
+	}
+
+	@Override
+	public final void release() {
+		this.commitMemoProfile();
+		super.release();
+		this.incremental = null;
+		for (StackData s : this.stacks) {
+			s.ref = null;
+		}
+	}
+
+	/**
+	 * Restarts parsing at pos of the same source. Unlike reset(), memoized
+	 * results are kept.
+	 */
+	public final void restart(long pos, T proto) {
+		this.resetState(proto);
+		this.pos = (int) pos;
+		this.head_pos = (int) pos;
+		this.headTop = 0;
+		this.initVM();
+	}
+
 	@Override
 	public final void back(int pos) {
 		if (head_pos < this.pos) {
@@ -85,9 +133,11 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 	private int catchStackTop;
 
 	public final void initVM() {
-		this.stacks = new StackData[StackSize];
-		for (int i = 0; i < StackSize; i++) {
-			this.stacks[i] = new StackData();
+		if (this.stacks == null) {
+			this.stacks = new StackData[StackSize];
+			for (int i = 0; i < StackSize; i++) {
+				this.stacks[i] = new StackData();
+			}
 		}
 		this.stacks[0].ref = null;
 		this.stacks[0].value = 0;
@@ -129,6 +179,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 
 	public final void xPos() {
 		StackData s = this.newUnusedStack();
+		s.ref = null;
 		s.value = this.pos;
 	}
 
@@ -204,11 +255,38 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		}
 		s1.value = this.pos;
 		StackData s2 = stacks[catchStackTop + 2];
+		if (this.committer != null && stacks[catchStackTop].value == 0) {
+			this.commit();
+		}
 		s2.value = this.saveLog();
 		s2.ref = this.saveSymbolPoint(); // FIXME slow
 		return next;
 	}
 
+	/* Committing */
+
+	private TreeCommitter<T> committer = null;
+
+	/**
+	 * Passes the subtrees of the outermost node to the committer as soon as
+	 * no backtracking can discard them, that is, at each step of a
+	 * repetition that no choice encloses (e.g., File = { (@Element)* }).
+	 */
+
+	public final void setTreeCommitter(TreeCommitter<T> committer) {
+		this.committer = committer;
+	}
+
+	/* only calls may be pending; a pushed tree or position holds the log */
+	private void commit() {
+		for (int i = 4; i < catchStackTop; i++) {
+			if (!(stacks[i].ref instanceof MozInst)) {
+				return;
+			}
+		}
+		this.commitTree(committer);
+	}
+
 	public final void xTPush() {
 		StackData s = this.newUnusedStack();
 		s.ref = this.left;
@@ -232,6 +310,7 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 
 	public final void xSOpen() {
 		StackData s = this.newUnusedStack();
+		s.ref = null;
 		s.value = this.saveSymbolPoint();
 	}
 
@@ -240,11 +319,124 @@ public class ParserMachineContext<T extends Tree<T>> extends ParserContext<T> {
 		this.backSymbolPoint(s.value);
 	}
 
+	/* ----------------------------------------------------------------- */
+	/* Incremental parsing */
+
+	private IncrementalMemo<T> incremental = null;
+	private int[] heads = new int[64];
+	private int headTop = 0;
+
+	/**
+	 * Routes memoization to an incremental memo table. On a miss, head_pos
+	 * is restarted at the current position, so that the furthest position
+	 * of each production is known when its result is stored.
+	 */
+
+	public final void setIncrementalMemo(IncrementalMemo<T> memo) {
+		this.incremental = memo;
+		this.headTop = 0;
+	}
+
+	private int lookupIncremental(int memoPoint, boolean tree) {
+		IncrementalMemo.Entry<T> e = incremental.find(pos, memoPoint);
+		if (e == null) {
+			if (headTop == heads.length) {
+				int[] newheads = new int[heads.length * 2];
+				System.arraycopy(heads, 0, newheads, 0, headTop);
+				this.heads = newheads;
+			}
+			heads[headTop++] = head_pos;
+			this.head_pos = pos;
+			return NotFound;
+		}
+		if (head_pos < pos + e.reach) {
+			this.head_pos = pos + e.reach;
+		}
+		if (tree && e.result == SuccFound) {
+			this.left = incremental.tree(e, pos, source);
+		}
+		this.pos += e.consumed;
+		return e.result;
+	}
+
+	/* the furthest position examined since the lookup, relative to ppos */
+	private int reach(int ppos) {
+		int max = head_pos < pos ? pos : head_pos;
+		int saved = heads[--headTop];
+		this.head_pos = saved < max ? max : saved;
+		return max - ppos;
+	}
+
+	@Override
+	public final int lookupMemo(int memoPoint) {
+		if (incremental != null) {
+			return lookupIncremental(memoPoint, false);
+		}
+		return super.lookupMemo(memoPoint);
+	}
+
+	@Override
+	public final int lookupTreeMemo(int memoPoint) {
+		if (incremental != null) {
+			return lookupIncremental(memoPoint, true);
+		}
+		return super.lookupTreeMemo(memoPoint);
+	}
+
+	@Override
+	public final void memoSucc(int memoPoint, int ppos) {
+		if (incremental != null) {
+			incremental.store(ppos, memoPoint, pos - ppos, reach(ppos), SuccFound, null);
+			return;
+		}
+		super.memoSucc(memoPoint, ppos);
+	}
+
+	@Override
+	public final void memoTreeSucc(int memoPoint, int ppos) {
+		if (incremental != null) {
+			incremental.store(ppos, memoPoint, pos - ppos, reach(ppos), SuccFound, left);
+			return;
+		}
+		super.memoTreeSucc(memoPoint, ppos);
+	}
+
+	@Override
+	public final void memoFail(int memoPoint) {
+		if (incremental != null) {
+			incremental.store(pos, memoPoint, 0, reach(pos), FailFound, null);
+			return;
+		}
+		super.memoFail(memoPoint);
+	}
+
 	/* ----------------------------------------------------------------- */
 	/* Trap */
 
-	public final void trap(int uid) {
+	private MemoProfile.Recorder memoRecorder = null;
 
+	public final void setMemoProfile(MemoProfile memoProfile) {
+		if (memoProfile == null) {
+			this.memoRecorder = null;
+		} else if (this.memoRecorder == null || this.memoRecorder.getProfile() != memoProfile) {
+			this.memoRecorder = memoProfile.newRecorder();
+		}
+	}
+
+	/**
+	 * Adds the calls counted since the last commit to the memo profile.
+	 */
+
+	public final void commitMemoProfile() {
+		if (memoRecorder != null) {
+			memoRecorder.commit();
+		}
+	}
+
+	public final void trap(int uid) {
+		if (memoRecorder != null) {
+			memoRecorder.enter(uid, this.pos);
+		}
 	}
 
 }
@@ -44,6 +44,18 @@ public class FileBuilder {
 		}
 	}
 
+	public final void write(byte[] b, int offset, int length) {
+		try {
+			if (out == null) {
+				System.out.write(b, offset, length);
+			} else {
+				out.write(b, offset, length);
+			}
+		} catch (IOException e) {
+			ConsoleUtils.exit(1, "IO error: " + e.getMessage());
+		}
+	}
+
 	public final void flush() {
 		try {
 			if (out == null) {
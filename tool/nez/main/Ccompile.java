@@ -4,11 +4,16 @@ import java.io.IOException;
 
 import nez.parser.Parser;
 import nez.parser.ParserCode;
+import nez.parser.vm.MozCode;
 
 public class Ccompile extends Command {
 	@Override
 	public void exec() throws IOException {
 		Parser parser = newParser();
+		if (outputFile != null) {
+			MozCode.writeMozCode(parser, outputFile);
+			return;
+		}
 		ParserCode<?> code = parser.compile();
 		code.dump();
 	}
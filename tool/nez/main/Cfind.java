@@ -0,0 +1,36 @@
+package nez.main;
+
+import java.io.IOException;
+
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.parser.Parser;
+import nez.util.ConsoleUtils;
+import nez.util.StringUtils;
+import nez.util.Verbose;
+
+public class Cfind extends Command {
+	@Override
+	public void exec() throws IOException {
+		checkInputSource();
+		strategy.TreeConstruction = false;
+		Parser parser = newParser();
+		long total = 0, consumed = 0, time = 0;
+		while (hasInputSource()) {
+			Source input = nextInputSource();
+			long t = System.nanoTime();
+			total += parser.find(input, new CommonTree(), (start, end, tree) -> {
+				ConsoleUtils.println("%s:%d:%d: %s", input.getResourceName(), input.linenum(start), input.column(start), firstLine(input, start, end));
+			});
+			time += System.nanoTime() - t;
+			consumed += input.length();
+		}
+		Verbose.println(total + " matches, " + StringUtils.formatMPS(consumed, time) + " MiB/s");
+	}
+
+	private static String firstLine(Source input, long start, long end) {
+		String text = input.subString(start, end);
+		int loc = text.indexOf('\n');
+		return loc == -1 ? text : text.substring(0, loc);
+	}
+}
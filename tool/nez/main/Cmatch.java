@@ -4,6 +4,7 @@ import java.io.IOException;
 
 import nez.ast.Source;
 import nez.parser.Parser;
+import nez.tool.ast.TreeCache;
 import nez.util.ConsoleUtils;
 import nez.util.StringUtils;
 import nez.util.UList;
@@ -13,7 +14,8 @@ public class Cmatch extends Command {
 	@Override
 	public void exec() throws IOException {
 		strategy.TreeConstruction = false;
-		Parser parser = newParser();
+		Parser parser = newCodeParser();
+		TreeCache cache = this.newTreeCache();
 
 		UList<String> failedInputs = new UList<String>(new String[4]);
 
@@ -26,7 +28,7 @@ public class Cmatch extends Command {
 			totalCount++;
 
 			long t = System.nanoTime();
-			boolean result = parser.match(file);
+			boolean result = cache == null ? parser.match(file) : cache.match(parser, file);
 			long t2 = System.nanoTime();
 			if (parser.hasErrors()) {
 				parser.showErrors();
@@ -37,6 +39,9 @@ public class Cmatch extends Command {
 			time += (t2 - t);
 			parser.logProfiler();
 		}
+		if (cache != null) {
+			cache.log();
+		}
 		if (totalCount > 1) {
 			Verbose.println(totalCount + " files, " + StringUtils.formatMPS(consumed, time) + " MiB/s, " + failureCount + " failed, " + unconsumedCount + " uncosumed, "
 					+ StringUtils.formatParcentage(totalCount - (unconsumedCount + failureCount), totalCount) + "% passed.");
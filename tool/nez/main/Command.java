@@ -8,8 +8,13 @@ import nez.ast.Source;
 import nez.lang.Grammar;
 import nez.lang.ast.NezGrammarCombinator;
 import nez.parser.Parser;
+import nez.parser.ParserProfiler;
 import nez.parser.ParserStrategy;
 import nez.parser.io.CommonSource;
+import nez.parser.io.StreamSource;
+import nez.parser.vm.MozReader;
+import nez.tool.ast.TreeBinaryWriter;
+import nez.tool.ast.TreeCache;
 import nez.tool.ast.TreeJSONWriter;
 import nez.tool.ast.TreeWriter;
 import nez.tool.ast.TreeXMLWriter;
@@ -72,6 +77,9 @@ public abstract class Command {
 	protected UList<String> inputFiles = new UList<String>(new String[4]);
 	protected String outputFormat = null;
 	protected String outputDirectory = null;
+	protected String outputFile = null;
+	protected String cacheDirectory = null;
+	protected long cacheSize = TreeCache.DefaultMaxSize;
 
 	private void parseCommandOption(String[] args) {
 		for (int index = 1; index < args.length; index++) {
@@ -115,6 +123,25 @@ public abstract class Command {
 					index++;
 					continue;
 				}
+				if (as.equals("-o") || as.equals("--output")) {
+					outputFile = args[index + 1];
+					index++;
+					continue;
+				}
+				if (as.equals("--cache")) {
+					cacheDirectory = args[index + 1];
+					index++;
+					continue;
+				}
+				if (as.equals("--cache-size")) {
+					cacheSize = Long.parseLong(args[index + 1]) << 20;
+					index++;
+					continue;
+				}
+			}
+			if (as.equals("-")) { // stdin
+				this.inputFiles.add(as);
+				continue;
 			}
 			if (as.equals("--verbose")) {
 				Verbose.enabled = true;
@@ -145,15 +172,22 @@ public abstract class Command {
 		// ConsoleUtils.println("  -a <file>      Specify a Nez auxiliary grammar files");
 		ConsoleUtils.println("  -s | --start <NAME>        Specify a starting production");
 		ConsoleUtils.println("  -d | --dir <dirname>       Specify an output dir");
+		ConsoleUtils.println("  -o | --output <file>       Specify an output file");
+		ConsoleUtils.println("  --cache <dirname>          Reuse the results of unchanged inputs");
+		ConsoleUtils.println("  --cache-size <MiB>         Specify the maximum cache size");
 		ConsoleUtils.println("Example:");
 		ConsoleUtils.println("  nez parse -g js.nez jquery.js --format json");
 		ConsoleUtils.println("  nez match -g js.nez *.js");
+		ConsoleUtils.println("  nez find -g js.nez -s FunctionDeclaration *.js");
 		ConsoleUtils.println("  nez parser -g math.nez --format c");
+		ConsoleUtils.println("  nez compile -g math.nez -o math.moz");
+		ConsoleUtils.println("  cat *.csv | nez parse -g csv.nez -s Line -");
 		ConsoleUtils.println("");
 
 		ConsoleUtils.println("The most commonly used nez commands are:");
 		ConsoleUtils.println("  parse      parse inputs and construct ASTs");
 		ConsoleUtils.println("  match      match inputs without ASTs");
+		ConsoleUtils.println("  find       find all matches of a production in inputs");
 		ConsoleUtils.println("  inez       an interactive parser");
 		ConsoleUtils.println("  code       generate a parser source code for --format");
 		ConsoleUtils.println("  cnez       generate a C-based fast parser");
@@ -178,7 +212,31 @@ public abstract class Command {
 	}
 
 	public final Parser newParser() throws IOException {
-		return this.strategy.newParser(newGrammar());
+		return newParser(false);
+	}
+
+	/**
+	 * Creates a parser for commands that only run it (parse, match); the
+	 * grammar file is not loaded if its code is cached.
+	 */
+
+	public final Parser newCodeParser() throws IOException {
+		return newParser(true);
+	}
+
+	private Parser newParser(boolean codeOnly) throws IOException {
+		Parser parser;
+		if (grammarFile != null && grammarFile.endsWith(".moz")) {
+			parser = new Parser(new MozReader(strategy).read(grammarFile), strategy);
+		} else if (codeOnly && grammarFile != null && grammarFiles.size() == 0) {
+			parser = new ParserGenerator().newCodeParser(grammarFile, startProduction, strategy);
+		} else {
+			parser = newGrammar().newParser(startProduction, strategy);
+		}
+		if (strategy.Profiling) {
+			parser.setProfiler(new ParserProfiler("nezprof.csv"));
+		}
+		return parser;
 	}
 
 	public final Parser getNezParser() {
@@ -208,6 +266,9 @@ public abstract class Command {
 			}
 			String path = this.inputFiles.ArrayValues[fileIndex];
 			fileIndex++;
+			if (path.equals("-")) {
+				return new StreamSource("-", System.in, strategy.SlidingWindow);
+			}
 			return CommonSource.newFileSource(path);
 		}
 		return CommonSource.newStringSource(""); // empty input
@@ -221,6 +282,13 @@ public abstract class Command {
 		}
 	}
 
+	public final TreeCache newTreeCache() throws IOException {
+		if (cacheDirectory != null) {
+			return new TreeCache(cacheDirectory, cacheSize);
+		}
+		return null;
+	}
+
 	public final TreeWriter getTreeWriter(String options, String defaultFormat) {
 		if (outputFormat == null) {
 			outputFormat = defaultFormat;
@@ -234,6 +302,10 @@ public abstract class Command {
 			return new TreeXMLWriter();
 		case "json":
 			return new TreeJSONWriter();
+		case "jsonl":
+			return new TreeJSONWriter.JSONLinesWriter();
+		case "bin":
+			return new TreeBinaryWriter();
 		}
 		return (TreeWriter) newExtendedOutputHandler("", options);
 	}
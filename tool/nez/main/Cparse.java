@@ -2,20 +2,30 @@ package nez.main;
 
 import java.io.IOException;
 
+import nez.ast.CommonTree;
 import nez.ast.Source;
 import nez.ast.Tree;
 import nez.parser.Parser;
+import nez.parser.io.StreamSource;
+import nez.tool.ast.TreeCache;
 import nez.tool.ast.TreeWriter;
 
 public class Cparse extends Command {
 	@Override
 	public void exec() throws IOException {
 		checkInputSource();
-		Parser parser = newParser();
-		TreeWriter tw = this.getTreeWriter("ast xml json", "line");
+		Parser parser = newCodeParser();
+		TreeWriter tw = this.getTreeWriter("ast xml json jsonl bin", "line");
+		TreeCache cache = this.newTreeCache();
 		while (hasInputSource()) {
 			Source input = nextInputSource();
-			Tree<?> node = parser.parse(input);
+			if (input instanceof StreamSource) {
+				parser.parseStream((StreamSource) input, new CommonTree(), (t) -> tw.writeTree(t));
+				parser.showErrors();
+				continue;
+			}
+			Tree<?> node = cache == null ? parser.parse(input) : cache.parse(parser, input);
+			parser.logProfiler();
 			if (node == null) {
 				parser.showErrors();
 				continue;
@@ -29,6 +39,11 @@ public class Cparse extends Command {
 			tw.writeTree(node);
 			// }
 		}
+		parser.saveProfiles();
+		tw.close();
+		if (cache != null) {
+			cache.log();
+		}
 	}
 
 	// private void record(ParserProfier prof, Tree<?> node) {
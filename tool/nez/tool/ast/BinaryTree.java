@@ -0,0 +1,75 @@
+package nez.tool.ast;
+
+import nez.ast.Source;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+
+/**
+ * BinaryTree is a view of a node in a file read by TreeBinaryReader.
+ * Creating a view decodes the node itself (tag, span, labels and value);
+ * its children are decoded when they are first accessed. To visit many
+ * nodes without making a view of each, use TreeBinaryReader.Cursor.
+ *
+ * BinaryTree can also be a prototype (e.g., of a parser): the nodes it
+ * creates are held in memory, like CommonTree, and are not backed by a file.
+ */
+
+public class BinaryTree extends Tree<BinaryTree> {
+	private final TreeBinaryReader.Cursor cursor; // null if not read from a file
+
+	public BinaryTree() {
+		super(Symbol.unique("prototype"), null, 0, 0, null, null);
+		this.cursor = null;
+	}
+
+	BinaryTree(TreeBinaryReader.Cursor cursor) {
+		super(cursor.tag(), cursor.getReader().getSource(), cursor.pos(), cursor.length(), newSubTree(cursor.size()), cursor.value());
+		this.cursor = cursor;
+		cursor.labels(this.labels);
+	}
+
+	private BinaryTree(Symbol tag, Source source, long pos, int len, int size, Object value) {
+		super(tag, source, pos, len, newSubTree(size), value);
+		this.cursor = null;
+	}
+
+	private static BinaryTree[] newSubTree(int size) {
+		return size > 0 ? new BinaryTree[size] : null;
+	}
+
+	@Override
+	public BinaryTree get(int index) {
+		BinaryTree t = this.subTree[index];
+		if (t == null && this.cursor != null) {
+			synchronized (this.cursor) {
+				t = this.cursor.childTree(index);
+			}
+			this.subTree[index] = t;
+		}
+		return t;
+	}
+
+	@Override
+	public BinaryTree newInstance(Symbol tag, Source source, long pos, int len, int objectsize, Object value) {
+		return new BinaryTree(tag, source, pos, len, objectsize, value);
+	}
+
+	@Override
+	public void link(int n, Symbol label, Object child) {
+		this.set(n, label, (BinaryTree) child);
+	}
+
+	@Override
+	public BinaryTree newInstance(Symbol tag, int objectsize, Object value) {
+		return new BinaryTree(tag, this.getSource(), this.getSourcePosition(), 0, objectsize, value);
+	}
+
+	@Override
+	protected BinaryTree dupImpl() {
+		if (this.cursor != null) {
+			return this.cursor.toTree();
+		}
+		return new BinaryTree(this.getTag(), this.getSource(), this.getSourcePosition(), this.getLength(), this.size(), this.getValue());
+	}
+
+}
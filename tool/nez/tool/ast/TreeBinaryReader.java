@@ -0,0 +1,374 @@
+package nez.tool.ast;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+import nez.ast.Source;
+import nez.ast.Symbol;
+import nez.util.UList;
+import nez.util.Verbose;
+
+/**
+ * TreeBinaryReader maps a file written by TreeBinaryWriter and exposes its
+ * trees as BinaryTree views. Only the record headers are read when the file
+ * is opened; nodes are decoded when they are visited. The source, if given,
+ * supplies the text of nodes that do not embed it.
+ *
+ * A Cursor walks the nodes of a record without allocating; toTree() makes a
+ * BinaryTree for the node under the cursor when a Tree is needed.
+ *
+ * <pre>
+ * TreeBinaryReader.Cursor c = reader.getCursor(0);
+ * if (c != null &amp;&amp; c.moveToFirstChild()) {
+ *   do {
+ *     System.out.println(c.label() + " " + c.tag() + " " + c.text());
+ *   } while (c.moveToNextSibling());
+ * }
+ * </pre>
+ */
+
+public class TreeBinaryReader {
+	private final String fileName;
+	private final Source source;
+	private final MappedByteBuffer buf;
+	private final UList<Record> records = new UList<Record>(new Record[4]);
+
+	public TreeBinaryReader(String fileName) throws IOException {
+		this(fileName, null);
+	}
+
+	public TreeBinaryReader(String fileName, Source source) throws IOException {
+		this.fileName = fileName;
+		this.source = source;
+		try (RandomAccessFile file = new RandomAccessFile(fileName, "r")) {
+			FileChannel channel = file.getChannel();
+			if (channel.size() > Integer.MAX_VALUE) {
+				throw new IOException("too large tree file: " + fileName);
+			}
+			this.buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		} catch (IOException e) {
+			Verbose.traceException(e);
+			throw e;
+		}
+		int pos = 0;
+		while (pos < buf.limit()) {
+			if (pos + TreeBinaryWriter.HeaderSize > buf.limit() || buf.get(pos) != 'N' || buf.get(pos + 1) != 'E' || buf.get(pos + 2) != 'Z' || buf.get(pos + 3) != 'T') {
+				throw new IOException("broken tree file: " + fileName + " at " + pos);
+			}
+			if (buf.get(pos + 4) != TreeBinaryWriter.Version) {
+				throw new IOException("unsupported version: " + fileName + " at " + pos);
+			}
+			Record r = new Record(pos, buf.get(pos + 5), buf.getInt(pos + 10), buf.getInt(pos + 14));
+			records.add(r);
+			int length = buf.getInt(pos + 6);
+			if (length < TreeBinaryWriter.HeaderSize) {
+				throw new IOException("broken tree file: " + fileName + " at " + pos);
+			}
+			pos += length;
+		}
+	}
+
+	public final String getFileName() {
+		return this.fileName;
+	}
+
+	public final Source getSource() {
+		return this.source;
+	}
+
+	/**
+	 * Returns the number of trees (records) in the file.
+	 */
+
+	public final int size() {
+		return records.size();
+	}
+
+	public final BinaryTree getTree(int index) {
+		Cursor c = getCursor(index);
+		return c == null ? null : c.toTree();
+	}
+
+	/**
+	 * Returns a cursor at the root of the index-th tree, or null if the tree
+	 * is null.
+	 */
+
+	public final Cursor getCursor(int index) {
+		Record r = records.ArrayValues[index];
+		if (r.root == 0) {
+			return null;
+		}
+		Cursor c = new Cursor(r);
+		c.load(r.base + r.root, 0, 0);
+		return c;
+	}
+
+	public final BinaryTree getTree() {
+		return size() == 0 ? null : getTree(0);
+	}
+
+	final static class Record {
+		final int base;
+		final int flags;
+		final int root;
+		final int dictionary;
+		private Symbol[] symbols;
+
+		Record(int base, int flags, int root, int dictionary) {
+			this.base = base;
+			this.flags = flags;
+			this.root = root;
+			this.dictionary = dictionary;
+		}
+
+		final boolean embedSource() {
+			return (flags & TreeBinaryWriter.EmbedSource) != 0;
+		}
+	}
+
+	private final static int[] EmptyStack = new int[0];
+
+	public final class Cursor {
+		private final Record record;
+		private int at; // the decoding offset
+		/* the node under the cursor */
+		private int node;
+		private int tag;
+		private int size;
+		private int pos;
+		private int length;
+		private int label;
+		private int table; // the offset of (label child)*
+		/* the ancestors: node, pos, label, the next entry and the remaining entries */
+		private int[] stack = EmptyStack;
+		private int top = 0;
+
+		Cursor(Record record) {
+			this.record = record;
+		}
+
+		private int varint() {
+			int v = 0;
+			int shift = 0;
+			while (true) {
+				int b = buf.get(at++);
+				v |= (b & 0x7f) << shift;
+				if ((b & 0x80) == 0) {
+					return v;
+				}
+				shift += 7;
+			}
+		}
+
+		/* decodes the node at offset; parentPos is the position of its parent */
+		final void load(int node, int parentPos, int label) {
+			this.at = node;
+			this.node = node;
+			this.tag = varint();
+			this.size = varint();
+			int rpos = varint();
+			this.pos = parentPos + ((rpos >>> 1) ^ -(rpos & 1));
+			this.length = varint();
+			this.table = at;
+			this.label = label;
+		}
+
+		public final int depth() {
+			return top / 5;
+		}
+
+		/* the number of children, including null children */
+		public final int size() {
+			return this.size;
+		}
+
+		public final boolean isLeaf() {
+			return this.size == 0;
+		}
+
+		public final Symbol tag() {
+			return symbol(record, tag);
+		}
+
+		/* the label of the node in its parent */
+		public final Symbol label() {
+			return symbol(record, label);
+		}
+
+		public final int pos() {
+			return this.pos;
+		}
+
+		public final int length() {
+			return this.length;
+		}
+
+		/* the value, or null if the text is read from the source */
+		public final String value() {
+			this.at = table;
+			for (int i = 0; i < 2 * size; i++) {
+				varint();
+			}
+			int valueLength = varint();
+			if (valueLength > 0) {
+				return readString(at, valueLength - 1);
+			}
+			if (size == 0 && record.embedSource() && source == null) {
+				valueLength = varint();
+				return readString(at, valueLength);
+			}
+			return null;
+		}
+
+		public final String text() {
+			String v = value();
+			if (v != null) {
+				return v;
+			}
+			return source == null ? "" : source.subString(pos, pos + length);
+		}
+
+		/* fills the labels of the children */
+		final void labels(Symbol[] labels) {
+			this.at = table;
+			for (int i = 0; i < size; i++) {
+				labels[i] = symbol(record, varint());
+				varint();
+			}
+		}
+
+		private void push(int next, int remaining) {
+			if (top + 5 > stack.length) {
+				int[] newstack = new int[Math.max(5 * 16, stack.length * 2)];
+				System.arraycopy(stack, 0, newstack, 0, top);
+				this.stack = newstack;
+			}
+			stack[top++] = node;
+			stack[top++] = pos;
+			stack[top++] = label;
+			stack[top++] = next;
+			stack[top++] = remaining;
+		}
+
+		public final boolean moveToFirstChild() {
+			this.at = table;
+			for (int i = 0; i < size; i++) {
+				int l = varint();
+				int delta = varint();
+				if (delta != 0) {
+					this.push(at, size - i - 1);
+					this.load(node - delta, pos, l);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		public final boolean moveToNextSibling() {
+			if (top == 0) {
+				return false;
+			}
+			this.at = stack[top - 2];
+			for (int n = stack[top - 1]; n > 0; n--) {
+				int l = varint();
+				int delta = varint();
+				if (delta != 0) {
+					stack[top - 2] = at;
+					stack[top - 1] = n - 1;
+					this.load(stack[top - 5] - delta, stack[top - 4], l);
+					return true;
+				}
+			}
+			return false;
+		}
+
+		/* moves to the index-th child; false if the child is null */
+		public final boolean moveToChild(int index) {
+			this.at = table;
+			for (int i = 0; i < index; i++) {
+				varint();
+				varint();
+			}
+			int l = varint();
+			int delta = varint();
+			if (delta == 0) {
+				return false;
+			}
+			this.push(at, size - index - 1);
+			this.load(node - delta, pos, l);
+			return true;
+		}
+
+		public final boolean moveToParent() {
+			if (top == 0) {
+				return false;
+			}
+			this.top -= 5;
+			this.load(stack[top], 0, stack[top + 2]);
+			this.pos = stack[top + 1];
+			return true;
+		}
+
+		/* a Tree view of the node under the cursor */
+		public final BinaryTree toTree() {
+			Cursor c = new Cursor(record);
+			c.load(node, 0, label);
+			c.pos = pos;
+			return new BinaryTree(c);
+		}
+
+		/* a Tree view of the index-th child, or null; the cursor does not move */
+		final BinaryTree childTree(int index) {
+			this.at = table;
+			for (int i = 0; i < index; i++) {
+				varint();
+				varint();
+			}
+			int l = varint();
+			int delta = varint();
+			if (delta == 0) {
+				return null;
+			}
+			Cursor c = new Cursor(record);
+			c.load(node - delta, pos, l);
+			return new BinaryTree(c);
+		}
+
+		final TreeBinaryReader getReader() {
+			return TreeBinaryReader.this;
+		}
+	}
+
+	/* decoding */
+
+	final Symbol symbol(Record r, int id) {
+		if (id == 0) {
+			return null;
+		}
+		if (r.symbols == null) {
+			Cursor c = new Cursor(r);
+			c.at = r.base + r.dictionary;
+			Symbol[] symbols = new Symbol[c.varint()];
+			for (int i = 0; i < symbols.length; i++) {
+				int length = c.varint();
+				symbols[i] = Symbol.unique(readString(c.at, length));
+				c.at += length;
+			}
+			r.symbols = symbols;
+		}
+		return r.symbols[id - 1];
+	}
+
+	final String readString(int offset, int length) {
+		byte[] b = new byte[length];
+		for (int i = 0; i < length; i++) {
+			b[i] = buf.get(offset + i);
+		}
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,189 @@
+package nez.tool.ast;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+
+import nez.ast.Source;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.util.UList;
+
+/**
+ * TreeBinaryWriter writes trees in a compact binary format that
+ * TreeBinaryReader reads through a memory mapping. Each tree is a
+ * self-contained record, so that records written one after another can be
+ * read from the same file.
+ *
+ * <pre>
+ * record  = "NEZT" version:u8 flags:u8 length:u32 root:u32 dictionary:u32 node* dictionary
+ * node    = tag size pos length (label child)* value [text]
+ * dictionary = count (length utf8)*
+ * </pre>
+ *
+ * Fixed-width fields are big-endian; the others are unsigned varints. Nodes
+ * are written in post-order, and a child is the distance back to its node
+ * (0 for a null child). The position is relative to the parent's
+ * (zigzag-encoded, since a node may start before its parent). Tags and labels are 1-based ids into the
+ * dictionary (0 for none); offsets are relative to the start of the
+ * record. A value is written only if it is not the source text (0 for
+ * none, otherwise length + 1 and utf8). With EmbedSource, leaf nodes also
+ * carry their source text, so that the tree can be read without its input.
+ */
+
+public class TreeBinaryWriter extends TreeWriter {
+	public final static byte Version = 1;
+	public final static int HeaderSize = 18;
+	public final static int EmbedSource = 1;
+	private final static byte[] EmptyBytes = new byte[0];
+
+	private final int flags;
+	private final IdentityHashMap<Symbol, Integer> symbolMap = new IdentityHashMap<>();
+	private final UList<Symbol> symbolList = new UList<Symbol>(new Symbol[64]);
+	private byte[] buf = new byte[4096];
+	private int size = 0;
+
+	public TreeBinaryWriter() {
+		this(EmbedSource);
+	}
+
+	public TreeBinaryWriter(int flags) {
+		super(".nezb");
+		this.flags = flags;
+	}
+
+	@Override
+	public void writeTree(Tree<?> node) {
+		file.write(encode(node), 0, size);
+		file.flush();
+	}
+
+	/**
+	 * Encodes a tree into a record and returns the buffer; the record is the
+	 * first size() bytes.
+	 */
+
+	public final byte[] encode(Tree<?> node) {
+		symbolMap.clear();
+		symbolList.clear(0);
+		this.size = HeaderSize;
+		int root = node == null ? 0 : writeNode(node, 0);
+		int dictionary = size;
+		writeVarint(symbolList.size());
+		for (Symbol s : symbolList) {
+			byte[] utf8 = s.getSymbol().getBytes(StandardCharsets.UTF_8);
+			writeVarint(utf8.length);
+			writeBytes(utf8, 0, utf8.length);
+		}
+		buf[0] = 'N';
+		buf[1] = 'E';
+		buf[2] = 'Z';
+		buf[3] = 'T';
+		buf[4] = Version;
+		buf[5] = (byte) flags;
+		writeInt(6, size);
+		writeInt(10, root);
+		writeInt(14, dictionary);
+		return buf;
+	}
+
+	public final int size() {
+		return this.size;
+	}
+
+	private int writeNode(Tree<?> node, long parentPos) {
+		long pos = node.getSourcePosition();
+		int n = node.size();
+		int[] children = new int[n];
+		for (int i = 0; i < n; i++) {
+			Tree<?> sub = node.get(i);
+			children[i] = sub == null ? -1 : writeNode(sub, pos);
+		}
+		int offset = size;
+		writeVarint(symbolId(node.getTag()));
+		writeVarint(n);
+		writeVarint(zigzag(pos - parentPos));
+		writeVarint(node.getLength());
+		for (int i = 0; i < n; i++) {
+			writeVarint(symbolId(node.getLabel(i)));
+			writeVarint(children[i] == -1 ? 0 : offset - children[i]);
+		}
+		writeValue(node);
+		if ((flags & EmbedSource) != 0 && n == 0) {
+			byte[] text = sourceText(node);
+			writeVarint(text.length);
+			writeBytes(text, 0, text.length);
+		}
+		return offset;
+	}
+
+	private void writeValue(Tree<?> node) {
+		Object value = node.getValue();
+		if (value != null && !(value instanceof Tree<?>)) {
+			byte[] utf8 = value.toString().getBytes(StandardCharsets.UTF_8);
+			if (!Arrays.equals(utf8, sourceText(node))) {
+				writeVarint(utf8.length + 1);
+				writeBytes(utf8, 0, utf8.length);
+				return;
+			}
+		}
+		writeVarint(0);
+	}
+
+	private static byte[] sourceText(Tree<?> node) {
+		Source s = node.getSource();
+		if (s != null && node.getLength() > 0) {
+			long pos = node.getSourcePosition();
+			return s.subByte(pos, pos + node.getLength());
+		}
+		return EmptyBytes;
+	}
+
+	private int symbolId(Symbol s) {
+		if (s == null) {
+			return 0;
+		}
+		Integer id = symbolMap.get(s);
+		if (id == null) {
+			symbolList.add(s);
+			id = symbolList.size();
+			symbolMap.put(s, id);
+		}
+		return id;
+	}
+
+	/* buffer */
+
+	private void ensure(int n) {
+		if (size + n > buf.length) {
+			buf = Arrays.copyOf(buf, Math.max(buf.length * 2, size + n));
+		}
+	}
+
+	private void writeVarint(long v) {
+		ensure(10);
+		while ((v & ~0x7fL) != 0) {
+			buf[size++] = (byte) ((v & 0x7f) | 0x80);
+			v >>>= 7;
+		}
+		buf[size++] = (byte) v;
+	}
+
+	private void writeBytes(byte[] b, int offset, int length) {
+		ensure(length);
+		System.arraycopy(b, offset, buf, size, length);
+		size += length;
+	}
+
+	private static long zigzag(long v) {
+		return (v << 1) ^ (v >> 63);
+	}
+
+	private void writeInt(int offset, int v) {
+		buf[offset] = (byte) (v >>> 24);
+		buf[offset + 1] = (byte) (v >>> 16);
+		buf[offset + 2] = (byte) (v >>> 8);
+		buf[offset + 3] = (byte) v;
+	}
+
+}
@@ -0,0 +1,266 @@
+package nez.tool.ast;
+
+import java.nio.charset.StandardCharsets;
+import java.util.IdentityHashMap;
+
+import nez.ast.Source;
+import nez.ast.Symbol;
+import nez.ast.Tree;
+import nez.util.FileBuilder;
+
+/**
+ * TreeByteWriter is a base of tree writers that produce bytes in a reusable
+ * buffer instead of Strings. Token texts are escaped and copied byte by byte
+ * from the source, and symbols are encoded once. The buffer is passed to the
+ * file when it is full and on close().
+ */
+
+public abstract class TreeByteWriter extends TreeWriter {
+	private final static int BufferSize = 64 * 1024;
+	private final static byte[] Hex = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private byte[] buf = new byte[BufferSize];
+	private int size = 0;
+	private int indentLevel = 0;
+	private final IdentityHashMap<Symbol, byte[]> symbolMap = new IdentityHashMap<>();
+
+	public TreeByteWriter(String ext) {
+		super(ext);
+	}
+
+	@Override
+	public void close() {
+		this.flushBuffer();
+		super.close();
+	}
+
+	protected final void flushBuffer() {
+		if (size > 0) {
+			file.write(buf, 0, size);
+			size = 0;
+		}
+	}
+
+	private void ensure(int n) {
+		if (size + n > buf.length) {
+			this.flushBuffer();
+			if (n > buf.length) {
+				buf = new byte[n];
+			}
+		}
+	}
+
+	protected final void write(int ch) {
+		if (size == buf.length) {
+			this.flushBuffer();
+		}
+		buf[size++] = (byte) ch;
+	}
+
+	/* ASCII only */
+	protected final void write(String s) {
+		int n = s.length();
+		ensure(n);
+		for (int i = 0; i < n; i++) {
+			buf[size++] = (byte) s.charAt(i);
+		}
+	}
+
+	protected final void write(byte[] b) {
+		ensure(b.length);
+		System.arraycopy(b, 0, buf, size, b.length);
+		size += b.length;
+	}
+
+	protected final void writeNumber(long n) {
+		if (n < 0) {
+			write('-');
+			n = -n;
+		}
+		ensure(20);
+		int start = size;
+		do {
+			buf[size++] = (byte) ('0' + n % 10);
+			n /= 10;
+		} while (n > 0);
+		for (int i = start, j = size - 1; i < j; i++, j--) {
+			byte t = buf[i];
+			buf[i] = buf[j];
+			buf[j] = t;
+		}
+	}
+
+	private byte[] toUtf8(Symbol s) {
+		byte[] b = symbolMap.get(s);
+		if (b == null) {
+			b = s.getSymbol().getBytes(StandardCharsets.UTF_8);
+			symbolMap.put(s, b);
+		}
+		return b;
+	}
+
+	protected final void write(Symbol s) {
+		write(toUtf8(s));
+	}
+
+	/* the symbol without its first offset bytes, e.g., '@' */
+	protected final void write(Symbol s, int offset) {
+		byte[] b = toUtf8(s);
+		ensure(b.length - offset);
+		System.arraycopy(b, offset, buf, size, b.length - offset);
+		size += b.length - offset;
+	}
+
+	protected final void writeQuoted(Symbol s) {
+		writeText(toUtf8(s), '"', false);
+	}
+
+	/* indentation, as FileBuilder.writeIndent() */
+
+	protected final void incIndent() {
+		indentLevel++;
+	}
+
+	protected final void decIndent() {
+		indentLevel--;
+	}
+
+	protected final void writeIndent() {
+		write('\n');
+		for (int i = 0; i < indentLevel; i++) {
+			write(FileBuilder.TAB);
+		}
+	}
+
+	/* token text */
+
+	protected final boolean isEmptyText(Tree<?> node) {
+		Object value = node.getValue();
+		if (value != null && !(value instanceof Tree<?>)) {
+			return value.toString().isEmpty();
+		}
+		return node.getSource() == null || node.getLength() == 0;
+	}
+
+	/**
+	 * Writes the text of a node, the same as toText(), either quoted and
+	 * escaped (quote > 0) or raw. In strict mode, every control character
+	 * is escaped, so that the text never breaks a line.
+	 */
+
+	protected final void writeText(Tree<?> node, int quote, boolean strict) {
+		Object value = node.getValue();
+		if (value != null && !(value instanceof Tree<?>)) {
+			writeText(value.toString().getBytes(StandardCharsets.UTF_8), quote, strict);
+			return;
+		}
+		if (quote > 0) {
+			write(quote);
+		}
+		Source s = node.getSource();
+		if (s != null) {
+			long pos = node.getSourcePosition();
+			long end = pos + node.getLength();
+			if (isUtf8(s, pos, end)) {
+				for (long p = pos; p < end; p++) {
+					writeEscaped(s.byteAt(p), quote, strict);
+				}
+			} else {
+				/* written in hex as toText() does */
+				write('0');
+				write('x');
+				for (long p = pos; p < end; p++) {
+					int c = s.byteAt(p);
+					write(Hex[c >> 4]);
+					write(Hex[c & 0xf]);
+				}
+			}
+		}
+		if (quote > 0) {
+			write(quote);
+		}
+	}
+
+	/* well-formed utf8, i.e., no overlong forms, surrogates or bytes beyond U+10FFFF */
+	private static boolean isUtf8(Source s, long pos, long end) {
+		for (long p = pos; p < end; p++) {
+			int c = s.byteAt(p);
+			if (c < 0x80) {
+				continue;
+			}
+			int n;
+			int min = 0x80;
+			int max = 0xbf;
+			if (c >= 0xc2 && c <= 0xdf) {
+				n = 1;
+			} else if (c >= 0xe0 && c <= 0xef) {
+				n = 2;
+				min = c == 0xe0 ? 0xa0 : 0x80;
+				max = c == 0xed ? 0x9f : 0xbf;
+			} else if (c >= 0xf0 && c <= 0xf4) {
+				n = 3;
+				min = c == 0xf0 ? 0x90 : 0x80;
+				max = c == 0xf4 ? 0x8f : 0xbf;
+			} else {
+				return false;
+			}
+			for (int i = 0; i < n; i++) {
+				if (++p >= end) {
+					return false;
+				}
+				c = s.byteAt(p);
+				if (c < min || c > max) {
+					return false;
+				}
+				min = 0x80;
+				max = 0xbf;
+			}
+		}
+		return true;
+	}
+
+	private void writeText(byte[] utf8, int quote, boolean strict) {
+		if (quote > 0) {
+			write(quote);
+		}
+		for (byte c : utf8) {
+			writeEscaped(c & 0xff, quote, strict);
+		}
+		if (quote > 0) {
+			write(quote);
+		}
+	}
+
+	private void writeEscaped(int c, int quote, boolean strict) {
+		if (quote > 0) {
+			if (c == '\n') {
+				write('\\');
+				write('n');
+				return;
+			}
+			if (c == '\t') {
+				write('\\');
+				write('t');
+				return;
+			}
+			if (c == quote || c == '\\') {
+				write('\\');
+				write(c);
+				return;
+			}
+			if (strict && c < 0x20) {
+				if (c == '\r') {
+					write('\\');
+					write('r');
+				} else {
+					write("\\u00");
+					write(Hex[c >> 4]);
+					write(Hex[c & 0xf]);
+				}
+				return;
+			}
+		}
+		write(c);
+	}
+
+}
@@ -0,0 +1,198 @@
+package nez.tool.ast;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.Tree;
+import nez.parser.Parser;
+import nez.util.ConsoleUtils;
+import nez.util.Verbose;
+
+/**
+ * TreeCache is a persistent cache of parse results (--cache dir). An entry
+ * is keyed by the digest of the compiled parser (Parser.getCodeDigest) and
+ * the input bytes, and holds the tree in the binary tree format. Cached
+ * trees are read back as BinaryTree views over the given input. Only
+ * results without errors are cached, so that errors are reported again.
+ *
+ * The directory is bounded in size; when it grows beyond the limit, the
+ * least recently used entries are removed.
+ */
+
+public class TreeCache {
+	public final static long DefaultMaxSize = 256L << 20; // 256 MiB
+	private final static int ChunkSize = 1 << 20;
+
+	private final File dir;
+	private final long maxSize;
+	private long size = 0;
+
+	private Parser parser = null;
+	private byte[] codeDigest = null;
+
+	long CountHit = 0;
+	long CountMiss = 0;
+
+	public TreeCache(String path, long maxSize) throws IOException {
+		this.dir = new File(path);
+		this.maxSize = maxSize;
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			throw new IOException("cannot make cache directory: " + path);
+		}
+		for (File f : this.entries()) {
+			size += f.length();
+		}
+	}
+
+	public TreeCache(String path) throws IOException {
+		this(path, DefaultMaxSize);
+	}
+
+	public final Tree<?> parse(Parser parser, Source input) {
+		File f = this.entry(parser, input, ".nezb");
+		if (f == null) {
+			return parser.parse(input);
+		}
+		if (f.isFile()) {
+			try {
+				TreeBinaryReader reader = new TreeBinaryReader(f.getPath(), input);
+				if (reader.size() == 1 && reader.getTree() != null) {
+					this.hit(f);
+					return reader.getTree();
+				}
+			} catch (IOException e) {
+				Verbose.traceException(e);
+			}
+			this.remove(f);
+		}
+		CountMiss++;
+		int errors = parser.getErrors().size();
+		CommonTree node = parser.parse(input);
+		if (node != null && parser.getErrors().size() == errors) {
+			this.store(f, node);
+		}
+		return node;
+	}
+
+	public final boolean match(Parser parser, Source input) {
+		File f = this.entry(parser, input, ".match");
+		if (f == null) {
+			return parser.match(input);
+		}
+		if (f.isFile()) {
+			this.hit(f);
+			return true;
+		}
+		CountMiss++;
+		int errors = parser.getErrors().size();
+		boolean matched = parser.match(input);
+		if (matched && parser.getErrors().size() == errors) {
+			this.store(f, null);
+		}
+		return matched;
+	}
+
+	public final void log() {
+		Verbose.println("cache: hit=%d miss=%d size=%d", CountHit, CountMiss, size);
+	}
+
+	/* entries */
+
+	private File entry(Parser parser, Source input, String ext) {
+		if (this.parser != parser) {
+			this.parser = parser;
+			this.codeDigest = parser.getCodeDigest();
+			if (this.codeDigest == null) {
+				ConsoleUtils.println("cache is disabled; the parser code is not digestible");
+			}
+		}
+		if (this.codeDigest == null) {
+			return null;
+		}
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			md.update(codeDigest);
+			long length = input.length();
+			for (long pos = 0; pos < length; pos += ChunkSize) {
+				md.update(input.subByte(pos, Math.min(length, pos + ChunkSize)));
+			}
+			StringBuilder sb = new StringBuilder();
+			for (byte b : md.digest()) {
+				sb.append(String.format("%02x", b & 0xff));
+			}
+			sb.append(ext);
+			return new File(dir, sb.toString());
+		} catch (NoSuchAlgorithmException e) {
+			Verbose.traceException(e);
+			return null;
+		}
+	}
+
+	private File[] entries() {
+		File[] files = dir.listFiles((d, name) -> name.endsWith(".nezb") || name.endsWith(".match"));
+		return files == null ? new File[0] : files;
+	}
+
+	private void hit(File f) {
+		CountHit++;
+		f.setLastModified(System.currentTimeMillis());
+	}
+
+	private void store(File f, Tree<?> node) {
+		TreeBinaryWriter w = new TreeBinaryWriter(0);
+		byte[] b = w.encode(node);
+		try {
+			File tmp = File.createTempFile("nez", ".tmp", dir);
+			try (FileOutputStream out = new FileOutputStream(tmp)) {
+				out.write(b, 0, w.size());
+			}
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			size += w.size();
+		} catch (IOException e) {
+			ConsoleUtils.println("cannot write cache: " + f);
+			Verbose.traceException(e);
+			return;
+		}
+		if (size > maxSize) {
+			this.evict();
+		}
+	}
+
+	private void remove(File f) {
+		long length = f.length();
+		if (f.delete()) {
+			size -= length;
+		}
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is within
+	 * three quarters of the limit, so that eviction does not run on every
+	 * store.
+	 */
+
+	private void evict() {
+		File[] files = this.entries();
+		long[] times = new long[files.length];
+		Integer[] order = new Integer[files.length];
+		this.size = 0;
+		for (int i = 0; i < files.length; i++) {
+			times[i] = files[i].lastModified();
+			order[i] = i;
+			size += files[i].length();
+		}
+		Arrays.sort(order, (i, j) -> Long.compare(times[i], times[j]));
+		for (int i = 0; i < order.length && size > maxSize / 4 * 3; i++) {
+			this.remove(files[order[i]]);
+		}
+	}
+
+}
@@ -1,79 +1,103 @@
 package nez.tool.ast;
 
 import nez.ast.Tree;
-import nez.util.StringUtils;
 
-public class TreeJSONWriter extends TreeWriter {
+public class TreeJSONWriter extends TreeByteWriter {
+	private final boolean lines;
 
 	public TreeJSONWriter() {
-		super(".json");
+		this(".json", false);
+	}
+
+	protected TreeJSONWriter(String ext, boolean lines) {
+		super(ext);
+		this.lines = lines;
+	}
+
+	/**
+	 * JSONLinesWriter (--format jsonl) writes one tree per line with every
+	 * control character escaped, and passes the output to the file in large
+	 * blocks rather than tree by tree.
+	 */
+
+	public static class JSONLinesWriter extends TreeJSONWriter {
+		public JSONLinesWriter() {
+			super(".jsonl", true);
+		}
 	}
 
 	@Override
 	public void writeTree(Tree<?> node) {
 		writeJSON(node);
-		file.writeNewLine();
+		write('\n');
+		if (!lines) {
+			flushBuffer();
+			file.flush();
+		}
 	}
 
 	private void writeJSON(Tree<?> node) {
+		if (node == null) {
+			write("null");
+			return;
+		}
 		if (node.size() == 0) {
-			String text = node.toText();
 			if (dataOption) {
+				String text = node.toText();
 				try {
 					Double v = Double.parseDouble(text);
-					file.write(v.toString());
+					write(v.toString());
 					return;
 				} catch (NumberFormatException e) {
 				}
 				try {
 					Long v = Long.parseLong(text);
-					file.write(v.toString());
+					write(v.toString());
 					return;
 				} catch (NumberFormatException e) {
 				}
-				file.write(StringUtils.quoteString('"', text, '"'));
+				writeText(node, '"', lines);
 			} else {
-				file.write("{");
-				file.write("\"type\":");
-				file.write(StringUtils.quoteString('"', node.getTag().toString(), '"'));
-				file.write(",\"pos\":");
-				file.write("" + node.getSourcePosition());
-				file.write(",\"line\":");
-				file.write("" + node.getLineNum());
-				file.write(",\"column\":");
-				file.write("" + node.getColumn());
-				file.write(",\"text\":");
-				file.write(StringUtils.quoteString('"', text, '"'));
-				file.write("}");
+				write("{\"type\":");
+				writeQuoted(node.getTag());
+				write(",\"pos\":");
+				writeNumber(node.getSourcePosition());
+				write(",\"line\":");
+				writeNumber(node.getLineNum());
+				write(",\"column\":");
+				writeNumber(node.getColumn());
+				write(",\"text\":");
+				writeText(node, '"', lines);
+				write('}');
 			}
 			return;
 		}
 		if (node.isAllLabeled()) {
-			file.write("{");
+			write('{');
 			if (!dataOption) {
-				file.write("\"type\":");
-				file.write(StringUtils.quoteString('"', node.getTag().toString(), '"'));
-				file.write(",");
+				write("\"type\":");
+				writeQuoted(node.getTag());
+				write(',');
 			}
 			for (int i = 0; i < node.size(); i++) {
 				if (i > 0) {
-					file.write(",");
+					write(',');
 				}
-				file.write(StringUtils.quoteString('"', node.getLabel(i).toString(), '"'));
-				file.write(":");
+				writeQuoted(node.getLabel(i));
+				write(':');
 				writeJSON(node.get(i));
 			}
-			file.write("}");
+			write('}');
 			return;
 		}
-		file.write("[");
+		write('[');
 		for (int i = 0; i < node.size(); i++) {
 			if (i > 0) {
-				file.write(",");
+				write(',');
 			}
 			writeJSON(node.get(i));
 		}
-		file.write("]");
+		write(']');
 	}
 
 }
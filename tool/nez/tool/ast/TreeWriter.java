@@ -15,10 +15,14 @@ public abstract class TreeWriter {
 	}
 
 	public final void init(String path) {
-		file.close();
+		this.close();
 		file = new FileBuilder(path);
 	}
 
+	public void close() {
+		file.close();
+	}
+
 	public final String getFileExtension() {
 		return fileExtension;
 	}
@@ -2,62 +2,77 @@ package nez.tool.ast;
 
 import nez.ast.Symbol;
 import nez.ast.Tree;
-import nez.util.StringUtils;
 
-public class TreeXMLWriter extends TreeWriter {
+public class TreeXMLWriter extends TreeByteWriter {
 	public TreeXMLWriter() {
 		super(".xml");
 	}
 
 	@Override
 	public final void writeTree(Tree<?> node) {
-		String tag = node.getTag().toString();
-		writeXML(null, tag, node);
-		file.writeNewLine();
+		writeXML(null, node);
+		write('\n');
+		flushBuffer();
+		file.flush();
 	}
 
-	public final void writeXML(Symbol label, String tag, Tree<?> node) {
-		file.writeIndent("<" + tag);
+	public final void writeXML(Symbol label, Tree<?> node) {
+		Symbol tag = node.getTag();
+		writeIndent();
+		write('<');
+		write(tag);
 		if (label != null) {
-			file.write(" label=\"" + label + "\"");
+			write(" label=\"");
+			write(label);
+			write('"');
 		}
 		if (node.size() == 0) {
-			String s = node.toText();
-			if (s.equals("")) {
-				file.write("/>");
+			if (isEmptyText(node)) {
+				write("/>");
 			} else {
 				if (!this.dataOption) {
-					file.write(" pos=\"" + node.getSourcePosition() + "\"");
-					file.write(" line=\"" + node.getLineNum() + "\"");
-					file.write(" column=\"" + node.getColumn() + "\"");
+					write(" pos=\"");
+					writeNumber(node.getSourcePosition());
+					write("\" line=\"");
+					writeNumber(node.getLineNum());
+					write("\" column=\"");
+					writeNumber(node.getColumn());
+					write('"');
 				}
-				file.write(">");
-				file.write(node.toText());
-				file.write("</" + tag + ">");
+				write('>');
+				writeText(node, 0, false);
+				write("</");
+				write(tag);
+				write('>');
 			}
 			return;
 		}
 		for (int i = 0; i < node.size(); i++) {
 			Tree<?> sub = node.get(i);
-			String stag = sub.getTag().toString();
-			if (stag.startsWith("@")) {
-				file.write(" ");
-				file.write(stag.substring(1));
-				file.write("=");
-				file.write(StringUtils.quoteString('"', sub.toText(), '"'));
+			if (sub != null && isAttribute(sub.getTag())) {
+				write(' ');
+				write(sub.getTag(), 1);
+				write('=');
+				writeText(sub, '"', false);
 			}
 		}
-		file.write(">");
-		file.incIndent();
+		write('>');
+		incIndent();
 		for (int i = 0; i < node.size(); i++) {
 			Tree<?> sub = node.get(i);
-			String stag = sub.getTag().toString();
-			if (!stag.startsWith("@")) {
-				this.writeXML(node.getLabel(i), stag, sub);
+			if (sub != null && !isAttribute(sub.getTag())) {
+				this.writeXML(node.getLabel(i), sub);
 			}
 		}
-		file.decIndent();
-		file.writeIndent("</" + tag + ">");
+		decIndent();
+		writeIndent();
+		write("</");
+		write(tag);
+		write('>');
+	}
+
+	private static boolean isAttribute(Symbol tag) {
+		return tag.getSymbol().startsWith("@");
 	}
 
 }
@@ -0,0 +1,159 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class IncrementalParsingTest {
+
+	private final static String[] Snippets = { "", "1", "-2.5e3", " ", ",", ":", "\"key\"", "[", "]", "{", "}", "{}", "[1, 2]", "true", "null", "\"a\\\"b\"" };
+
+	private static String newJson(Random r, int depth) {
+		switch (depth == 0 ? r.nextInt(3) : r.nextInt(5)) {
+		case 0:
+			return String.valueOf(r.nextInt(100000) - 500);
+		case 1:
+			return "\"s" + r.nextInt(1000) + "\"";
+		case 2:
+			return r.nextBoolean() ? "true" : "null";
+		case 3: {
+			StringBuilder sb = new StringBuilder("[");
+			for (int i = r.nextInt(6); i > 0; i--) {
+				sb.append(newJson(r, depth - 1));
+				sb.append(i > 1 ? ", " : "");
+			}
+			return sb.append("]").toString();
+		}
+		default: {
+			StringBuilder sb = new StringBuilder("{\n");
+			for (int i = r.nextInt(6); i > 0; i--) {
+				sb.append("  \"k").append(r.nextInt(100)).append("\": ");
+				sb.append(newJson(r, depth - 1));
+				sb.append(i > 1 ? ",\n" : "\n");
+			}
+			return sb.append("}").toString();
+		}
+		}
+	}
+
+	/* positions are compared as well as the structure */
+	private static void dump(StringBuilder sb, CommonTree node) {
+		sb.append("[").append(node.getTag()).append(" ").append(node.getSourcePosition()).append("+").append(node.getLength());
+		if (node.size() == 0) {
+			sb.append(" ").append(node.toText());
+		}
+		for (int i = 0; i < node.size(); i++) {
+			sb.append(" $").append(node.getLabel(i)).append("=");
+			dump(sb, node.get(i));
+		}
+		sb.append("]");
+	}
+
+	private static String dump(ParserResult<CommonTree> result) {
+		if (result.hasErrors()) {
+			return "error";
+		}
+		StringBuilder sb = new StringBuilder();
+		dump(sb, result.getTree());
+		return sb.toString();
+	}
+
+	private void testRandomEdits(String option) throws IOException {
+		testRandomEdits(option, 0, 200);
+	}
+
+	private void testRandomEdits(String option, int minLength, int edits) throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.setOption(option);
+		strategy.Incremental = true;
+		Parser parser = grammar.newParser("File", strategy);
+		Parser fresh = grammar.newParser("File", ParserStrategy.newDefaultStrategy());
+
+		Random r = new Random(17);
+		String text = newJson(r, 6);
+		while (text.length() < minLength) {
+			text = "[" + text + ",\n" + newJson(r, 6) + "]";
+		}
+		ParserResult<CommonTree> result = parser.parseResult(CommonSource.newStringSource(text), new CommonTree());
+		assertNotNull(result.getTree());
+		int valid = 0;
+		for (int n = 0; n < edits; n++) {
+			int start = r.nextInt(text.length() + 1);
+			int end;
+			String inserted;
+			if (r.nextBoolean()) {
+				/* a digit is replaced by a number, which keeps the text valid */
+				while (start < text.length() && !Character.isDigit(text.charAt(start))) {
+					start++;
+				}
+				end = Math.min(text.length(), start + 1);
+				inserted = String.valueOf(1 + r.nextInt(1000));
+			} else {
+				end = Math.min(text.length(), start + (r.nextInt(3) == 0 ? r.nextInt(8) : 0));
+				inserted = Snippets[r.nextInt(Snippets.length)];
+			}
+			/* the edit is reverted by the next reparse */
+			for (int revert = 0; revert < 2; revert++) {
+				String removed = text.substring(start, end);
+				text = text.substring(0, start) + inserted + text.substring(end);
+				result = parser.reparse(result, CommonSource.newStringSource(text), new CommonTree(), new TextEdit(start, end, inserted.length()));
+				ParserResult<CommonTree> expected = fresh.parseResult(CommonSource.newStringSource(text), new CommonTree());
+				assertEquals(option + " edit " + n, dump(expected), dump(result));
+				valid += expected.hasErrors() ? 0 : 1;
+				end = start + inserted.length();
+				inserted = removed;
+			}
+		}
+		assertTrue("too few valid edits: " + valid, valid > edits * 3 / 2);
+	}
+
+	@Test
+	public void testRandomEdits() throws IOException {
+		testRandomEdits("-JIT");
+	}
+
+	@Test
+	public void testRandomEditsJIT() throws IOException {
+		testRandomEdits("+JIT");
+	}
+
+	@Test
+	public void testRandomEditsDfa() throws IOException {
+		testRandomEdits("+Odfa");
+	}
+
+	/* long productions before the edits are tracked apart from the others */
+	@Test
+	public void testRandomEditsLargeText() throws IOException {
+		testRandomEdits("-JIT", 100000, 60);
+	}
+
+	@Test
+	public void testMultipleEdits() throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.Incremental = true;
+		Parser parser = grammar.newParser("File", strategy);
+		Parser fresh = grammar.newParser("File", ParserStrategy.newDefaultStrategy());
+
+		String text = "{\"a\": [1, 2, 3], \"b\": {\"c\": true}, \"d\": \"xyz\"}";
+		ParserResult<CommonTree> result = parser.parseResult(CommonSource.newStringSource(text), new CommonTree());
+		/* [1, 2, 3] => [1, 20, 3], true => null, and "xyz" => "x" in one reparse */
+		String edited = "{\"a\": [1, 20, 3], \"b\": {\"c\": null}, \"d\": \"x\"}";
+		result = parser.reparse(result, CommonSource.newStringSource(edited), new CommonTree(), //
+				new TextEdit(10, 11, 2), new TextEdit(29, 33, 4), new TextEdit(43, 45, 0));
+		assertEquals(dump(fresh.parseResult(CommonSource.newStringSource(edited), new CommonTree())), dump(result));
+	}
+
+}
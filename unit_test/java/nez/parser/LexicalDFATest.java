@@ -0,0 +1,87 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.HashMap;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.lang.Grammar;
+import nez.lang.ast.GrammarExample;
+import nez.lang.ast.GrammarExample.Example;
+import nez.parser.io.CommonSource;
+import nez.parser.vm.Moz86;
+
+import org.junit.Test;
+
+public class LexicalDFATest {
+
+	private final static String[] Grammars = { "json.nez", "xml.nez", "csv.nez", "math.nez", "email.nez", "regex.nez", "js.nez", "java.nez", "konoha.nez" };
+
+	private final static String Tokens = "" //
+			+ "File = { ($(Token) / S)* #List } !.\n" //
+			+ "Token = { NUM #Num } / { ID #Id } / { '.' #Dot } / { '@' ID ':' NUM #Ref }\n" //
+			+ "NUM = [0-9]+ ('.' [0-9]+)? ([eE] [+\\-]? [0-9]+)?\n" //
+			+ "ID = [a-z_] [a-z_0-9]* / '\"' (!'\"' .)* '\"'\n" //
+			+ "S = [ \\t\\n]+\n";
+
+	private final static String[] TokenInputs = { "", "1", "1.", "1.5", "1.5e", "1.5e+", "1.5e+3 x", "12.x", "a1 _b.c 3.14", "\"abc\" 1e9", "\"abc", "1..2", "@a:1.5e", "@\"x\":12 @y:3e-1" };
+
+	private static ParserStrategy newStrategy(boolean dfa) {
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.Odfa = dfa;
+		return strategy;
+	}
+
+	private static int countDfa(Parser parser) {
+		int count = 0;
+		for (Object inst : parser.getParserCode().codeList) {
+			if (inst instanceof Moz86.Dfa) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String parse(Parser parser, String text) {
+		ParserResult<CommonTree> result = parser.parseResult(CommonSource.newStringSource(text), new CommonTree());
+		return result.hasErrors() ? "error" : result.getTree().toString();
+	}
+
+	@Test
+	public void testGrammarExamples() throws IOException {
+		int dfaCount = 0;
+		for (String file : Grammars) {
+			Grammar grammar = new ParserGenerator().loadGrammar(file);
+			GrammarExample example = (GrammarExample) grammar.getMetaData("example");
+			if (example == null) {
+				continue;
+			}
+			HashMap<String, Parser[]> parserMap = new HashMap<>();
+			for (Example ex : example.getExampleList()) {
+				Parser[] p = parserMap.get(ex.getName());
+				if (p == null) {
+					p = new Parser[] { grammar.newParser(ex.getName(), newStrategy(false)), grammar.newParser(ex.getName(), newStrategy(true)) };
+					parserMap.put(ex.getName(), p);
+					dfaCount += countDfa(p[1]);
+				}
+				assertEquals(file + " " + ex.getName(), parse(p[0], ex.getText()), parse(p[1], ex.getText()));
+			}
+		}
+		assertTrue("no production is converted", dfaCount > 0);
+	}
+
+	@Test
+	public void testLongestMatch() throws IOException {
+		Grammar grammar = new ParserGenerator().newGrammar(CommonSource.newStringSource(Tokens), "nez");
+		Parser p = grammar.newParser("File", newStrategy(false));
+		Parser dfa = grammar.newParser("File", newStrategy(true));
+		assertTrue("NUM and ID are not converted", countDfa(dfa) > 0);
+		for (String text : TokenInputs) {
+			assertEquals(text, parse(p, text), parse(dfa, text));
+		}
+	}
+
+}
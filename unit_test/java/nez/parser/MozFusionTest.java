@@ -0,0 +1,139 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.lang.Grammar;
+import nez.lang.ast.GrammarExample;
+import nez.lang.ast.GrammarExample.Example;
+import nez.parser.io.CommonSource;
+import nez.parser.vm.MozFusion;
+
+import org.junit.Test;
+
+public class MozFusionTest {
+
+	private final static String[] Grammars = { "json.nez", "xml.nez", "csv.nez", "math.nez", "email.nez", "regex.nez", "js.nez", "java.nez", "konoha.nez" };
+
+	private final static String Items = "" //
+			+ "File = { ($(Item) S?)* #List } !.\n" //
+			+ "Item = { 'let' S NAME #Let } / { 'letter' #Letter } / { '\"' (![\"\\n] .)* '\"' #Str } / { '/' (!'/' .)* '/' #Re } / { '(' S? $(Item)? S? ')' #Group } / { NAME #Name }\n" //
+			+ "NAME = [a-z]+\n" //
+			+ "S = [ \\n]+\n";
+
+	private final static String[] ItemInputs = { "", "let", "let x", "letter", "lett", "\"abc", "\"ab\ncd\"", "\"\"", "(x", "((let y) \"z\")", "( )", ")", "x (y \"", "/a b/", "/a", "//", "let x letter \"1\" (z)" };
+
+	private static ParserStrategy newStrategy(boolean fuse) {
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.Ofuse = fuse;
+		return strategy;
+	}
+
+	private static int countFused(Parser parser) {
+		int count = 0;
+		for (Object inst : parser.getParserCode().codeList) {
+			if (inst.getClass().getEnclosingClass() == MozFusion.class) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String parse(Parser parser, Source input) {
+		ParserResult<CommonTree> result = parser.parseResult(input, new CommonTree());
+		if (result.hasErrors()) {
+			StringBuilder sb = new StringBuilder();
+			for (SourceError e : result.getErrors()) {
+				sb.append(e).append("\n");
+			}
+			return sb.toString();
+		}
+		return result.getTree().toString();
+	}
+
+	/* NByte Any Step appears only when the grammar optimizer leaves !c . as it is */
+	@Test
+	public void testFailurePositions() throws IOException {
+		Grammar grammar = new ParserGenerator().newGrammar(CommonSource.newStringSource(Items), "nez");
+		HashSet<String> names = new HashSet<>();
+		for (boolean optimized : new boolean[] { true, false }) {
+			ParserStrategy strategy = newStrategy(false);
+			ParserStrategy fusing = newStrategy(true);
+			strategy.Optimization = optimized;
+			fusing.Optimization = optimized;
+			Parser p = grammar.newParser("File", strategy);
+			Parser fused = grammar.newParser("File", fusing);
+			for (Object inst : fused.getParserCode().codeList) {
+				names.add(inst.getClass().getSimpleName());
+			}
+			for (String text : ItemInputs) {
+				assertEquals(text, parse(p, CommonSource.newStringSource(text)), parse(fused, CommonSource.newStringSource(text)));
+			}
+		}
+		assertTrue(names.toString(), names.containsAll(Arrays.asList("AltByte", "AltStr", "NSetAnyStep")));
+	}
+
+	@Test
+	public void testInputs() throws IOException {
+		File[] files = new File("test-nez").listFiles();
+		assertTrue("test-nez is not found", files != null);
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			File dir = new File(file.getParentFile(), name.replace(".nez", ""));
+			if (!name.endsWith(".nez") || !dir.isDirectory()) {
+				continue;
+			}
+			Grammar grammar = new ParserGenerator().loadGrammar(file.getPath());
+			Parser p = grammar.newParser(newStrategy(false));
+			Parser fused = grammar.newParser(newStrategy(true));
+			for (File input : dir.listFiles()) {
+				if (input.getName().endsWith(".out")) {
+					continue;
+				}
+				Source s = CommonSource.newFileSource(input.getPath());
+				assertEquals(input.getPath(), parse(p, s), parse(fused, s));
+				count++;
+			}
+		}
+		assertTrue(count > 0);
+	}
+
+	@Test
+	public void testGrammarExamples() throws IOException {
+		int fused = 0;
+		for (String file : Grammars) {
+			Grammar grammar = new ParserGenerator().loadGrammar(file);
+			GrammarExample example = (GrammarExample) grammar.getMetaData("example");
+			if (example == null) {
+				continue;
+			}
+			HashMap<String, Parser[]> parserMap = new HashMap<>();
+			for (Example ex : example.getExampleList()) {
+				Parser[] p = parserMap.get(ex.getName());
+				if (p == null) {
+					p = new Parser[] { grammar.newParser(ex.getName(), newStrategy(false)), grammar.newParser(ex.getName(), newStrategy(true)) };
+					parserMap.put(ex.getName(), p);
+					fused += countFused(p[1]);
+				}
+				String text = ex.getText();
+				assertEquals(file + " " + ex.getName(), parse(p[0], CommonSource.newStringSource(text)), parse(p[1], CommonSource.newStringSource(text)));
+				/* a truncated example fails at the same position */
+				text = text.substring(0, text.length() / 2);
+				assertEquals(file + " " + ex.getName(), parse(p[0], CommonSource.newStringSource(text)), parse(p[1], CommonSource.newStringSource(text)));
+			}
+		}
+		assertTrue("no instruction is fused", fused > 0);
+	}
+
+}
@@ -0,0 +1,107 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.HashMap;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.ast.SourceError;
+import nez.lang.Grammar;
+import nez.lang.ast.GrammarExample;
+import nez.lang.ast.GrammarExample.Example;
+import nez.parser.io.CommonSource;
+import nez.parser.vm.Moz86;
+
+import org.junit.Test;
+
+public class MozJITTest {
+
+	private final static String[] Grammars = { "json.nez", "xml.nez", "csv.nez", "math.nez", "email.nez", "regex.nez", "js.nez", "java.nez", "konoha.nez" };
+
+	private static ParserStrategy newStrategy(boolean jit) {
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.JIT = jit;
+		return strategy;
+	}
+
+	private static int countCompiled(Parser parser) {
+		int count = 0;
+		for (Object inst : parser.getParserCode().codeList) {
+			if (inst instanceof Moz86.Call && ((Moz86.Call) inst).isCompiled()) {
+				count++;
+			}
+		}
+		return count;
+	}
+
+	private static String parse(Parser parser, Source input) {
+		ParserResult<CommonTree> result = parser.parseResult(input, new CommonTree());
+		if (result.hasErrors()) {
+			StringBuilder sb = new StringBuilder();
+			for (SourceError e : result.getErrors()) {
+				sb.append(e).append("\n");
+			}
+			return sb.toString();
+		}
+		return result.getTree().toString();
+	}
+
+	@Test
+	public void testInputs() throws IOException {
+		File[] files = new File("test-nez").listFiles();
+		assertTrue("test-nez is not found", files != null);
+		int count = 0;
+		for (File file : files) {
+			String name = file.getName();
+			File dir = new File(file.getParentFile(), name.replace(".nez", ""));
+			if (!name.endsWith(".nez") || !dir.isDirectory()) {
+				continue;
+			}
+			Grammar grammar = new ParserGenerator().loadGrammar(file.getPath());
+			Parser p = grammar.newParser(newStrategy(false));
+			Parser jit = grammar.newParser(newStrategy(true));
+			for (File input : dir.listFiles()) {
+				if (input.getName().endsWith(".out")) {
+					continue;
+				}
+				Source s = CommonSource.newFileSource(input.getPath());
+				assertEquals(input.getPath(), parse(p, s), parse(jit, s));
+				count++;
+			}
+		}
+		assertTrue(count > 0);
+	}
+
+	@Test
+	public void testGrammarExamples() throws IOException {
+		int compiled = 0;
+		for (String file : Grammars) {
+			Grammar grammar = new ParserGenerator().loadGrammar(file);
+			GrammarExample example = (GrammarExample) grammar.getMetaData("example");
+			if (example == null) {
+				continue;
+			}
+			HashMap<String, Parser[]> parserMap = new HashMap<>();
+			for (Example ex : example.getExampleList()) {
+				Parser[] p = parserMap.get(ex.getName());
+				if (p == null) {
+					p = new Parser[] { grammar.newParser(ex.getName(), newStrategy(false)), grammar.newParser(ex.getName(), newStrategy(true)) };
+					parserMap.put(ex.getName(), p);
+					compiled += countCompiled(p[1]);
+				}
+				String text = ex.getText();
+				assertEquals(file + " " + ex.getName(), parse(p[0], CommonSource.newStringSource(text)), parse(p[1], CommonSource.newStringSource(text)));
+				/* a truncated example fails at the same position */
+				text = text.substring(0, text.length() / 2);
+				assertEquals(file + " " + ex.getName(), parse(p[0], CommonSource.newStringSource(text)), parse(p[1], CommonSource.newStringSource(text)));
+			}
+		}
+		assertTrue("no leaf production is compiled", compiled > 0);
+	}
+
+}
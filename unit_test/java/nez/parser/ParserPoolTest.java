@@ -0,0 +1,83 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class ParserPoolTest {
+
+	private final static String Input = "{\"a\": [1, 2, {\"b\": null}], \"c\": \"d\", \"e\": [true, false, -1.5e3]}";
+
+	private static String parse(Parser parser, String text) {
+		ParserResult<CommonTree> result = parser.parseResult(CommonSource.newStringSource(text), new CommonTree());
+		return result.hasErrors() ? "error" : result.getTree().toString();
+	}
+
+	/* the pooled context must not keep the memo tables of the previous code */
+	@Test
+	public void testRecompile() throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.PackratParsing = false;
+		strategy.AdaptiveMemo = true;
+		Parser parser = grammar.newParser(strategy);
+		String expected = parse(parser, Input);
+		int size = parser.getParserCode().getMemoPointSize();
+		strategy.PackratParsing = true;
+		parser.compile();
+		assertTrue(parser.getParserCode().getMemoPointSize() > size);
+		assertEquals(expected, parse(parser, Input));
+	}
+
+	/* pooled and incremental parses record the memo profile, which is saved once */
+	@Test
+	public void testMemoProfile() throws IOException {
+		File file = File.createTempFile("json", ".memo");
+		try {
+			Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+			ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+			strategy.MemoProfiling = true;
+			strategy.MemoProfile = file.getPath();
+			Parser parser = grammar.newParser(strategy);
+			MemoProfile profile = parser.getParserCode().getMemoProfile();
+			parser.parseResult(CommonSource.newStringSource(Input), new CommonTree());
+			long calls = profile.calls("Value");
+			assertTrue(calls > 0);
+			parser.parseResult(CommonSource.newStringSource(Input), new CommonTree());
+			assertEquals(calls * 2, profile.calls("Value"));
+			assertEquals(0, file.length());
+			parser.saveProfiles();
+			assertEquals(calls * 2, MemoProfile.load(file.getPath()).calls("Value"));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/* memo points turned off for one input are on again for the next */
+	@Test
+	public void testAdaptiveMemo() throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.AdaptiveMemo = true;
+		Parser parser = grammar.newParser(strategy);
+		Parser fresh = grammar.newParser(ParserStrategy.newDefaultStrategy());
+		StringBuilder sb = new StringBuilder("[");
+		for (int i = 0; i < 2000; i++) {
+			sb.append(i > 0 ? ", " : "").append(i % 3 == 0 ? Input : String.valueOf(i));
+		}
+		String large = sb.append("]").toString();
+		for (String text : new String[] { large, Input, "[1, 2", large, "" }) {
+			assertEquals(parse(fresh, text), parse(parser, text));
+		}
+	}
+
+}
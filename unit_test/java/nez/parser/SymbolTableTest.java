@@ -0,0 +1,141 @@
+package nez.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Random;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.lang.Grammar;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class SymbolTableTest {
+
+	private final static String Statements = "" //
+			+ "File = S? { ($(Stmt) S?)* #File } !.\n" //
+			+ "Stmt = Def / Is / Last / Any / Local / Block\n" //
+			+ "Def = { 'def' S <symbol NAME> ';' #Def } / { 'def' S NAME '!' #Undef }\n" //
+			+ "Is = { 'is' S <isa NAME> ![a-z0-9] #Known } / { 'is' S NAME #Unknown }\n" //
+			+ "Last = { 'last' S <match NAME> ![a-z0-9] #Last } / { 'last' S NAME #NotLast }\n" //
+			+ "Any = { 'any' <exists NAME> #Some } / { 'any' #None }\n" //
+			+ "Local = { 'local{' S? <local NAME ($(Stmt) S?)*> '}' #Local }\n" //
+			+ "Block = { 'block{' S? <block ($(Stmt) S?)*> '}' #Block }\n" //
+			+ "NAME = [a-z] [a-z0-9]*\n" //
+			+ "S = [ \\n]+\n";
+
+	/* the scopes of the symbol table; null masks the outer entries */
+	private final ArrayList<String> table = new ArrayList<>();
+	private int defCount = 0;
+
+	private boolean isVisible(String name) {
+		for (int i = table.size() - 1; i >= 0 && table.get(i) != null; i--) {
+			if (table.get(i).equals(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private String top() {
+		return table.isEmpty() ? null : table.get(table.size() - 1);
+	}
+
+	/* generates statements and the tags that they are expected to have */
+	private void newStatements(Random r, int depth, int n, StringBuilder text, StringBuilder tags) {
+		for (int i = 0; i < n; i++) {
+			String name = "n" + r.nextInt(400);
+			switch (r.nextInt(depth < 3 ? 8 : 6)) {
+			case 0:
+			case 1:
+				text.append("def ").append(name).append(";\n");
+				tags.append("Def ");
+				table.add(name);
+				defCount++;
+				break;
+			case 2:
+				text.append("def ").append(name).append("!\n");
+				tags.append("Undef ");
+				break;
+			case 3:
+				name = r.nextBoolean() || table.isEmpty() ? name : table.get(r.nextInt(table.size()));
+				name = name == null ? "n0" : name;
+				text.append("is ").append(name).append("\n");
+				tags.append(isVisible(name) ? "Known " : "Unknown ");
+				break;
+			case 4:
+				name = r.nextBoolean() && top() != null ? top() : name;
+				text.append("last ").append(name).append("\n");
+				tags.append(name.equals(top()) ? "Last " : "NotLast ");
+				break;
+			case 5:
+				text.append("any\n");
+				tags.append(top() != null ? "Some " : "None ");
+				break;
+			default: {
+				boolean local = r.nextBoolean();
+				int save = table.size();
+				if (local) {
+					table.add(null);
+				}
+				text.append(local ? "local{\n" : "block{\n");
+				tags.append(local ? "Local( " : "Block( ");
+				newStatements(r, depth + 1, r.nextInt(20), text, tags);
+				text.append("}\n");
+				tags.append(") ");
+				while (table.size() > save) {
+					table.remove(table.size() - 1);
+				}
+			}
+			}
+		}
+	}
+
+	private static void tags(CommonTree node, StringBuilder sb) {
+		for (int i = 0; i < node.size(); i++) {
+			CommonTree sub = node.get(i);
+			String tag = sub.getTag().getSymbol();
+			sb.append(tag);
+			if (tag.equals("Local") || tag.equals("Block")) {
+				sb.append("( ");
+				tags(sub, sb);
+				sb.append(")");
+			}
+			sb.append(" ");
+		}
+	}
+
+	private void testStatements(String option) throws IOException {
+		Grammar grammar = new ParserGenerator().newGrammar(CommonSource.newStringSource(Statements), "nez");
+		ParserStrategy strategy = ParserStrategy.newDefaultStrategy();
+		strategy.setOption(option);
+		Parser parser = grammar.newParser("File", strategy);
+
+		Random r = new Random(14);
+		StringBuilder text = new StringBuilder();
+		StringBuilder expected = new StringBuilder();
+		newStatements(r, 0, 3000, text, expected);
+		assertTrue(defCount > 256);
+
+		ParserResult<CommonTree> result = parser.parseResult(CommonSource.newStringSource(text.toString()), new CommonTree());
+		assertTrue(option, !result.hasErrors());
+		StringBuilder tags = new StringBuilder();
+		tags(result.getTree(), tags);
+		assertEquals(option, expected.toString(), tags.toString());
+	}
+
+	@Test
+	public void testStatements() throws IOException {
+		testStatements("-JIT");
+	}
+
+	@Test
+	public void testStatementsJIT() throws IOException {
+		testStatements("+JIT");
+	}
+
+}
@@ -0,0 +1,85 @@
+package nez.tool.ast;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.File;
+import java.io.IOException;
+
+import nez.ParserGenerator;
+import nez.ast.CommonTree;
+import nez.ast.Source;
+import nez.lang.Grammar;
+import nez.parser.Parser;
+import nez.parser.io.CommonSource;
+
+import org.junit.Test;
+
+public class TreeBinaryReaderTest {
+
+	private final static String Input = "{\"a\": [1, 2, {\"b\": null}], \"c\": \"d\\u00e9\", \"e\": [true, false, -1.5e3, [], {}]}";
+
+	/* the nodes in pre-order, as a cursor or a tree visits them */
+	private static void walk(StringBuilder sb, TreeBinaryReader.Cursor c) {
+		sb.append(c.depth()).append(" ").append(c.label()).append(" ").append(c.tag()).append(" ").append(c.pos()).append("+").append(c.length());
+		sb.append(c.isLeaf() ? " " + c.text() : "").append("\n");
+		if (c.moveToFirstChild()) {
+			do {
+				walk(sb, c);
+			} while (c.moveToNextSibling());
+			c.moveToParent();
+		}
+	}
+
+	private static void walk(StringBuilder sb, CommonTree node, int depth, Object label) {
+		sb.append(depth).append(" ").append(label).append(" ").append(node.getTag()).append(" ").append(node.getSourcePosition()).append("+").append(node.getLength());
+		sb.append(node.size() == 0 ? " " + node.toText() : "").append("\n");
+		for (int i = 0; i < node.size(); i++) {
+			walk(sb, node.get(i), depth + 1, node.getLabel(i));
+		}
+	}
+
+	private void testRoundTrip(int flags) throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		Parser parser = grammar.newParser("File");
+		Source source = CommonSource.newStringSource(Input);
+		CommonTree tree = parser.parse(source);
+		File file = File.createTempFile("tree", ".nezb");
+		try {
+			TreeBinaryWriter w = new TreeBinaryWriter(flags);
+			w.init(file.getPath());
+			w.writeTree(tree);
+			w.close();
+			TreeBinaryReader reader = new TreeBinaryReader(file.getPath(), flags == 0 ? source : null);
+			assertEquals(tree.toString(), reader.getTree().toString());
+			assertEquals(tree.toString(), reader.getTree().dup().toString());
+
+			StringBuilder expected = new StringBuilder();
+			walk(expected, tree, 0, null);
+			StringBuilder sb = new StringBuilder();
+			TreeBinaryReader.Cursor c = reader.getCursor(0);
+			walk(sb, c);
+			assertEquals(expected.toString(), sb.toString());
+			assertFalse(c.moveToParent());
+			assertEquals(tree.get(0).get(1).toString(), c.moveToChild(0) && c.moveToChild(1) ? c.toTree().toString() : null);
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		testRoundTrip(TreeBinaryWriter.EmbedSource);
+		testRoundTrip(0);
+	}
+
+	/* a BinaryTree prototype builds trees in memory */
+	@Test
+	public void testPrototype() throws IOException {
+		Grammar grammar = new ParserGenerator().loadGrammar("json.nez");
+		Parser parser = grammar.newParser("File");
+		Source source = CommonSource.newStringSource(Input);
+		assertEquals(parser.parse(source).toString(), parser.parse(source, new BinaryTree()).toString());
+	}
+
+}